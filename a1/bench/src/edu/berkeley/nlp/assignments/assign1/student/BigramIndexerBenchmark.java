@@ -0,0 +1,68 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time per BigramIndexer.addAndGetIndex() call while indexing a stream of
+ * bigrams whose words are Zipf distributed, the way the bigrams of a corpus
+ * are indexed while the model is built. Every invocation indexes the whole
+ * stream into a new indexer, so with a small initial capacity the time
+ * includes growing the table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class BigramIndexerBenchmark {
+
+   static final int NUM_BIGRAMS = 1 << 21;
+
+   @Param({ "1024", "2000000" })
+   public int initialCapacity;
+
+   @Param({ "0.75" })
+   public float loadFactor;
+
+   @Param({ "LINEAR", "ROBIN_HOOD" })
+   public CrazilyPackedHashMap.Probing probing;
+
+   int words1[], words2[];
+   BigramIndexer indexer;
+
+   @Setup
+   public void setUpStream() {
+      words1 = Zipf.sample(100000, 1.1, NUM_BIGRAMS, 1);
+      words2 = Zipf.sample(100000, 1.1, NUM_BIGRAMS, 2);
+   }
+
+   @Setup(Level.Invocation)
+   public void setUpIndexer() {
+      indexer = new BigramIndexer(initialCapacity, loadFactor, probing);
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(NUM_BIGRAMS)
+   public int addAndGetIndex() {
+      int last = 0;
+      for (int i = 0; i < NUM_BIGRAMS; i++) {
+         last = indexer.addAndGetIndex(words1[i], words2[i]);
+      }
+      return last;
+   }
+}
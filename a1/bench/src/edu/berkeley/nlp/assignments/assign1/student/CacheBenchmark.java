@@ -0,0 +1,71 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+
+/**
+ * Latency of getNgramLogProbability() through a CachedLanguageModel of every
+ * capacity and sharing in front of KneserNeyTrigramLm; a capacity of 0 is
+ * the model alone. Like in decoding, the queries are the trigrams of held
+ * out sentences drawn over and over with Zipf distributed ranks (see
+ * LmBenchmark.zipfQueries()). LmBenchmark's cache mode checks that the
+ * cache doesn't change the scores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xmx3g" })
+public class CacheBenchmark {
+
+   /**
+    * Number of trigrams in the query stream, a power of 2.
+    */
+   static final int NUM_QUERIES = 1 << 20;
+
+   @Param({ "200000" })
+   public int sentences;
+
+   @Param({ "0", "4096", "65536", "1048576" })
+   public int capacity;
+
+   @Param({ "STRIPED", "THREAD_LOCAL" })
+   public CachedLanguageModel.Sharing sharing;
+
+   @Param({ "16" })
+   public int stripes;
+
+   NgramLanguageModel lm;
+   int queries[][];
+   int next;
+
+   @Setup
+   public void setUp() {
+      KneserNeyTrigramLm model = new KneserNeyTrigramLm(LmBenchmark
+            .zipfCorpus(sentences, 1), false);
+      lm = capacity == 0 ? model : new CachedLanguageModel(model, capacity,
+            sharing, stripes);
+      queries = LmBenchmark.zipfQueries(LmBenchmark.index(LmBenchmark
+            .zipfCorpus(5000, 2)), NUM_QUERIES);
+   }
+
+   @Benchmark
+   public double query() {
+      int trigram[] = queries[next++ & (NUM_QUERIES - 1)];
+      return lm.getNgramLogProbability(trigram, 0, 3);
+   }
+}
@@ -0,0 +1,77 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of KneserNeyTrigramLm.getNgramLogProbability() with
+ * BlockedBloomFilters of every number of bits per n-gram in front of the
+ * bigram and trigram tables; 0 bits is the model without filters. The
+ * queries are the mix of LmBenchmark.sampleQueries() (mixed) and the unseen
+ * trigrams among them (unseen), where the filters save the most. The tables
+ * are sized to their n-grams (see LmBenchmark.fullTablesLm()), so misses
+ * probe as far as they would in a full model. LmBenchmark's filters mode
+ * checks that the filters don't change the scores and reports their false
+ * positive rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xmx3g" })
+public class FilterBenchmark {
+
+   /**
+    * Number of trigrams in the mixed query stream, a power of 2.
+    */
+   static final int NUM_QUERIES = 1 << 20;
+
+   @Param({ "200000" })
+   public int sentences;
+
+   @Param({ "0", "6", "10", "16" })
+   public double bitsPerNgram;
+
+   KneserNeyTrigramLm lm;
+   int mixed[][], unseen[][];
+   int next, nextUnseen;
+
+   @Setup
+   public void setUp() {
+      List<List<String>> training = LmBenchmark.zipfCorpus(sentences, 1);
+      lm = LmBenchmark.fullTablesLm(training);
+      lm.buildFilters(bitsPerNgram);
+      mixed = LmBenchmark.sampleQueries(LmBenchmark.index(LmBenchmark
+            .zipfCorpus(5000, 2)), NUM_QUERIES);
+      unseen = LmBenchmark.unseenQueries(lm, mixed);
+      if (unseen.length == 0) {
+         throw new IllegalStateException("No unseen trigrams in the queries");
+      }
+   }
+
+   @Benchmark
+   public double mixed() {
+      int trigram[] = mixed[next++ & (NUM_QUERIES - 1)];
+      return lm.getNgramLogProbability(trigram, 0, 3);
+   }
+
+   @Benchmark
+   public double unseen() {
+      int trigram[] = unseen[nextUnseen++];
+      if (nextUnseen == unseen.length) nextUnseen = 0;
+      return lm.getNgramLogProbability(trigram, 0, 3);
+   }
+}
@@ -0,0 +1,115 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of CrazilyPackedHashMap lookups and updates by load factor and
+ * probing scheme. This replaces the hand timed table of load factors in
+ * KneserNeyTrigramLm.
+ *
+ * The map is filled with distinct keys right up to its load factor (one entry
+ * short of growing), so the load factor is the one measured. Hits are drawn
+ * from the stored keys with Zipf distributed ranks, so some keys are hot and
+ * stay in cache, like the n-grams of real text; misses have a first key that
+ * was never stored. adjustOrPutValue() adds 1 to hits on one pass over the
+ * stream and takes it off again on the next, so the map doesn't change size
+ * and no count outgrows the value field while it's measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class HashMapBenchmark {
+
+   /**
+    * Number of keys in a query stream, a power of 2.
+    */
+   static final int NUM_QUERIES = 1 << 20;
+
+   @Param({ "1000000" })
+   public int size;
+
+   @Param({ "0.5", "0.7", "0.75", "0.8", "0.9", "0.95" })
+   public float loadFactor;
+
+   @Param({ "LINEAR", "ROBIN_HOOD" })
+   public CrazilyPackedHashMap.Probing probing;
+
+   CrazilyPackedHashMap map;
+   int hitKeys1[], hitKeys2[];
+   int missKeys1[], missKeys2[];
+   int next;
+
+   /**
+    * Position in the hit stream of adjustOrPutValue(), which starts at 0 so
+    * the passes add and take off the same amounts.
+    */
+   int nextUpdate;
+
+   @Setup
+   public void setUp() {
+      // The layout of TrigramCounter: 23 bits of bigram, 19 bits of word.
+      map = new CrazilyPackedHashMap(size, loadFactor, 0x3FFFFF, 23, 19,
+            probing);
+      Random random = new Random(1);
+      int keys1[] = new int[(int) map.threshold - 1];
+      int keys2[] = new int[keys1.length];
+      int numKeys = 0;
+      while (numKeys < keys1.length) {
+         // Stored first keys are below 2^22, missing ones at or above.
+         int key1 = random.nextInt(1 << 22), key2 = random.nextInt(1 << 19);
+         if (map.get(key1, key2) == 0) {
+            map.adjustOrPutValue(key1, key2, 1 + random.nextInt(100));
+            keys1[numKeys] = key1;
+            keys2[numKeys] = key2;
+            numKeys++;
+         }
+      }
+
+      int ranks[] = Zipf.sample(numKeys, 1.0, NUM_QUERIES, 2);
+      hitKeys1 = new int[NUM_QUERIES];
+      hitKeys2 = new int[NUM_QUERIES];
+      missKeys1 = new int[NUM_QUERIES];
+      missKeys2 = new int[NUM_QUERIES];
+      for (int i = 0; i < NUM_QUERIES; i++) {
+         hitKeys1[i] = keys1[ranks[i]];
+         hitKeys2[i] = keys2[ranks[i]];
+         missKeys1[i] = (1 << 22) + random.nextInt(1 << 22);
+         missKeys2[i] = random.nextInt(1 << 19);
+      }
+   }
+
+   @Benchmark
+   public int getHit() {
+      int i = next++ & (NUM_QUERIES - 1);
+      return map.get(hitKeys1[i], hitKeys2[i]);
+   }
+
+   @Benchmark
+   public int getMiss() {
+      int i = next++ & (NUM_QUERIES - 1);
+      return map.get(missKeys1[i], missKeys2[i]);
+   }
+
+   @Benchmark
+   public int adjustOrPutValue() {
+      int i = nextUpdate & (NUM_QUERIES - 1);
+      int amount = (nextUpdate++ & NUM_QUERIES) == 0 ? 1 : -1;
+      return map.adjustOrPutValue(hitKeys1[i], hitKeys2[i], amount);
+   }
+}
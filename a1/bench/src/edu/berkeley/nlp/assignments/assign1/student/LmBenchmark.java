@@ -0,0 +1,1422 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import edu.berkeley.nlp.io.SentenceCollection;
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Command line benchmarks for KneserNeyTrigramLm.
+ * 
+ * <pre>
+ * java LmBenchmark mode [-train file] [-test file] [-sentences n] [options]
+ * </pre>
+ * 
+ * It lives in bench/src so it stays out of the submitted jar; the bench
+ * target of build_assign1.xml builds it into assign1-bench.jar, and it runs
+ * with that jar and assign1.jar on the classpath.
+ * 
+ * The files have one tokenized sentence per line. Without a training file
+ * the model is built from a synthetic corpus of Zipf distributed words, and
+ * without a test file the model is tested on fresh synthetic sentences.
+ * 
+ * Modes:
+ * <ul>
+ * <li>quantized [-bits 8] [-freeze]: perplexity and query latency of the
+ * quantized tables compared to the exact computation.
+ * <li>stateful [-bits 0]: time to score the test sentences word by word with
+ * score() compared to getNgramLogProbability(), optionally quantized.
+ * <li>batch [-bits 0] [-freeze] [-batchSize 1024]: a check that scoreBatch()
+ * gives the same scores as score() and getNgramLogProbability(), on random
+ * candidate words for contexts from the test sentences. LmQueryBenchmark in
+ * bench/src measures the throughput.
+ * <li>orders [-orders 2,3,4,5]: build time, memory, perplexity and query
+ * time of KneserNeyNgramLm for every order, next to KneserNeyTrigramLm.
+ * <li>ingest [-threads 1]: throughput and allocation of reading the training
+ * file through SentenceCollection compared to MappedCorpusReader, alone and
+ * as part of building the model. The synthetic corpus is written to a
+ * temporary file first.
+ * <li>offheap [-approximate false]: build time, garbage collection time,
+ * heap usage and query time with the hash tables on the heap compared to off
+ * the heap.
+ * <li>approximate [-layouts 9/23,12/20,16/16,8/16] [-probes 2000000]: for every layout of
+ * fingerprint/count bits of the approximate trigram counter, its memory, the
+ * rate at which unseen trigrams are reported as seen, the share of seen
+ * trigrams with a wrong count, and the perplexity compared to the exact
+ * counter.
+ * <li>sketch [-sizes 4,16,64] [-rows 4] [-heavyHitters 0] [-probes 2000000]:
+ * the same comparison for count-min sketches of the given sizes in MB.
+ * <li>external [-buffers 100000,1000000]: build time, peak heap and runs
+ * written when counting the trigrams with an ExternalTrigramCounter of every
+ * buffer capacity, compared to counting them all in memory.
+ * <li>evaluate [-threads 1,2,4]: tokens per second of PerplexityEvaluator
+ * on the test file with every number of threads, compared to indexing the
+ * test sentences and scoring them one n-gram at a time on the calling
+ * thread. Synthetic test sentences are written to a temporary file first.
+ * <li>discounts [-threads 1] [-modified false]: time to tune the discount,
+ * or with -modified also D1, D2 and D3+, on the test sentences with
+ * DiscountTuner, compared to the time to build the model once.
+ * <li>stats [-approximate false] [-freeze]: the LmStats of the model as a
+ * table, as JSON and over JMX, and their total compared to the heap that
+ * Utils.reportMemoryUsage() reports. StatsBenchmark in bench/src measures
+ * the time to take them.
+ * <li>cache [-capacities 4096,65536,1048576] [-stripes 16]: a check that a
+ * CachedLanguageModel of every capacity, striped and thread local, gives the
+ * same scores as KneserNeyTrigramLm alone, and its hit rate. Like in
+ * decoding, the queries are the trigrams of the test sentences, drawn over
+ * and over with Zipf distributed ranks (zipfQueries()). CacheBenchmark in
+ * bench/src measures the latency.
+ * <li>filters [-bits 6,10,16]: a check that BlockedBloomFilters of every
+ * number of bits per n-gram in front of the bigram and trigram tables don't
+ * change the scores of the mix of sampleQueries(), and the memory of the
+ * filters and the rate at which they pass unseen bigrams and trigrams. The
+ * tables are sized to their n-grams (fullTablesLm()). FilterBenchmark in
+ * bench/src measures the latency.
+ * <li>concurrent [-threads 4]: stress test of the concurrent hash tables.
+ * The bigrams of the training sentences are counted and indexed, and their
+ * trigrams counted, by every thread at once, with the tables resized between
+ * chunks of sentences, and the counts and indexes are checked against tables
+ * filled on one thread. Then remove() and clear() are checked.
+ * <li>parallel [-threads 2,4] [-capacity 0] [-keyBits 0]: build time with
+ * ParallelLmBuilder on every number of threads, compared to one thread, and
+ * a check that all the models save to the same bytes. A small -capacity
+ * makes the tables grow on the way, and small -keyBits makes them widen.
+ * </ul>
+ */
+public class LmBenchmark {
+
+   /**
+    * Number of queries timed per measurement.
+    */
+   static final int NUM_QUERIES = 2000000;
+
+   /**
+    * Number of times each measurement is repeated; the best time is kept.
+    */
+   static final int NUM_ROUNDS = 5;
+
+   final Map<String, String> options = new HashMap<String, String>();
+
+   public static void main(String[] args) throws Exception {
+      if (args.length == 0) {
+         System.out.println("Usage: LmBenchmark mode [-train file] "
+               + "[-test file] [-sentences n] [options]");
+         System.exit(1);
+      }
+      LmBenchmark benchmark = new LmBenchmark();
+      for (int i = 1; i + 1 < args.length; i += 2) {
+         if (!args[i].startsWith("-")) {
+            throw new IllegalArgumentException("Bad option " + args[i]);
+         }
+         benchmark.options.put(args[i].substring(1), args[i + 1]);
+      }
+
+      String mode = args[0];
+      if (mode.equals("quantized")) {
+         benchmark.quantized();
+      } else if (mode.equals("stateful")) {
+         benchmark.stateful();
+      } else if (mode.equals("batch")) {
+         benchmark.batch();
+      } else if (mode.equals("orders")) {
+         benchmark.orders();
+      } else if (mode.equals("ingest")) {
+         benchmark.ingest();
+      } else if (mode.equals("offheap")) {
+         benchmark.offHeap();
+      } else if (mode.equals("approximate")) {
+         benchmark.approximate();
+      } else if (mode.equals("sketch")) {
+         benchmark.sketch();
+      } else if (mode.equals("external")) {
+         benchmark.external();
+      } else if (mode.equals("evaluate")) {
+         benchmark.evaluate();
+      } else if (mode.equals("discounts")) {
+         benchmark.discounts();
+      } else if (mode.equals("stats")) {
+         benchmark.stats();
+      } else if (mode.equals("cache")) {
+         benchmark.cache();
+      } else if (mode.equals("filters")) {
+         benchmark.filters();
+      } else if (mode.equals("concurrent")) {
+         benchmark.concurrent();
+      } else if (mode.equals("parallel")) {
+         benchmark.parallel();
+      } else {
+         throw new IllegalArgumentException("Unknown mode " + mode);
+      }
+   }
+
+   String option(String name, String defaultValue) {
+      String value = options.get(name);
+      return value == null ? defaultValue : value;
+   }
+
+   int intOption(String name, int defaultValue) {
+      return Integer.parseInt(option(name, Integer.toString(defaultValue)));
+   }
+
+   boolean booleanOption(String name) {
+      return Boolean.parseBoolean(option(name, "false"));
+   }
+
+   Iterable<List<String>> trainingSentences() {
+      String file = options.get("train");
+      if (file != null) return new SentenceCollection(file);
+      return zipfCorpus(intOption("sentences", 200000), 1);
+   }
+
+   List<List<String>> testSentences() {
+      List<List<String>> sentences = new ArrayList<List<String>>();
+      String file = options.get("test");
+      if (file != null) {
+         for (List<String> sentence : new SentenceCollection(file)) {
+            sentences.add(sentence);
+         }
+      } else {
+         sentences = zipfCorpus(intOption("testSentences", 5000), 2);
+      }
+      return sentences;
+   }
+
+   /**
+    * Generate sentences of 5 to 30 words over a vocabulary of 100,000 words.
+    * The step from one word index to the next is Zipf distributed (exponent
+    * 1.2), so like in real text the next word depends on the previous one and
+    * a few continuations of every word are much more common than the rest.
+    */
+   static List<List<String>> zipfCorpus(int numSentences, long seed) {
+      int vocabularySize = 100000;
+      double cumulative[] = new double[vocabularySize];
+      double total = 0;
+      for (int i = 0; i < vocabularySize; i++) {
+         total += Math.pow(i + 1, -1.2);
+         cumulative[i] = total;
+      }
+
+      Random random = new Random(seed);
+      List<List<String>> sentences = new ArrayList<List<String>>(numSentences);
+      for (int i = 0; i < numSentences; i++) {
+         int length = 5 + random.nextInt(26);
+         List<String> sentence = new ArrayList<String>(length);
+         int word = 0;
+         for (int j = 0; j < length; j++) {
+            int step = Arrays.binarySearch(cumulative, random.nextDouble()
+                  * total);
+            word = (word + (step < 0 ? -step - 1 : step)) % vocabularySize;
+            sentence.add("w" + word);
+         }
+         sentences.add(sentence);
+      }
+      return sentences;
+   }
+
+   /**
+    * Turn the sentences into word indexes padded with START and STOP.
+    */
+   static int[][] index(List<List<String>> sentences) {
+      StringIndexer indexer = EnglishWordIndexer.getIndexer();
+      int indexed[][] = new int[sentences.size()][];
+      for (int i = 0; i < indexed.length; i++) {
+         List<String> sentence = sentences.get(i);
+         int words[] = new int[sentence.size() + 2];
+         words[0] = indexer.addAndGetIndex(NgramLanguageModel.START);
+         for (int j = 0; j < sentence.size(); j++) {
+            words[j + 1] = indexer.addAndGetIndex(sentence.get(j));
+         }
+         words[words.length - 1] = indexer.addAndGetIndex(NgramLanguageModel.STOP);
+         indexed[i] = words;
+      }
+      return indexed;
+   }
+
+   /**
+    * Return the perplexity of the model on the sentences. Every word is
+    * scored with as much history as the order of the model allows, so a
+    * trigram model scores the first word of a sentence as a bigram and the
+    * rest as trigrams.
+    */
+   static double perplexity(NgramLanguageModel lm, int sentences[][]) {
+      int order = lm.getOrder();
+      double logProb = 0;
+      long numTokens = 0;
+      for (int words[] : sentences) {
+         for (int i = 2; i <= words.length; i++) {
+            logProb += lm.getNgramLogProbability(words, Math.max(0, i - order),
+                  i);
+         }
+         numTokens += words.length - 1;
+      }
+      return Math.exp(-logProb / numTokens);
+   }
+
+   /**
+    * Return the (sentence, end position) of random trigrams of the sentences.
+    */
+   static int[][] sampleQueries(int sentences[][], int numQueries) {
+      Random random = new Random(3);
+      int queries[][] = new int[numQueries][];
+      for (int i = 0; i < numQueries; i++) {
+         int words[] = sentences[random.nextInt(sentences.length)];
+         queries[i] = new int[] { words[random.nextInt(words.length - 2)],
+               words[random.nextInt(words.length)],
+               words[random.nextInt(words.length)] };
+         if (random.nextBoolean()) {
+            // A trigram that really occurs.
+            int end = 3 + random.nextInt(words.length - 2);
+            System.arraycopy(words, end - 3, queries[i], 0, 3);
+         }
+      }
+      return queries;
+   }
+
+   /**
+    * Return numQueries trigrams of the sentences drawn with Zipf distributed
+    * ranks, so that a few of them are queried far more often than the rest.
+    */
+   static int[][] zipfQueries(int sentences[][], int numQueries) {
+      List<int[]> trigrams = new ArrayList<int[]>();
+      for (int words[] : sentences) {
+         for (int i = 3; i <= words.length; i++) {
+            trigrams.add(Arrays.copyOfRange(words, i - 3, i));
+         }
+      }
+
+      double cumulative[] = new double[trigrams.size()];
+      double total = 0;
+      for (int i = 0; i < cumulative.length; i++) {
+         total += 1.0 / (i + 1);
+         cumulative[i] = total;
+      }
+      Random random = new Random(5);
+      int queries[][] = new int[numQueries][];
+      for (int i = 0; i < numQueries; i++) {
+         int rank = Arrays.binarySearch(cumulative, random.nextDouble()
+               * total);
+         queries[i] = trigrams.get(rank < 0 ? -rank - 1 : rank);
+      }
+      return queries;
+   }
+
+   /**
+    * Compare the quantized tables to the exact computation.
+    */
+   void quantized() {
+      KneserNeyTrigramLm lm = new KneserNeyTrigramLm(trainingSentences(),
+            false);
+      if (booleanOption("freeze")) lm.freeze();
+      int test[][] = index(testSentences());
+      int queries[][] = sampleQueries(test, NUM_QUERIES);
+
+      double exactPerplexity = perplexity(lm, test);
+      lm.quantize(intOption("bits", 8));
+      double quantizedPerplexity = perplexity(lm, test);
+
+      double maxError = 0, sumError = 0;
+      for (int ngram[] : queries) {
+         double error = Math.abs(lm.getNgramLogProbability(ngram, 0, 3)
+               - lm.getExactLogProbability(ngram, 0, 3));
+         maxError = Math.max(maxError, error);
+         sumError += error;
+      }
+
+      // Alternate between the two so they see the same JIT and cache state.
+      double exactNanos = Double.MAX_VALUE, quantizedNanos = Double.MAX_VALUE;
+      for (int round = 0; round < NUM_ROUNDS; round++) {
+         exactNanos = Math.min(exactNanos, timeQueries(lm, queries, false));
+         quantizedNanos = Math.min(quantizedNanos,
+               timeQueries(lm, queries, true));
+      }
+
+      System.out.println("Perplexity: exact " + exactPerplexity
+            + ", quantized " + quantizedPerplexity + " ("
+            + percent(quantizedPerplexity / exactPerplexity - 1) + ")");
+      System.out.println("Log prob error: mean " + sumError / queries.length
+            + ", max " + maxError);
+      System.out.println("Query time: exact " + exactNanos
+            + " ns, quantized " + quantizedNanos + " ns");
+   }
+
+   /**
+    * Compare scoring sentences through states to scoring every n-gram.
+    */
+   void stateful() {
+      KneserNeyTrigramLm lm = new KneserNeyTrigramLm(trainingSentences(),
+            false);
+      int bits = intOption("bits", 0);
+      if (bits > 0) lm.quantize(bits);
+      int test[][] = index(testSentences());
+
+      double ngramNanos = Double.MAX_VALUE, stateNanos = Double.MAX_VALUE;
+      double ngramLogProb = 0, stateLogProb = 0;
+      long numTokens = 0;
+      long nextState[] = new long[1];
+      for (int round = 0; round < NUM_ROUNDS; round++) {
+         long start = System.nanoTime();
+         ngramLogProb = 0;
+         numTokens = 0;
+         for (int words[] : test) {
+            ngramLogProb += lm.getNgramLogProbability(words, 0, 2);
+            for (int i = 3; i <= words.length; i++) {
+               ngramLogProb += lm.getNgramLogProbability(words, i - 3, i);
+            }
+            numTokens += words.length - 1;
+         }
+         ngramNanos = Math.min(ngramNanos, (double) (System.nanoTime() - start)
+               / numTokens);
+
+         start = System.nanoTime();
+         stateLogProb = 0;
+         for (int words[] : test) {
+            stateLogProb += lm.scorePhrase(lm.getStartState(), words, 1,
+                  words.length, nextState);
+         }
+         stateNanos = Math.min(stateNanos, (double) (System.nanoTime() - start)
+               / numTokens);
+      }
+
+      System.out.println("Log prob: n-grams " + ngramLogProb + ", states "
+            + stateLogProb);
+      System.out.println("Time per word: n-grams " + ngramNanos
+            + " ns, states " + stateNanos + " ns");
+   }
+
+   /**
+    * Check that scoreBatch() scores pairs like score() and
+    * getNgramLogProbability() do one at a time.
+    */
+   void batch() {
+      KneserNeyTrigramLm lm = new KneserNeyTrigramLm(trainingSentences(),
+            false);
+      if (booleanOption("freeze")) lm.freeze();
+      int bits = intOption("bits", 0);
+      if (bits > 0) lm.quantize(bits);
+      int test[][] = index(testSentences());
+      int batchSize = intOption("batchSize", 1024);
+
+      // Like a decoder, score several candidate words in every context. Half
+      // the candidates really follow the context.
+      Random random = new Random(4);
+      int n = NUM_QUERIES;
+      long states[] = new long[n];
+      int words[] = new int[n];
+      int trigrams[][] = new int[n][];
+      for (int i = 0; i < n; i += 8) {
+         int sentence[] = test[random.nextInt(test.length)];
+         int end = 2 + random.nextInt(sentence.length - 2);
+         long state = lm.getState(sentence[end - 2], sentence[end - 1]);
+         for (int j = i; j < Math.min(n, i + 8); j++) {
+            states[j] = state;
+            int other[] = test[random.nextInt(test.length)];
+            words[j] = random.nextBoolean() ? sentence[end]
+                  : other[random.nextInt(other.length)];
+            trigrams[j] = new int[] { sentence[end - 2], sentence[end - 1],
+                  words[j] };
+         }
+      }
+
+      long chunkStates[] = new long[batchSize];
+      int chunkWords[] = new int[batchSize];
+      double chunkLogProbs[] = new double[batchSize];
+      long nextState[] = new long[1];
+      for (int from = 0; from < n; from += batchSize) {
+         int length = Math.min(batchSize, n - from);
+         System.arraycopy(states, from, chunkStates, 0, length);
+         System.arraycopy(words, from, chunkWords, 0, length);
+         lm.scoreBatch(chunkStates, chunkWords, length, chunkLogProbs, null);
+         for (int i = from; i < from + length; i++) {
+            double batched = chunkLogProbs[i - from];
+            double single = lm.score(states[i], words[i], nextState);
+            double logProb = lm.getNgramLogProbability(trigrams[i], 0, 3);
+            if (single != batched || logProb != batched) {
+               throw new IllegalStateException("Pair " + i + " scored "
+                     + single + " by score(), " + logProb
+                     + " by getNgramLogProbability() but " + batched
+                     + " in a batch");
+            }
+         }
+      }
+      System.out.println(n + " pairs scored the same in batches of "
+            + batchSize);
+   }
+
+   /**
+    * Compare KneserNeyNgramLm of several orders.
+    */
+   void orders() {
+      // Materialize the corpus so every model sees the same sentences
+      // without reading the file again.
+      List<List<String>> training = new ArrayList<List<String>>();
+      for (List<String> sentence : trainingSentences()) {
+         training.add(sentence);
+      }
+      int test[][] = index(testSentences());
+
+      List<String> lines = new ArrayList<String>();
+      long start = System.currentTimeMillis();
+      KneserNeyTrigramLm trigramLm = new KneserNeyTrigramLm(training, false);
+      lines.add(String.format("KneserNeyTrigramLm: build %.1fs, "
+            + "perplexity %.2f, %.1f ns/query",
+            (System.currentTimeMillis() - start) / 1000.0,
+            perplexity(trigramLm, test), timeWindows(trigramLm, test)));
+      trigramLm = null;
+
+      for (String value : option("orders", "2,3,4,5").split(",")) {
+         int order = Integer.parseInt(value.trim());
+         start = System.currentTimeMillis();
+         KneserNeyNgramLm lm = new KneserNeyNgramLm(training, order);
+         double buildSeconds = (System.currentTimeMillis() - start) / 1000.0;
+         long numNgrams = 0;
+         for (int k = 1; k <= order; k++) numNgrams += lm.numNgrams(k);
+         lines.add(String.format("Order %d: build %.1fs, %d n-grams, %.1f MB"
+               + " (%.1f bytes/n-gram), perplexity %.2f, %.1f ns/query",
+               order, buildSeconds, numNgrams, lm.bytes() / 1048576.0,
+               (double) lm.bytes() / numNgrams, perplexity(lm, test),
+               timeWindows(lm, test)));
+      }
+
+      for (String line : lines) System.out.println(line);
+   }
+
+   /**
+    * Write the sentences to a temporary file, one per line.
+    */
+   static File writeTemporaryCorpus(Iterable<List<String>> sentences)
+         throws IOException {
+      File file = File.createTempFile("corpus", ".txt");
+      file.deleteOnExit();
+      PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+            new FileOutputStream(file), "UTF-8"));
+      for (List<String> sentence : sentences) {
+         for (int i = 0; i < sentence.size(); i++) {
+            if (i > 0) writer.print(' ');
+            writer.print(sentence.get(i));
+         }
+         writer.println();
+      }
+      writer.close();
+      return file;
+   }
+
+   /**
+    * Compare reading the training file as Strings with reading it through a
+    * memory map.
+    */
+   void ingest() throws IOException {
+      File file;
+      String name = options.get("train");
+      if (name != null) {
+         file = new File(name);
+      } else {
+         file = writeTemporaryCorpus(zipfCorpus(intOption("sentences",
+               200000), 1));
+      }
+      System.out.println(String.format("Corpus %s, %.1f MB", file,
+            file.length() / 1048576.0));
+
+      // Read both ways a few times, alternating, and keep the best.
+      final StringIndexer wordIndexer = EnglishWordIndexer.getIndexer();
+      double bestSeconds[] = { Double.MAX_VALUE, Double.MAX_VALUE };
+      long allocated[] = new long[2];
+      long numTokens = 0;
+      final long checksums[] = new long[2];
+      for (int round = 0; round < 3; round++) {
+         for (int path = 0; path < 2; path++) {
+            long start = System.nanoTime();
+            long startAllocated = Utils.allocatedBytes();
+            if (path == 0) {
+               checksums[0] = 0;
+               for (List<String> sentence : new SentenceCollection(
+                     file.getPath())) {
+                  for (String word : sentence) {
+                     checksums[0] += wordIndexer.addAndGetIndex(word);
+                  }
+               }
+            } else {
+               checksums[1] = 0;
+               MappedCorpusReader reader = new MappedCorpusReader(file,
+                     new TokenIndexer(wordIndexer, 1 << 16,
+                           KneserNeyTrigramLm.loadFactor));
+               reader.read(new MappedCorpusReader.Handler() {
+                  public void sentence(int words[], int length) {
+                     for (int i = 1; i < length - 1; i++) {
+                        checksums[1] += words[i];
+                     }
+                  }
+               });
+               numTokens = reader.numTokens();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (seconds < bestSeconds[path]) {
+               bestSeconds[path] = seconds;
+               allocated[path] = Utils.allocatedBytes() - startAllocated;
+            }
+         }
+      }
+      if (checksums[0] != checksums[1]) {
+         throw new IllegalStateException("The two readers indexed different "
+               + "words");
+      }
+
+      // Build the model both ways.
+      LmBuildOptions buildOptions = new LmBuildOptions();
+      buildOptions.numThreads = intOption("threads", 1);
+      long start = System.nanoTime();
+      KneserNeyTrigramLm listLm = new KneserNeyTrigramLm(
+            new SentenceCollection(file.getPath()), buildOptions);
+      double listBuild = (System.nanoTime() - start) / 1e9;
+      int test[][] = index(testSentences());
+      double listPerplexity = perplexity(listLm, test);
+      listLm = null;
+      start = System.nanoTime();
+      KneserNeyTrigramLm mappedLm = new KneserNeyTrigramLm(file, buildOptions);
+      double mappedBuild = (System.nanoTime() - start) / 1e9;
+      double mappedPerplexity = perplexity(mappedLm, test);
+      if (listPerplexity != mappedPerplexity) {
+         throw new IllegalStateException("Perplexity " + listPerplexity
+               + " from SentenceCollection but " + mappedPerplexity
+               + " from the memory map");
+      }
+
+      String names[] = { "SentenceCollection", "MappedCorpusReader" };
+      for (int path = 0; path < 2; path++) {
+         String line = String.format("%s: read %.2fs, %.1fM tokens/s",
+               names[path], bestSeconds[path], numTokens / bestSeconds[path]
+                     / 1e6);
+         if (allocated[path] >= 0) {
+            line += String.format(", %.1f bytes allocated/token",
+                  (double) allocated[path] / numTokens);
+         }
+         System.out.println(line);
+      }
+      System.out.println(String.format("Build: %.1fs from SentenceCollection,"
+            + " %.1fs from the memory map (%.2fx); perplexity %.2f both ways",
+            listBuild, mappedBuild, listBuild / mappedBuild, mappedPerplexity));
+   }
+
+   /**
+    * Compare models with their hash tables on and off the heap.
+    */
+   void offHeap() {
+      List<List<String>> training = new ArrayList<List<String>>();
+      for (List<String> sentence : trainingSentences()) {
+         training.add(sentence);
+      }
+      int test[][] = index(testSentences());
+
+      List<String> lines = new ArrayList<String>();
+      double perplexities[] = new double[2];
+      for (int i = 0; i < 2; i++) {
+         LmBuildOptions buildOptions = new LmBuildOptions();
+         buildOptions.approximate = booleanOption("approximate");
+         buildOptions.offHeap = i == 1;
+
+         long gcMillis = gcMillis();
+         long start = System.currentTimeMillis();
+         KneserNeyTrigramLm lm = new KneserNeyTrigramLm(training, buildOptions);
+         double buildSeconds = (System.currentTimeMillis() - start) / 1000.0;
+         gcMillis = gcMillis() - gcMillis;
+         perplexities[i] = perplexity(lm, test);
+
+         // A full collection has to walk the whole heap, so time one.
+         long fullGcStart = System.nanoTime();
+         System.gc();
+         double fullGcMillis = (System.nanoTime() - fullGcStart) / 1e6;
+         Runtime runtime = Runtime.getRuntime();
+         long heapBytes = runtime.totalMemory() - runtime.freeMemory();
+
+         lines.add(String.format("%s: build %.1fs (%.2fs in GC), heap %.1f MB,"
+               + " full GC %.0f ms, %.1f ns/query",
+               buildOptions.offHeap ? "Off heap" : "On heap", buildSeconds,
+               gcMillis / 1000.0, heapBytes / 1048576.0, fullGcMillis,
+               timeWindows(lm, test)));
+         lm = null;
+      }
+      if (perplexities[0] != perplexities[1]) {
+         throw new IllegalStateException("Perplexity " + perplexities[0]
+               + " on heap but " + perplexities[1] + " off heap");
+      }
+      for (String line : lines) System.out.println(line);
+   }
+
+   /**
+    * Compare approximate trigram counters of different layouts to the exact
+    * one.
+    */
+   void approximate() {
+      List<String> names = new ArrayList<String>();
+      List<LmBuildOptions> configurations = new ArrayList<LmBuildOptions>();
+      for (String layout : option("layouts", "9/23,12/20,16/16,8/16").split(
+            ",")) {
+         String bits[] = layout.split("/");
+         LmBuildOptions buildOptions = new LmBuildOptions();
+         buildOptions.approximate = true;
+         buildOptions.fingerprintBits = Integer.parseInt(bits[0]);
+         buildOptions.countBits = Integer.parseInt(bits[1]);
+         names.add(layout);
+         configurations.add(buildOptions);
+      }
+      compareToExact(names, configurations);
+   }
+
+   /**
+    * Compare count-min sketches of different sizes to the exact trigram
+    * counter.
+    */
+   void sketch() {
+      List<String> names = new ArrayList<String>();
+      List<LmBuildOptions> configurations = new ArrayList<LmBuildOptions>();
+      for (String megabytes : option("sizes", "4,16,64").split(",")) {
+         LmBuildOptions buildOptions = new LmBuildOptions();
+         buildOptions.sketchBytes = (long) (Double.parseDouble(megabytes)
+               * 1048576);
+         buildOptions.sketchRows = intOption("rows", 4);
+         buildOptions.heavyHitterCapacity = intOption("heavyHitters", 0);
+         names.add(megabytes + " MB sketch");
+         configurations.add(buildOptions);
+      }
+      compareToExact(names, configurations);
+   }
+
+   /**
+    * Compare counting the trigrams in memory with counting them in sorted
+    * runs on disk. Both must give the same model.
+    */
+   void external() {
+      List<List<String>> training = new ArrayList<List<String>>();
+      for (List<String> sentence : trainingSentences()) {
+         training.add(sentence);
+      }
+      int test[][] = index(testSentences());
+
+      List<Integer> buffers = new ArrayList<Integer>();
+      buffers.add(0);
+      for (String buffer : option("buffers", "100000,1000000").split(",")) {
+         buffers.add(Integer.parseInt(buffer));
+      }
+      List<String> lines = new ArrayList<String>();
+      double exactPerplexity = 0;
+      for (int buffer : buffers) {
+         LmBuildOptions buildOptions = new LmBuildOptions();
+         buildOptions.externalTrigramBuffer = buffer;
+
+         System.gc();
+         resetPeakHeap();
+         long start = System.currentTimeMillis();
+         KneserNeyTrigramLm lm = new KneserNeyTrigramLm(training, buildOptions);
+         double buildSeconds = (System.currentTimeMillis() - start) / 1000.0;
+         long peakBytes = peakHeapBytes();
+         double perplexity = perplexity(lm, test);
+         if (buffer == 0) {
+            exactPerplexity = perplexity;
+         } else if (perplexity != exactPerplexity) {
+            throw new IllegalStateException("Perplexity " + perplexity
+                  + " with a buffer of " + buffer + " trigrams but "
+                  + exactPerplexity + " in memory");
+         }
+
+         lines.add(String.format("%s: build %.1fs, peak heap %.1f MB, "
+               + "trigrams %.1f MB, %d trigrams, perplexity %.2f",
+               buffer == 0 ? "In memory" : buffer + " trigram buffer",
+               buildSeconds, peakBytes / 1048576.0,
+               bytes(lm.trigramCounter) / 1048576.0, lm.trigramCounter.size(),
+               perplexity));
+         lm = null;
+      }
+      for (String line : lines) System.out.println(line);
+   }
+
+   /**
+    * Compare scoring the test file with PerplexityEvaluator on different
+    * numbers of threads to indexing the sentences and scoring them with
+    * perplexity().
+    */
+   void evaluate() throws IOException {
+      KneserNeyTrigramLm lm = new KneserNeyTrigramLm(trainingSentences(),
+            new LmBuildOptions());
+      List<List<String>> test = testSentences();
+      String name = options.get("test");
+      File file = name != null ? new File(name) : writeTemporaryCorpus(test);
+
+      double bestSeconds = Double.MAX_VALUE;
+      double perplexity = 0;
+      long numTokens = 0;
+      for (int round = 0; round < 3; round++) {
+         long start = System.nanoTime();
+         int indexed[][] = index(test);
+         perplexity = perplexity(lm, indexed);
+         bestSeconds = Math.min(bestSeconds, (System.nanoTime() - start) / 1e9);
+         numTokens = 0;
+         for (int words[] : indexed) numTokens += words.length - 1;
+      }
+      System.out.println(String.format("perplexity(): %.1fs (%.0f tokens/s),"
+            + " perplexity %.4f", bestSeconds, numTokens / bestSeconds,
+            perplexity));
+
+      for (String threads : option("threads", "1,2,4").split(",")) {
+         PerplexityEvaluator evaluator = new PerplexityEvaluator(lm,
+               Integer.parseInt(threads));
+         PerplexityEvaluator.Result best = null;
+         for (int round = 0; round < 3; round++) {
+            PerplexityEvaluator.Result result = evaluator.evaluate(file);
+            if (best == null || result.seconds < best.seconds) best = result;
+         }
+         if (Math.abs(best.perplexity() / perplexity - 1) > 1e-9) {
+            throw new IllegalStateException("Perplexity " + best.perplexity()
+                  + " from the evaluator but " + perplexity);
+         }
+         System.out.println(threads + " threads: " + best);
+      }
+   }
+
+   /**
+    * Tune the discounts on the test sentences.
+    */
+   void discounts() {
+      List<List<String>> training = new ArrayList<List<String>>();
+      for (List<String> sentence : trainingSentences()) {
+         training.add(sentence);
+      }
+      long start = System.currentTimeMillis();
+      KneserNeyTrigramLm lm = new KneserNeyTrigramLm(training,
+            new LmBuildOptions());
+      double buildSeconds = (System.currentTimeMillis() - start) / 1000.0;
+
+      DiscountTuner tuner = new DiscountTuner(lm, testSentences(), intOption(
+            "threads", 1));
+      List<DiscountTuner.Result> results = new ArrayList<DiscountTuner.Result>();
+      results.add(tuner.tune(false));
+      if (booleanOption("modified")) results.add(tuner.tune(true));
+      System.out.println(String.format("Build: %.1fs", buildSeconds));
+      for (DiscountTuner.Result result : results) {
+         System.out.println(result + String.format(" (%.2fs each)",
+               result.seconds / result.numEvaluations));
+      }
+   }
+
+   void stats() throws JMException {
+      KneserNeyTrigramLm lm = new KneserNeyTrigramLm(trainingSentences(),
+            booleanOption("approximate"));
+      if (booleanOption("freeze")) lm.freeze();
+
+      LmStats stats = lm.stats();
+      System.out.println(stats);
+      System.out.println(stats.toJson());
+      stats.register("benchmark");
+      try {
+         Object bytes = ManagementFactory.getPlatformMBeanServer()
+               .getAttribute(new ObjectName(LmStats.DOMAIN
+                     + ":type=LanguageModel,name=\"benchmark\","
+                     + "component=trigramCounter"), "RetainedBytes");
+         System.out.println("Trigram counter over JMX: " + bytes + " bytes");
+      } finally {
+         stats.unregister();
+      }
+      Utils.reportMemoryUsage();
+   }
+
+   /**
+    * Check that the caches don't change the scores, and report their hit
+    * rates.
+    */
+   void cache() {
+      KneserNeyTrigramLm lm = new KneserNeyTrigramLm(trainingSentences(),
+            false);
+      int queries[][] = zipfQueries(index(testSentences()), NUM_QUERIES);
+
+      double logProb[] = scoreQueries(lm, queries);
+      int stripes = intOption("stripes", 16);
+      for (String capacity : option("capacities", "4096,65536,1048576")
+            .split(",")) {
+         for (CachedLanguageModel.Sharing sharing : CachedLanguageModel.Sharing
+               .values()) {
+            CachedLanguageModel cached = new CachedLanguageModel(lm,
+                  Integer.parseInt(capacity), sharing, stripes);
+            if (!Arrays.equals(scoreQueries(cached, queries), logProb)) {
+               throw new IllegalStateException("The cache changed the scores");
+            }
+            System.out.println(cached);
+         }
+      }
+   }
+
+   /**
+    * Return a model of the training sentences whose tables are sized to its
+    * n-grams, so they're as full as the load factor lets them be. With the
+    * default capacities the tables of a small corpus are mostly empty, and a
+    * miss is as cheap as a hit. The model is built twice, the second time
+    * with the sizes of the first.
+    */
+   static KneserNeyTrigramLm fullTablesLm(List<List<String>> training) {
+      KneserNeyTrigramLm lm = new KneserNeyTrigramLm(training, false);
+      LmBuildOptions buildOptions = new LmBuildOptions();
+      buildOptions.bigramCapacity = lm.bigramIndexer.size() + 1;
+      buildOptions.trigramCapacity = lm.trigramCounter.size() + 1;
+      lm = null;
+      return new KneserNeyTrigramLm(training, buildOptions);
+   }
+
+   /**
+    * Return the queries whose trigram the model hasn't seen.
+    */
+   static int[][] unseenQueries(KneserNeyTrigramLm lm, int queries[][]) {
+      List<int[]> unseen = new ArrayList<int[]>();
+      for (int query[] : queries) {
+         if (lm.getCount(query) == 0) unseen.add(query);
+      }
+      return unseen.toArray(new int[unseen.size()][]);
+   }
+
+   /**
+    * Check that the n-gram filters don't change the scores, since they only
+    * skip lookups, and report their memory and false positive rates.
+    */
+   void filters() {
+      List<List<String>> training = new ArrayList<List<String>>();
+      for (List<String> sentence : trainingSentences()) {
+         training.add(sentence);
+      }
+      KneserNeyTrigramLm lm = fullTablesLm(training);
+
+      int mixed[][] = sampleQueries(index(testSentences()), NUM_QUERIES);
+      int unseen[][] = unseenQueries(lm, mixed);
+      System.out.println(String.format("%d of %d queries are unseen "
+            + "trigrams", unseen.length, mixed.length));
+
+      double logProb[] = scoreQueries(lm, mixed);
+      for (String bits : option("bits", "6,10,16").split(",")) {
+         lm.buildFilters(Double.parseDouble(bits));
+         if (!Arrays.equals(scoreQueries(lm, mixed), logProb)) {
+            throw new IllegalStateException("The filters changed the scores");
+         }
+
+         // Rate at which the filters pass n-grams that weren't seen.
+         long bigrams = 0, passedBigrams = 0, trigrams = 0, passedTrigrams = 0;
+         for (int query[] : unseen) {
+            for (int i = 0; i < 2; i++) {
+               if (lm.bigramIndexer.get(query[i], query[i + 1]) == 0) {
+                  bigrams++;
+                  if (lm.bigramFilter.mightContain(Utils.pack(query[i],
+                        query[i + 1]))) {
+                     passedBigrams++;
+                  }
+               }
+            }
+            int word1word2 = lm.bigramIndexer.get(query[0], query[1]);
+            if (word1word2 > 0) {
+               trigrams++;
+               if (lm.trigramFilter.mightContain(Utils.pack(word1word2,
+                     query[2]))) {
+                  passedTrigrams++;
+               }
+            }
+         }
+         System.out.println(String.format("%s bits per n-gram: %.1fMB, "
+               + "%.2f%% of unseen bigrams and %.2f%% of unseen trigrams "
+               + "passed", bits, (lm.bigramFilter.bytes() + lm
+                     .trigramFilter.bytes()) / 1048576.0, 100.0
+                     * passedBigrams / Math.max(1, bigrams), 100.0
+                     * passedTrigrams / Math.max(1, trigrams)));
+      }
+   }
+
+   /**
+    * Count and index the bigrams of the training sentences and count their
+    * trigrams on several threads at once with a
+    * ConcurrentCrazilyPackedHashMap, a ConcurrentBigramIndexer and a
+    * ConcurrentTrigramCounter, and check the result against a
+    * CrazilyPackedHashMap, a BigramIndexer and a TrigramCounter filled on one
+    * thread. The
+    * concurrent tables start small and narrow, so they are resized and
+    * widened between chunks of sentences on the way, the way a builder would
+    * do it: updaters hold the read side of a lock, and resizing takes the
+    * write side.
+    */
+   void concurrent() throws InterruptedException {
+      List<List<String>> training = new ArrayList<List<String>>();
+      for (List<String> sentence : trainingSentences()) {
+         training.add(sentence);
+      }
+      final int sentences[][] = index(training);
+      final int numThreads = intOption("threads", 4);
+      final int chunkSize = 1000;
+      int largestChunk = 0;
+      for (int from = 0; from < sentences.length; from += chunkSize) {
+         int numBigrams = 0;
+         for (int s = from; s < Math.min(from + chunkSize, sentences.length);
+               s++) {
+            numBigrams += sentences[s].length - 1;
+         }
+         largestChunk = Math.max(largestChunk, numBigrams);
+      }
+      // Every chunk in flight may add this many entries.
+      final int room = largestChunk * numThreads;
+
+      long start = System.nanoTime();
+      CrazilyPackedHashMap expectedCounts = new CrazilyPackedHashMap(1000,
+            0.7f, -1L >>> 40, 20, 20);
+      BigramIndexer expectedIndexes = new BigramIndexer(1000, 0.7f);
+      TrigramCounter expectedTrigrams = new TrigramCounter(1000, 0.7f);
+      for (int words[] : sentences) {
+         for (int i = 1; i < words.length; i++) {
+            expectedCounts.adjustOrPutValue(words[i - 1], words[i], 1);
+            expectedIndexes.addAndGetIndex(words[i - 1], words[i]);
+            if (i > 1) {
+               expectedTrigrams.increaseCount(expectedIndexes.get(
+                     words[i - 2], words[i - 1]), words[i]);
+            }
+         }
+      }
+      double sequentialSeconds = (System.nanoTime() - start) / 1e9;
+
+      final ConcurrentCrazilyPackedHashMap counts =
+            new ConcurrentCrazilyPackedHashMap(1000, 0.7f, 8, 8);
+      final ConcurrentBigramIndexer indexes = new ConcurrentBigramIndexer(
+            1000, 0.7f, 8);
+      final ConcurrentTrigramCounter trigrams = new ConcurrentTrigramCounter(
+            1000, 0.7f, 8, 8);
+      final ReadWriteLock resizeLock = new ReentrantReadWriteLock();
+      final AtomicInteger nextChunk = new AtomicInteger();
+      final AtomicLong mismatches = new AtomicLong();
+      final List<Throwable> failures = Collections
+            .synchronizedList(new ArrayList<Throwable>());
+      Thread threads[] = new Thread[numThreads];
+      start = System.nanoTime();
+      for (int t = 0; t < numThreads; t++) {
+         threads[t] = new Thread() {
+            @Override
+            public void run() {
+               try {
+                  int from;
+                  while ((from = nextChunk.getAndAdd(chunkSize))
+                        < sentences.length) {
+                     int to = Math.min(from + chunkSize, sentences.length);
+                     int maxWord = 0;
+                     for (int s = from; s < to; s++) {
+                        for (int word : sentences[s]) {
+                           maxWord = Math.max(maxWord, word);
+                        }
+                     }
+                     resizeLock.readLock().lock();
+                     try {
+                        // No bigram index is above the capacity of the
+                        // indexer.
+                        while (!counts.hasRoom(room, maxWord, maxWord)
+                              || !indexes.hasRoom(room, maxWord, maxWord)
+                              || !trigrams.hasRoom(room, indexes.capacity(),
+                                    maxWord)) {
+                           resizeLock.readLock().unlock();
+                           resizeLock.writeLock().lock();
+                           try {
+                              counts.resize(room, maxWord, maxWord);
+                              indexes.resize(room, maxWord, maxWord);
+                              trigrams.resize(room, indexes.capacity(),
+                                    maxWord);
+                           } finally {
+                              resizeLock.readLock().lock();
+                              resizeLock.writeLock().unlock();
+                           }
+                        }
+                        for (int s = from; s < to; s++) {
+                           int words[] = sentences[s];
+                           for (int i = 1; i < words.length; i++) {
+                              counts.adjustOrPutValue(words[i - 1], words[i],
+                                    1);
+                              int index = indexes.addAndGetIndex(
+                                    words[i - 1], words[i]);
+                              if (indexes.get(words[i - 1], words[i])
+                                    != index) {
+                                 mismatches.incrementAndGet();
+                              }
+                              if (i > 1) {
+                                 trigrams.increaseCount(indexes.get(
+                                       words[i - 2], words[i - 1]), words[i]);
+                              }
+                           }
+                        }
+                     } finally {
+                        resizeLock.readLock().unlock();
+                     }
+                  }
+               } catch (Throwable e) {
+                  failures.add(e);
+               }
+            }
+         };
+         threads[t].start();
+      }
+      for (Thread thread : threads) thread.join();
+      double concurrentSeconds = (System.nanoTime() - start) / 1e9;
+      if (!failures.isEmpty()) {
+         throw new IllegalStateException("A thread failed", failures.get(0));
+      }
+
+      // Every bigram must have its count and a distinct index in 1..size.
+      boolean seen[] = new boolean[indexes.size() + 1];
+      for (long slot = 0; slot < expectedCounts.slotCount(); slot++) {
+         int count = expectedCounts.slotValue(slot);
+         if (count == 0) continue;
+         int w1 = expectedCounts.slotFirstKey(slot);
+         int w2 = expectedCounts.slotSecondKey(slot);
+         int index = indexes.get(w1, w2);
+         if (counts.get(w1, w2) != count || index < 1
+               || index >= seen.length || seen[index]) {
+            mismatches.incrementAndGet();
+         } else {
+            seen[index] = true;
+         }
+      }
+      if (counts.size() != expectedCounts.size()
+            || indexes.size() != expectedIndexes.size()
+            || counts.sum() != expectedCounts.sum()) {
+         mismatches.incrementAndGet();
+      }
+
+      // The trigrams are keyed by the bigram indexes of each side.
+      int firstWords[] = new int[expectedIndexes.size() + 1];
+      int secondWords[] = new int[expectedIndexes.size() + 1];
+      for (long slot = 0; slot < expectedCounts.slotCount(); slot++) {
+         if (expectedCounts.slotValue(slot) == 0) continue;
+         int w1 = expectedCounts.slotFirstKey(slot);
+         int w2 = expectedCounts.slotSecondKey(slot);
+         int bigram = expectedIndexes.get(w1, w2);
+         firstWords[bigram] = w1;
+         secondWords[bigram] = w2;
+      }
+      for (long slot = 0; slot < expectedTrigrams.slotCount(); slot++) {
+         int count = expectedTrigrams.slotValue(slot);
+         if (count == 0) continue;
+         int bigram = expectedTrigrams.slotFirstKey(slot);
+         int w3 = expectedTrigrams.slotSecondKey(slot);
+         if (trigrams.get(indexes.get(firstWords[bigram],
+               secondWords[bigram]), w3) != count) {
+            mismatches.incrementAndGet();
+         }
+      }
+      if (trigrams.size() != expectedTrigrams.size()
+            || trigrams.sum() != expectedTrigrams.sum()) {
+         mismatches.incrementAndGet();
+      }
+
+      // Removing shifts entries back; the rest must still be found.
+      int removed = 0;
+      for (long slot = 0; slot < expectedCounts.slotCount(); slot += 2) {
+         int count = expectedCounts.slotValue(slot);
+         if (count == 0) continue;
+         if (counts.remove(expectedCounts.slotFirstKey(slot), expectedCounts
+               .slotSecondKey(slot)) != count) {
+            mismatches.incrementAndGet();
+         }
+         removed++;
+      }
+      for (long slot = 1; slot < expectedCounts.slotCount(); slot += 2) {
+         int count = expectedCounts.slotValue(slot);
+         if (count != 0 && counts.get(expectedCounts.slotFirstKey(slot),
+               expectedCounts.slotSecondKey(slot)) != count) {
+            mismatches.incrementAndGet();
+         }
+      }
+      if (counts.size() != expectedCounts.size() - removed) {
+         mismatches.incrementAndGet();
+      }
+      counts.clear();
+      indexes.clear();
+      trigrams.clear();
+      if (counts.size() != 0 || indexes.size() != 0 || trigrams.size() != 0
+            || counts.sum() != 0 || indexes.get(sentences[0][0],
+                  sentences[0][1]) != 0
+            || indexes.addAndGetIndex(sentences[0][0], sentences[0][1]) != 1
+            || !counts.hasRoom(counts.capacity(), 0, 0)) {
+         mismatches.incrementAndGet();
+      }
+      System.out.println(String.format("%d bigrams, %d distinct, %d distinct "
+            + "trigrams: one thread %.2fs, %d threads %.2fs, %d mismatches",
+            expectedCounts.sum(), expectedCounts.size(),
+            expectedTrigrams.size(), sequentialSeconds,
+            numThreads, concurrentSeconds, mismatches.get()));
+      if (mismatches.get() > 0) {
+         throw new IllegalStateException("The concurrent tables don't match "
+               + "the sequential ones");
+      }
+   }
+
+   /**
+    * Build the model on one thread and with ParallelLmBuilder on every number
+    * of threads, and check that the models save to the same bytes.
+    */
+   void parallel() throws IOException {
+      List<List<String>> training = new ArrayList<List<String>>();
+      for (List<String> sentence : trainingSentences()) {
+         training.add(sentence);
+      }
+      int capacity = intOption("capacity", 0);
+      int keyBits = intOption("keyBits", 0);
+      File expected = null;
+      for (String threads : ("1," + option("threads", "2,4")).split(",")) {
+         LmBuildOptions buildOptions = new LmBuildOptions();
+         buildOptions.numThreads = Integer.parseInt(threads);
+         buildOptions.unigramCapacity = capacity;
+         buildOptions.bigramCapacity = capacity;
+         buildOptions.trigramCapacity = capacity;
+         buildOptions.wordBits = keyBits;
+         buildOptions.bigramBits = keyBits;
+         long start = System.nanoTime();
+         KneserNeyTrigramLm lm = new KneserNeyTrigramLm(training, buildOptions);
+         double seconds = (System.nanoTime() - start) / 1e9;
+         File file = File.createTempFile("model", ".snapshot");
+         file.deleteOnExit();
+         lm.save(file);
+         lm = null;
+         if (expected == null) {
+            expected = file;
+         } else {
+            boolean same = sameBytes(file, expected);
+            file.delete();
+            if (!same) {
+               throw new IllegalStateException("The model built with "
+                     + threads + " threads differs from the one built with "
+                     + "one");
+            }
+         }
+         System.out.println(String.format("%s threads: build %.1fs, "
+               + "snapshot of %d bytes%s", threads, seconds, expected
+               .length(), expected == file ? "" : ", the same as with one "
+               + "thread"));
+      }
+      expected.delete();
+   }
+
+   static boolean sameBytes(File a, File b) throws IOException {
+      if (a.length() != b.length()) return false;
+      DataInputStream inA = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(a)));
+      DataInputStream inB = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(b)));
+      try {
+         byte bufferA[] = new byte[1 << 16], bufferB[] = new byte[1 << 16];
+         for (long left = a.length(); left > 0; left -= bufferA.length) {
+            int length = (int) Math.min(left, bufferA.length);
+            inA.readFully(bufferA, 0, length);
+            inB.readFully(bufferB, 0, length);
+            if (!Arrays.equals(bufferA, bufferB)) return false;
+         }
+         return true;
+      } finally {
+         inA.close();
+         inB.close();
+      }
+   }
+
+   /**
+    * Return the log probability of every query.
+    */
+   static double[] scoreQueries(NgramLanguageModel lm, int queries[][]) {
+      double logProbs[] = new double[queries.length];
+      for (int i = 0; i < queries.length; i++) {
+         logProbs[i] = lm.getNgramLogProbability(queries[i], 0, 3);
+      }
+      return logProbs;
+   }
+
+   static void resetPeakHeap() {
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+      }
+   }
+
+   /**
+    * Return the sum of the peak usage of the heap pools since
+    * resetPeakHeap(). The pools peak at different times, so this is an upper
+    * bound.
+    */
+   static long peakHeapBytes() {
+      long bytes = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getType() == MemoryType.HEAP) {
+            bytes += pool.getPeakUsage().getUsed();
+         }
+      }
+      return bytes;
+   }
+
+   /**
+    * Build a model with every configuration and compare its trigram counts
+    * and perplexity to the exact model. The models are built from the same
+    * sentences in the same order, so they have the same bigram indexes and
+    * the counters can be compared key by key.
+    */
+   void compareToExact(List<String> names, List<LmBuildOptions> configurations) {
+      List<List<String>> training = new ArrayList<List<String>>();
+      for (List<String> sentence : trainingSentences()) {
+         training.add(sentence);
+      }
+      int test[][] = index(testSentences());
+
+      KneserNeyTrigramLm exactLm = new KneserNeyTrigramLm(training,
+            new LmBuildOptions());
+      TrigramCounter exact = (TrigramCounter) exactLm.trigramCounter;
+      double exactPerplexity = perplexity(exactLm, test);
+
+      // Random trigrams that were never seen: a seen bigram followed by a
+      // random word.
+      Random random = new Random(4);
+      int numBigrams = exactLm.bigramIndexer.size();
+      int numWords = EnglishWordIndexer.getIndexer().size();
+      int numProbes = intOption("probes", NUM_QUERIES);
+      long unseen[] = new long[numProbes];
+      for (int i = 0; i < numProbes;) {
+         int w1w2 = 1 + random.nextInt(numBigrams);
+         int w3 = random.nextInt(numWords);
+         if (exact.get(w1w2, w3) == 0) unseen[i++] = Utils.pack(w1w2, w3);
+      }
+
+      List<String> lines = new ArrayList<String>();
+      lines.add(String.format("Exact: %.1f MB, perplexity %.3f, %.1f ns/query",
+            exact.bytes() / 1048576.0, exactPerplexity, timeWindows(exactLm,
+                  test)));
+      for (int i = 0; i < configurations.size(); i++) {
+         KneserNeyTrigramLm lm = new KneserNeyTrigramLm(training,
+               configurations.get(i));
+         TrigramCounterInterface counter = lm.trigramCounter;
+
+         long falsePositives = 0;
+         for (long trigram : unseen) {
+            if (counter.get(Utils.left(trigram), Utils.right(trigram)) > 0) {
+               falsePositives++;
+            }
+         }
+         long wrongCounts = 0;
+         double relativeError = 0;
+         long slots = exact.slotCount();
+         for (long slot = 0; slot < slots; slot++) {
+            int count = exact.slotValue(slot);
+            if (count > 0) {
+               int estimate = counter.get(exact.slotFirstKey(slot),
+                     exact.slotSecondKey(slot));
+               if (estimate != count) wrongCounts++;
+               relativeError += Math.abs(estimate - count) / (double) count;
+            }
+         }
+         double perplexity = perplexity(lm, test);
+
+         String line = String.format("%s: %.1f MB, false positives %.4f%%,"
+               + " wrong counts %.4f%% (mean error %.2f%%), distinct trigrams"
+               + " %s, perplexity %.3f (%s), %.1f ns/query", names.get(i),
+               bytes(counter) / 1048576.0, 100.0 * falsePositives
+                     / unseen.length, 100.0 * wrongCounts / exact.size(),
+               100 * relativeError / exact.size(), percent((double) counter
+                     .size() / exact.size() - 1), perplexity,
+               percent(perplexity / exactPerplexity - 1), timeWindows(lm, test));
+         if (counter instanceof TrigramCounterApproximate) {
+            line += ", " + ((TrigramCounterApproximate) counter).numSaturated()
+                  + " capped updates";
+         }
+         lines.add(line);
+         lm = null;
+      }
+      for (String line : lines) System.out.println(line);
+   }
+
+   /**
+    * Return the number of bytes used by a trigram counter.
+    */
+   static long bytes(TrigramCounterInterface counter) {
+      if (counter instanceof TrigramCounter) {
+         return ((TrigramCounter) counter).bytes();
+      } else if (counter instanceof TrigramCounterApproximate) {
+         return ((TrigramCounterApproximate) counter).bytes();
+      } else if (counter instanceof CountMinTrigramCounter) {
+         return ((CountMinTrigramCounter) counter).bytes();
+      } else if (counter instanceof ExternalTrigramCounter) {
+         return ((ExternalTrigramCounter) counter).bytes();
+      }
+      return ((FrozenTrigramCounter) counter).bytes();
+   }
+
+   /**
+    * Return the total time spent in garbage collection so far.
+    */
+   static long gcMillis() {
+      long millis = 0;
+      for (GarbageCollectorMXBean bean : ManagementFactory
+            .getGarbageCollectorMXBeans()) {
+         millis += Math.max(0, bean.getCollectionTime());
+      }
+      return millis;
+   }
+
+   /**
+    * Return the average time in nanoseconds of scoring a word of the test
+    * sentences with the full history the model allows.
+    */
+   static double timeWindows(NgramLanguageModel lm, int sentences[][]) {
+      int order = lm.getOrder();
+      double best = Double.MAX_VALUE;
+      for (int round = 0; round < NUM_ROUNDS; round++) {
+         double sum = 0;
+         long numQueries = 0;
+         long start = System.nanoTime();
+         for (int words[] : sentences) {
+            for (int i = 2; i <= words.length; i++) {
+               sum += lm.getNgramLogProbability(words, Math.max(0, i - order),
+                     i);
+            }
+            numQueries += words.length - 1;
+         }
+         best = Math.min(best, (double) (System.nanoTime() - start)
+               / numQueries);
+         if (sum == 0) System.out.println();
+      }
+      return best;
+   }
+
+   /**
+    * Return the average time of a trigram query in nanoseconds.
+    */
+   static double timeQueries(KneserNeyTrigramLm lm, int queries[][],
+         boolean useTables) {
+      double sum = 0;
+      long start = System.nanoTime();
+      for (int ngram[] : queries) {
+         sum += useTables ? lm.getNgramLogProbability(ngram, 0, 3) : lm
+               .getExactLogProbability(ngram, 0, 3);
+      }
+      long elapsed = System.nanoTime() - start;
+      // Use the sum so the queries can't be optimized away.
+      if (sum == 0) System.out.println();
+      return (double) elapsed / queries.length;
+   }
+
+   static String percent(double fraction) {
+      return String.format("%+.3f%%", 100 * fraction);
+   }
+}
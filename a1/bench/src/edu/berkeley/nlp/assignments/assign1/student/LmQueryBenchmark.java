@@ -0,0 +1,147 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end latency of KneserNeyTrigramLm.getNgramLogProbability() for
+ * trigrams that were seen in training (hits) and trigrams that weren't
+ * (misses, which back off to the bigram level). The model is built from the
+ * synthetic Zipf corpus of LmBenchmark; the hits come from the training
+ * sentences and the misses from fresh sentences of the same distribution, so
+ * their words are known but the trigrams are new.
+ *
+ * batch and perCall score the same blocks of BATCH_SIZE trigrams, alternately
+ * hits and misses, with scoreBatch() and with one getNgramLogProbability()
+ * call each; their times are per trigram. LmBenchmark's batch mode checks
+ * that both give the same scores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xmx3g" })
+public class LmQueryBenchmark {
+
+   /**
+    * Number of trigrams in a query stream, a power of 2.
+    */
+   static final int NUM_QUERIES = 1 << 18;
+
+   /**
+    * Number of trigrams scored per scoreBatch() call.
+    */
+   static final int BATCH_SIZE = 1024;
+
+   @Param({ "200000" })
+   public int sentences;
+
+   @Param({ "false", "true" })
+   public boolean approximate;
+
+   KneserNeyTrigramLm lm;
+   int hits[][], misses[][];
+   int next;
+
+   /**
+    * The blocks of batch and perCall: as trigrams, and as the states of
+    * their first two words and their last words.
+    */
+   int batchTrigrams[][][];
+   long batchStates[][];
+   int batchWords[][];
+   double logProbs[] = new double[BATCH_SIZE];
+   int nextBatch;
+
+   @Setup
+   public void setUp() {
+      lm = new KneserNeyTrigramLm(LmBenchmark.zipfCorpus(sentences, 1),
+            approximate);
+      hits = trigrams(LmBenchmark.index(LmBenchmark.zipfCorpus(
+            NUM_QUERIES / 8, 1)), true);
+      misses = trigrams(LmBenchmark.index(LmBenchmark.zipfCorpus(
+            NUM_QUERIES / 8, 2)), false);
+
+      int numBatches = NUM_QUERIES / BATCH_SIZE;
+      batchTrigrams = new int[numBatches][BATCH_SIZE][];
+      batchStates = new long[numBatches][BATCH_SIZE];
+      batchWords = new int[numBatches][BATCH_SIZE];
+      for (int i = 0; i < NUM_QUERIES; i++) {
+         int trigram[] = (i & 1) == 0 ? hits[i] : misses[i];
+         int batch = i / BATCH_SIZE, j = i % BATCH_SIZE;
+         batchTrigrams[batch][j] = trigram;
+         batchStates[batch][j] = lm.getState(trigram[0], trigram[1]);
+         batchWords[batch][j] = trigram[2];
+      }
+   }
+
+   /**
+    * Collect NUM_QUERIES trigrams of the sentences that the model has seen,
+    * or hasn't seen, cycling through them if there aren't enough.
+    */
+   private int[][] trigrams(int sentences[][], boolean seen) {
+      int trigrams[][] = new int[NUM_QUERIES][];
+      int numTrigrams = 0;
+      for (int words[] : sentences) {
+         for (int i = 2; i < words.length && numTrigrams < NUM_QUERIES; i++) {
+            int trigram[] = { words[i - 2], words[i - 1], words[i] };
+            if ((lm.getCount(trigram) > 0) == seen) {
+               trigrams[numTrigrams++] = trigram;
+            }
+         }
+      }
+      if (numTrigrams == 0) {
+         throw new IllegalStateException("No " + (seen ? "seen" : "unseen")
+               + " trigrams in the query sentences");
+      }
+      for (int i = numTrigrams; i < NUM_QUERIES; i++) {
+         trigrams[i] = trigrams[i % numTrigrams];
+      }
+      return trigrams;
+   }
+
+   @Benchmark
+   public double hit() {
+      int trigram[] = hits[next++ & (NUM_QUERIES - 1)];
+      return lm.getNgramLogProbability(trigram, 0, 3);
+   }
+
+   @Benchmark
+   public double miss() {
+      int trigram[] = misses[next++ & (NUM_QUERIES - 1)];
+      return lm.getNgramLogProbability(trigram, 0, 3);
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(BATCH_SIZE)
+   public long batch() {
+      int batch = nextBatch++ & (NUM_QUERIES / BATCH_SIZE - 1);
+      return lm.scoreBatch(batchStates[batch], batchWords[batch], BATCH_SIZE,
+            logProbs, null);
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(BATCH_SIZE)
+   public double perCall() {
+      int trigrams[][] = batchTrigrams[nextBatch++
+            & (NUM_QUERIES / BATCH_SIZE - 1)];
+      double logProb = 0;
+      for (int trigram[] : trigrams) {
+         logProb += lm.getNgramLogProbability(trigram, 0, 3);
+      }
+      return logProb;
+   }
+}
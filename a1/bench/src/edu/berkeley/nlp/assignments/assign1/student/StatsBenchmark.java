@@ -0,0 +1,58 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to take the LmStats of a KneserNeyTrigramLm, which walks every hash
+ * table, compared to Utils.reportMemoryUsage(), which forces garbage
+ * collections of the whole heap. LmBenchmark's stats mode prints the stats
+ * and compares their total to the heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx3g" })
+public class StatsBenchmark {
+
+   @Param({ "200000" })
+   public int sentences;
+
+   @Param({ "false", "true" })
+   public boolean approximate;
+
+   @Param({ "false", "true" })
+   public boolean freeze;
+
+   KneserNeyTrigramLm lm;
+
+   @Setup
+   public void setUp() {
+      lm = new KneserNeyTrigramLm(LmBenchmark.zipfCorpus(sentences, 1),
+            approximate);
+      if (freeze) lm.freeze();
+   }
+
+   @Benchmark
+   public LmStats stats() {
+      return lm.stats();
+   }
+
+   @Benchmark
+   public void reportMemoryUsage() {
+      Utils.reportMemoryUsage();
+   }
+}
@@ -0,0 +1,91 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TrigramCounter compared to TrigramCounterApproximate: the time per
+ * increaseCount() while counting a stream of Zipf distributed trigrams into a
+ * new counter, and the time per get() of a counted trigram afterwards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class TrigramCounterBenchmark {
+
+   static final int NUM_TRIGRAMS = 1 << 21;
+
+   @Param({ "exact", "approximate" })
+   public String counter;
+
+   @Param({ "0.75" })
+   public float loadFactor;
+
+   int contexts[], words[];
+
+   /**
+    * A new counter for increaseCount(), and one that has counted the stream
+    * for get().
+    */
+   TrigramCounterInterface empty, counted;
+   int next;
+
+   @Setup
+   public void setUpStream() {
+      contexts = Zipf.sample(1 << 20, 1.0, NUM_TRIGRAMS, 1);
+      words = Zipf.sample(100000, 1.1, NUM_TRIGRAMS, 2);
+      for (int i = 0; i < NUM_TRIGRAMS; i++) contexts[i]++;
+      counted = newCounter();
+      count(counted);
+   }
+
+   @Setup(Level.Invocation)
+   public void setUpCounter() {
+      empty = newCounter();
+   }
+
+   private TrigramCounterInterface newCounter() {
+      if (counter.equals("exact")) {
+         return new TrigramCounter(NUM_TRIGRAMS, loadFactor);
+      } else if (counter.equals("approximate")) {
+         return new TrigramCounterApproximate(NUM_TRIGRAMS, loadFactor);
+      }
+      throw new IllegalArgumentException("Unknown counter " + counter);
+   }
+
+   private int count(TrigramCounterInterface trigramCounter) {
+      int last = 0;
+      for (int i = 0; i < NUM_TRIGRAMS; i++) {
+         last = trigramCounter.increaseCount(contexts[i], words[i]);
+      }
+      return last;
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(NUM_TRIGRAMS)
+   public int increaseCount() {
+      return count(empty);
+   }
+
+   @Benchmark
+   public int get() {
+      int i = next++ & (NUM_TRIGRAMS - 1);
+      return counted.get(contexts[i], words[i]);
+   }
+}
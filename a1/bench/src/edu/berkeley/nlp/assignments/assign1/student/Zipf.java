@@ -0,0 +1,42 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Zipf distributed ranks for the benchmarks: rank r is drawn with probability
+ * proportional to (r + 1)^-exponent, so like the n-grams of real text a few
+ * keys are looked up far more often than the rest. The streams are seeded, so
+ * every run of a benchmark sees the same keys.
+ */
+class Zipf {
+
+   final double cumulative[];
+   final double total;
+
+   Zipf(int numRanks, double exponent) {
+      cumulative = new double[numRanks];
+      double sum = 0;
+      for (int i = 0; i < numRanks; i++) {
+         sum += Math.pow(i + 1, -exponent);
+         cumulative[i] = sum;
+      }
+      total = sum;
+   }
+
+   int next(Random random) {
+      int rank = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+      return rank < 0 ? -rank - 1 : rank;
+   }
+
+   /**
+    * Return length ranks below numRanks.
+    */
+   static int[] sample(int numRanks, double exponent, int length, long seed) {
+      Zipf zipf = new Zipf(numRanks, exponent);
+      Random random = new Random(seed);
+      int ranks[] = new int[length];
+      for (int i = 0; i < length; i++) ranks[i] = zipf.next(random);
+      return ranks;
+   }
+}
@@ -0,0 +1,36 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Slots stored in an AtomicLongArray so that several threads can update them
+ * with compare-and-set.
+ */
+public class AtomicLongStorage extends LongStorage {
+
+   final AtomicLongArray data;
+
+   public AtomicLongStorage(int length) {
+      data = new AtomicLongArray(length);
+   }
+
+   @Override
+   public long get(long index) {
+      return data.get((int) index);
+   }
+
+   @Override
+   public void set(long index, long value) {
+      data.set((int) index, value);
+   }
+
+   public boolean compareAndSet(long index, long expect, long update) {
+      return data.compareAndSet((int) index, expect, update);
+   }
+
+   @Override
+   public long length() {
+      return data.length();
+   }
+
+}
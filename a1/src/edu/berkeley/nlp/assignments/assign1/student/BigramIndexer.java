@@ -7,10 +7,47 @@ package edu.berkeley.nlp.assignments.assign1.student;
  * @author rxin
  * 
  */
-public class BigramIndexer extends CrazilyPackedHashMap {
+public class BigramIndexer extends CrazilyPackedHashMap implements
+      BigramIndexerInterface {
 
    public BigramIndexer(int initialCapacity, float loadFactor) {
-      super(initialCapacity, loadFactor, 0x3FFFFFF, 19, 19);
+      this(initialCapacity, loadFactor, Probing.LINEAR);
+   }
+
+   public BigramIndexer(int initialCapacity, float loadFactor,
+         Probing probing) {
+      this(initialCapacity, loadFactor, probing, false);
+   }
+
+   public BigramIndexer(int initialCapacity, float loadFactor,
+         Probing probing, boolean offHeap) {
+      this(initialCapacity, loadFactor, probing, offHeap, 19);
+   }
+
+   /**
+    * Starts with numWordBits for each word; the indexes get the remaining
+    * bits. The layout widens when a word or an index outgrows its field.
+    */
+   public BigramIndexer(int initialCapacity, float loadFactor,
+         Probing probing, boolean offHeap, int numWordBits) {
+      super(initialCapacity, loadFactor, -1L >>> (2 * numWordBits),
+            numWordBits, numWordBits, probing, offHeap);
+   }
+
+   /**
+    * A copy of another indexer (see CrazilyPackedHashMap).
+    */
+   public BigramIndexer(BigramIndexer other, float loadFactor) {
+      super(other, loadFactor);
+   }
+
+   /**
+    * Wraps a table loaded from a snapshot.
+    */
+   BigramIndexer(LongStorage data, int size, long valueMask,
+         int numFirstWordBits, int numSecondWordBits, Probing probing) {
+      super(data, size, valueMask, numFirstWordBits, numSecondWordBits,
+            probing);
    }
 
    /**
@@ -0,0 +1,24 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+public interface BigramIndexerInterface {
+
+   /**
+    * Return the index of the bigram, or 0 if it hasn't been seen.
+    */
+   public abstract int get(int w1, int w2);
+
+   /**
+    * Return the index of the bigram, adding it if it's new. Indexes start
+    * at 1.
+    */
+   public abstract int addAndGetIndex(int w1, int w2);
+
+   public abstract int size();
+
+   /**
+    * Read the memory a lookup of the bigram starts with and return a value
+    * that depends on it (see TrigramCounterInterface.prefetch()).
+    */
+   public abstract long prefetch(int w1, int w2);
+
+}
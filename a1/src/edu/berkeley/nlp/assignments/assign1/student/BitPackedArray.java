@@ -0,0 +1,181 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * An array of unsigned integers that all use the same number of bits (at most
+ * 64), packed back to back into longs. Values may straddle two longs. sort()
+ * and search() order the values as unsigned, which matters once they take
+ * all 64 bits.
+ */
+public class BitPackedArray {
+
+   final LongStorage data;
+   final int bits;
+   final long mask;
+   final long length;
+
+   public BitPackedArray(long length, int bits) {
+      this(LongStorage.allocate(numLongs(length, bits), false), length, bits);
+   }
+
+   /**
+    * Wraps already packed storage, e.g. a region of a snapshot file.
+    */
+   public BitPackedArray(LongStorage data, long length, int bits) {
+      this.data = data;
+      this.length = length;
+      this.bits = bits;
+      this.mask = bits == 64 ? -1L : (1L << bits) - 1;
+   }
+
+   /**
+    * Return the number of longs needed to pack <tt>length</tt> values.
+    */
+   static long numLongs(long length, int bits) {
+      // One extra long so a straddling read never runs off the end.
+      return (length * bits + 63) / 64 + 1;
+   }
+
+   /**
+    * Return the number of bits needed to store values up to maxValue.
+    */
+   public static int bitsFor(long maxValue) {
+      return Math.max(1, 64 - Long.numberOfLeadingZeros(maxValue));
+   }
+
+   public long length() {
+      return length;
+   }
+
+   public int bits() {
+      return bits;
+   }
+
+   public long get(long index) {
+      long bitIndex = index * bits;
+      long word = bitIndex >>> 6;
+      int shift = (int) (bitIndex & 63);
+      long value = data.get(word) >>> shift;
+      if (shift + bits > 64) {
+         value |= data.get(word + 1) << (64 - shift);
+      }
+      return value & mask;
+   }
+
+   public void set(long index, long value) {
+      long bitIndex = index * bits;
+      long word = bitIndex >>> 6;
+      int shift = (int) (bitIndex & 63);
+      data.set(word, (data.get(word) & ~(mask << shift)) | (value << shift));
+      if (shift + bits > 64) {
+         int spilled = 64 - shift;
+         data.set(word + 1, (data.get(word + 1) & ~(mask >>> spilled))
+               | (value >>> spilled));
+      }
+   }
+
+   /**
+    * Search the values in [from, to), which must be sorted and distinct when
+    * shifted right by <tt>shift</tt>, for <tt>key</tt>. Return its index or
+    * -1.
+    * 
+    * Word indexes are close to uniformly spread within a group, so the search
+    * guesses the position by interpolation. Every other step bisects instead,
+    * which keeps skewed ranges from taking more than twice the steps of a
+    * binary search.
+    */
+   public long search(long from, long to, long key, int shift) {
+      long target = unsigned(key);
+      long lo = from, hi = to - 1;
+      boolean bisect = false;
+      while (hi - lo > 4) {
+         long loKey = unsigned(get(lo) >>> shift);
+         long hiKey = unsigned(get(hi) >>> shift);
+         if (target < loKey || target > hiKey) return -1;
+         long mid;
+         if (bisect) {
+            mid = (lo + hi) >>> 1;
+         } else {
+            mid = lo + (long) (unsignedToDouble(target - loKey)
+                  / unsignedToDouble(hiKey - loKey) * (hi - lo));
+         }
+         bisect = !bisect;
+         long midKey = unsigned(get(mid) >>> shift);
+         if (midKey == target) return mid;
+         if (midKey < target) {
+            lo = mid + 1;
+         } else {
+            hi = mid - 1;
+         }
+      }
+      for (long i = lo; i <= hi; i++) {
+         long k = unsigned(get(i) >>> shift);
+         if (k == target) return i;
+         if (k > target) break;
+      }
+      return -1;
+   }
+
+   /**
+    * Sort the values in [from, to) in increasing order.
+    */
+   public void sort(long from, long to) {
+      while (to - from > 16) {
+         // Median of three.
+         long a = unsigned(get(from)), b = unsigned(get((from + to) >>> 1));
+         long c = unsigned(get(to - 1));
+         long pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+         long i = from, j = to - 1;
+         while (i <= j) {
+            while (unsigned(get(i)) < pivot) i++;
+            while (unsigned(get(j)) > pivot) j--;
+            if (i <= j) {
+               long t = get(i);
+               set(i, get(j));
+               set(j, t);
+               i++;
+               j--;
+            }
+         }
+         // Recurse into the smaller half.
+         if (j - from < to - i) {
+            sort(from, j + 1);
+            from = i;
+         } else {
+            sort(i, to);
+            to = j + 1;
+         }
+      }
+      for (long i = from + 1; i < to; i++) {
+         long v = get(i);
+         long j = i - 1;
+         while (j >= from && unsigned(get(j)) > unsigned(v)) {
+            set(j + 1, get(j));
+            j--;
+         }
+         set(j + 1, v);
+      }
+   }
+
+   /**
+    * Return the value with its top bit flipped. Comparing flipped values as
+    * signed longs orders the values as unsigned ones.
+    */
+   private static long unsigned(long value) {
+      return value ^ Long.MIN_VALUE;
+   }
+
+   /**
+    * Return the unsigned value as a double.
+    */
+   private static double unsignedToDouble(long value) {
+      return value >= 0 ? value : (double) (value >>> 1) * 2;
+   }
+
+   /**
+    * Return the bytes held by the packed values.
+    */
+   public long bytes() {
+      return 8L * data.length();
+   }
+
+}
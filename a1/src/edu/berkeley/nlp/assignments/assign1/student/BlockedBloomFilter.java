@@ -0,0 +1,129 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * A Bloom filter over packed long keys whose bits for a key all lie in one
+ * block of 512 bits, the size of a cache line. Where a BloomFilter reads
+ * numHashes random words, and so takes up to numHashes cache misses, this
+ * takes one: the block is picked by the high half of the mixed key (as in
+ * fastRange()), and the bits within it by double hashing of the low half.
+ *
+ * Crowding the bits of a key into a block makes some blocks fuller than
+ * others, so at the same size the false positive rate is a little higher
+ * than a BloomFilter's: about 1% at 10 bits per key and 0.25% at 16,
+ * against 0.8% and 0.05%. The filter is meant to be filled once and then
+ * only read, which is safe from many threads.
+ *
+ * The array isn't aligned to cache lines, so a block may straddle two of
+ * them; the second one is next to the first and usually prefetched with it.
+ */
+public class BlockedBloomFilter {
+
+   /**
+    * Longs per block.
+    */
+   static final int BLOCK_LONGS = 8;
+
+   static final int BLOCK_BITS = BLOCK_LONGS * 64;
+
+   final long bits[];
+   final int numBlocks;
+   final int numHashes;
+
+   /**
+    * A filter of numBlocks blocks of 512 bits that sets numHashes bits per
+    * key.
+    */
+   public BlockedBloomFilter(int numBlocks, int numHashes) {
+      if (numBlocks < 1 || numBlocks > Integer.MAX_VALUE / BLOCK_LONGS
+            || numHashes < 1) {
+         throw new IllegalArgumentException("Bad blocked Bloom filter: "
+               + numBlocks + " blocks, " + numHashes + " hashes");
+      }
+      this.bits = new long[numBlocks * BLOCK_LONGS];
+      this.numBlocks = numBlocks;
+      this.numHashes = numHashes;
+   }
+
+   /**
+    * Return a filter with about bitsPerKey bits for each of numKeys keys and
+    * the number of hashes that suits it.
+    */
+   public static BlockedBloomFilter forKeys(long numKeys, double bitsPerKey) {
+      long numBlocks = (long) Math.ceil(Math.max(1, numKeys) * bitsPerKey
+            / BLOCK_BITS);
+      if (numBlocks > Integer.MAX_VALUE / BLOCK_LONGS) {
+         throw new IllegalArgumentException("A filter of " + bitsPerKey
+               + " bits for each of " + numKeys + " keys is too large");
+      }
+      return new BlockedBloomFilter((int) numBlocks,
+            BloomFilter.optimalNumHashes(bitsPerKey));
+   }
+
+   /**
+    * Return about the bits per key a BloomFilter needs for the given false
+    * positive rate, -ln(rate) / ln(2)^2. A blocked filter of that size comes
+    * out somewhat above the rate; give it a bit or two more per key.
+    */
+   public static double bitsPerKey(double falsePositiveRate) {
+      if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+         throw new IllegalArgumentException("Bad false positive rate "
+               + falsePositiveRate);
+      }
+      return -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+   }
+
+   /**
+    * Add the key; return true if it was not in the filter before.
+    */
+   public boolean add(long key) {
+      long hash = HashFunctions.mix(key);
+      int base = HashFunctions.fastRange(hash, numBlocks) * BLOCK_LONGS;
+      int bit = (int) hash;
+      int step = (int) (hash >>> 23) | 1;
+      boolean added = false;
+      for (int i = 0; i < numHashes; i++) {
+         int index = base + ((bit >>> 6) & (BLOCK_LONGS - 1));
+         long mask = 1L << bit;
+         if ((bits[index] & mask) == 0) {
+            bits[index] |= mask;
+            added = true;
+         }
+         bit += step;
+      }
+      return added;
+   }
+
+   /**
+    * Return whether the key may have been added.
+    */
+   public boolean mightContain(long key) {
+      long hash = HashFunctions.mix(key);
+      int base = HashFunctions.fastRange(hash, numBlocks) * BLOCK_LONGS;
+      int bit = (int) hash;
+      int step = (int) (hash >>> 23) | 1;
+      for (int i = 0; i < numHashes; i++) {
+         int index = base + ((bit >>> 6) & (BLOCK_LONGS - 1));
+         if ((bits[index] & (1L << bit)) == 0) return false;
+         bit += step;
+      }
+      return true;
+   }
+
+   /**
+    * Return the fraction of the bits that are set. With a fraction f set and
+    * k hashes a key that wasn't added passes with a probability of about
+    * f^k, a little more since the blocks aren't evenly full.
+    */
+   public double fillRatio() {
+      long set = 0;
+      for (long word : bits) set += Long.bitCount(word);
+      return (double) set / (64L * bits.length);
+   }
+
+   /**
+    * Return the number of bytes used by the bits.
+    */
+   public long bytes() {
+      return 8L * bits.length;
+   }
+}
@@ -0,0 +1,80 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * A Bloom filter over packed long keys. A key is looked up in numHashes bits
+ * picked by double hashing of the mixed key; the filter may claim to contain
+ * a key that was never added, but never misses one that was.
+ *
+ * With n keys in m bits and k = (m / n) ln 2 hashes the false positive rate
+ * is about 0.6185^(m / n), e.g. 2% at 8 bits per key and 0.05% at 16.
+ */
+public class BloomFilter {
+
+   final LongStorage bits;
+   final long numBits;
+   final int numHashes;
+
+   /**
+    * A filter of numBits bits (rounded up to a multiple of 64) that sets
+    * numHashes bits per key.
+    */
+   public BloomFilter(long numBits, int numHashes, boolean offHeap) {
+      if (numBits < 64 || numHashes < 1) {
+         throw new IllegalArgumentException("Bad Bloom filter: " + numBits
+               + " bits, " + numHashes + " hashes");
+      }
+      long numLongs = (numBits + 63) >>> 6;
+      this.bits = LongStorage.allocate(numLongs, offHeap);
+      this.numBits = numLongs << 6;
+      this.numHashes = numHashes;
+   }
+
+   /**
+    * Return the number of hashes that minimizes the false positive rate for
+    * the given number of bits per key.
+    */
+   public static int optimalNumHashes(double bitsPerKey) {
+      return Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+   }
+
+   /**
+    * Add the key; return true if it was not in the filter before.
+    */
+   public boolean add(long key) {
+      long hash = HashFunctions.mix(key);
+      long step = hash >>> 32 | 1;
+      boolean added = false;
+      for (int i = 0; i < numHashes; i++) {
+         long bit = HashFunctions.fastRange(hash, numBits);
+         long word = bits.get(bit >>> 6);
+         long mask = 1L << bit;
+         if ((word & mask) == 0) {
+            bits.set(bit >>> 6, word | mask);
+            added = true;
+         }
+         hash += step * 0x9E3779B97F4A7C15L;
+      }
+      return added;
+   }
+
+   /**
+    * Return whether the key may have been added.
+    */
+   public boolean mightContain(long key) {
+      long hash = HashFunctions.mix(key);
+      long step = hash >>> 32 | 1;
+      for (int i = 0; i < numHashes; i++) {
+         long bit = HashFunctions.fastRange(hash, numBits);
+         if ((bits.get(bit >>> 6) & (1L << bit)) == 0) return false;
+         hash += step * 0x9E3779B97F4A7C15L;
+      }
+      return true;
+   }
+
+   /**
+    * Return the number of bytes used by the bits.
+    */
+   public long bytes() {
+      return numBits >>> 3;
+   }
+}
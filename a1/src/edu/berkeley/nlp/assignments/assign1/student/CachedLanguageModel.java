@@ -0,0 +1,390 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+
+/**
+ * A bounded cache of log probabilities in front of any NgramLanguageModel.
+ * A decoder scores the same few n-grams over and over, across hypotheses and
+ * sentences, and every one of those lookups misses the CPU cache in the
+ * model's large tables; this cache keeps the recent ones in a small table
+ * that stays in cache.
+ *
+ * The cache is keyed on the word ids of the n-gram packed in one long, 21
+ * bits per word, so it only holds unigrams, bigrams and trigrams of word ids
+ * below 2^21 - 1; anything else goes straight to the model. Like
+ * CrazilyPackedHashMap it's open addressed over primitive arrays, but a key
+ * can only be in the WAYS slots of its bucket, so lookups are bounded and an
+ * entry can be replaced in place. When a bucket is full the entry to evict is
+ * picked by CLOCK: a hand sweeps the bucket, clearing the reference bit of
+ * every entry used since the last sweep (the sign bit of the key, which the
+ * packing leaves free) and evicting the first one that hasn't been. This is
+ * the usual approximation of LRU without the cost of keeping entries in
+ * order. New entries start unreferenced, so n-grams that are used only once
+ * are the first to go.
+ *
+ * There are two ways to share the cache between threads:
+ * <ul>
+ * <li>STRIPED: one cache split into stripes by hash, each behind its own
+ * lock, so threads rarely wait on each other and share what they cache.
+ * <li>THREAD_LOCAL: a cache of the full capacity per thread, without locks;
+ * best when every thread decodes its own sentences. The cache of a thread is
+ * kept as long as this is.
+ * </ul>
+ * The model itself is called outside any lock.
+ *
+ * The hits, misses and evictions are counted, and the latency of one lookup
+ * in SAMPLE_INTERVAL is measured, so a cache can be sized per deployment;
+ * they're available through getters, toString() and JMX (see register()).
+ * The counters are read without locking, so they're approximate while
+ * queries run, and the latencies include reading the clock.
+ */
+public class CachedLanguageModel implements NgramLanguageModel,
+      CachedLanguageModelMBean {
+
+   public enum Sharing {
+      STRIPED, THREAD_LOCAL
+   }
+
+   /**
+    * Slots per bucket.
+    */
+   static final int WAYS = 8;
+
+   static final int WORD_BITS = 21;
+
+   /**
+    * Largest word id that can be cached; word + 1 is stored so that no key is
+    * 0, the empty slot.
+    */
+   static final int MAX_WORD = (1 << WORD_BITS) - 2;
+
+   static final long REFERENCED = Long.MIN_VALUE;
+
+   /**
+    * One lookup in this many is timed.
+    */
+   static final int SAMPLE_INTERVAL = 64;
+
+   /**
+    * One stripe of a striped cache, or the cache of one thread.
+    */
+   static final class Table {
+      final long keys[];
+      final double values[];
+
+      /**
+       * Position of the CLOCK hand in every bucket.
+       */
+      final byte hands[];
+      final int bucketMask;
+
+      long size;
+      long lookups;
+      long hits;
+      long evictions;
+      long hitNanos, numTimedHits;
+      long missNanos, numTimedMisses;
+
+      Table(int numBuckets) {
+         keys = new long[numBuckets * WAYS];
+         values = new double[numBuckets * WAYS];
+         hands = new byte[numBuckets];
+         bucketMask = numBuckets - 1;
+      }
+
+      /**
+       * Return the value of the key, or NaN on a miss. If start isn't 0 the
+       * time since is recorded as the latency of a hit.
+       */
+      double get(long key, long hash, long start) {
+         lookups++;
+         int base = ((int) hash & bucketMask) * WAYS;
+         for (int i = base; i < base + WAYS; i++) {
+            long slot = keys[i];
+            if ((slot & ~REFERENCED) == key) {
+               if (slot > 0) keys[i] = slot | REFERENCED;
+               hits++;
+               if (start != 0) {
+                  hitNanos += System.nanoTime() - start;
+                  numTimedHits++;
+               }
+               return values[i];
+            }
+            // Buckets fill up from the front and never empty again.
+            if (slot == 0) break;
+         }
+         return Double.NaN;
+      }
+
+      /**
+       * Add the value of the key after a miss, evicting an entry if its
+       * bucket is full. If start isn't 0 the time since is recorded as the
+       * latency of a miss.
+       */
+      void put(long key, long hash, double value, long start) {
+         if (start != 0) {
+            missNanos += System.nanoTime() - start;
+            numTimedMisses++;
+         }
+         int bucket = (int) hash & bucketMask;
+         int base = bucket * WAYS;
+         for (int i = base; i < base + WAYS; i++) {
+            long slot = keys[i];
+            if ((slot & ~REFERENCED) == key) {
+               // Another thread put it first.
+               values[i] = value;
+               return;
+            }
+            if (slot == 0) {
+               keys[i] = key;
+               values[i] = value;
+               size++;
+               return;
+            }
+         }
+
+         int hand = hands[bucket];
+         while (keys[base + hand] < 0) {
+            keys[base + hand] &= ~REFERENCED;
+            hand = (hand + 1) & (WAYS - 1);
+         }
+         keys[base + hand] = key;
+         values[base + hand] = value;
+         hands[bucket] = (byte) ((hand + 1) & (WAYS - 1));
+         evictions++;
+      }
+   }
+
+   final NgramLanguageModel lm;
+   final Sharing sharing;
+   final int numBucketsPerTable;
+
+   /**
+    * The stripes of a striped cache; null for THREAD_LOCAL.
+    */
+   final Table stripes[];
+   final int stripeMask;
+   final ThreadLocal<Table> local;
+
+   /**
+    * All the tables, for the counters.
+    */
+   final List<Table> tables = Collections
+         .synchronizedList(new ArrayList<Table>());
+
+   /**
+    * Cache up to capacity n-grams (rounded up to a power of 2): in total over
+    * numStripes stripes (rounded up to a power of 2) if STRIPED, or per
+    * thread if THREAD_LOCAL, which ignores numStripes.
+    */
+   public CachedLanguageModel(NgramLanguageModel lm, int capacity,
+         Sharing sharing, int numStripes) {
+      if (capacity < 1 || numStripes < 1) {
+         throw new IllegalArgumentException("Bad capacity " + capacity
+               + " or number of stripes " + numStripes);
+      }
+      this.lm = lm;
+      this.sharing = sharing;
+      if (sharing == Sharing.STRIPED) {
+         numStripes = nextPowerOfTwo(numStripes);
+         numBucketsPerTable = nextPowerOfTwo(Math.max(1, capacity / WAYS
+               / numStripes));
+         stripes = new Table[numStripes];
+         for (int i = 0; i < numStripes; i++) {
+            stripes[i] = new Table(numBucketsPerTable);
+            tables.add(stripes[i]);
+         }
+         stripeMask = numStripes - 1;
+         local = null;
+      } else {
+         numBucketsPerTable = nextPowerOfTwo(Math.max(1, capacity / WAYS));
+         stripes = null;
+         stripeMask = 0;
+         local = new ThreadLocal<Table>() {
+            @Override
+            protected Table initialValue() {
+               Table table = new Table(numBucketsPerTable);
+               tables.add(table);
+               return table;
+            }
+         };
+      }
+   }
+
+   private static int nextPowerOfTwo(int n) {
+      int power = Integer.highestOneBit(n);
+      return power == n ? n : power << 1;
+   }
+
+   /**
+    * Return the ids of the n-gram packed into a key, or 0 if it can't be
+    * cached.
+    */
+   static long key(int ngram[], int from, int to) {
+      if (to - from < 1 || to - from > 3) return 0;
+      long key = 0;
+      for (int i = from; i < to; i++) {
+         int word = ngram[i];
+         if (word < 0 || word > MAX_WORD) return 0;
+         key = (key << WORD_BITS) | (word + 1);
+      }
+      return key;
+   }
+
+   @Override
+   public int getOrder() {
+      return lm.getOrder();
+   }
+
+   @Override
+   public double getNgramLogProbability(int[] ngram, int from, int to) {
+      long key = key(ngram, from, to);
+      if (key == 0) return lm.getNgramLogProbability(ngram, from, to);
+      long hash = HashFunctions.mix(key);
+      Table table = stripes != null ? stripes[(int) (hash >>> 32)
+            & stripeMask] : local.get();
+
+      // Reading the counter outside the lock only makes the sampling a
+      // little uneven.
+      long start = (table.lookups & (SAMPLE_INTERVAL - 1)) == 0 ? System
+            .nanoTime() : 0;
+      double value;
+      if (stripes != null) {
+         synchronized (table) {
+            value = table.get(key, hash, start);
+         }
+      } else {
+         value = table.get(key, hash, start);
+      }
+      if (!Double.isNaN(value)) return value;
+
+      value = lm.getNgramLogProbability(ngram, from, to);
+      if (stripes != null) {
+         synchronized (table) {
+            table.put(key, hash, value, start);
+         }
+      } else {
+         table.put(key, hash, value, start);
+      }
+      return value;
+   }
+
+   /**
+    * Counts aren't cached.
+    */
+   @Override
+   public long getCount(int[] ngram) {
+      return lm.getCount(ngram);
+   }
+
+   /**
+    * Return a copy of the tables, to read their counters.
+    */
+   private Table[] tables() {
+      synchronized (tables) {
+         return tables.toArray(new Table[tables.size()]);
+      }
+   }
+
+   /**
+    * Return the number of slots of all the tables.
+    */
+   public long getCapacity() {
+      return (long) tables().length * numBucketsPerTable * WAYS;
+   }
+
+   public long getSize() {
+      long size = 0;
+      for (Table table : tables()) size += table.size;
+      return size;
+   }
+
+   public long getHits() {
+      long hits = 0;
+      for (Table table : tables()) hits += table.hits;
+      return hits;
+   }
+
+   public long getMisses() {
+      long misses = 0;
+      for (Table table : tables()) misses += table.lookups - table.hits;
+      return misses;
+   }
+
+   public long getEvictions() {
+      long evictions = 0;
+      for (Table table : tables()) evictions += table.evictions;
+      return evictions;
+   }
+
+   public double getHitRate() {
+      long hits = getHits(), misses = getMisses();
+      return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+   }
+
+   /**
+    * Return the average time of a lookup that hit the cache.
+    */
+   public double getAverageHitNanos() {
+      long nanos = 0, count = 0;
+      for (Table table : tables()) {
+         nanos += table.hitNanos;
+         count += table.numTimedHits;
+      }
+      return count == 0 ? 0 : (double) nanos / count;
+   }
+
+   /**
+    * Return the average time of a lookup that missed, including the call to
+    * the model.
+    */
+   public double getAverageMissNanos() {
+      long nanos = 0, count = 0;
+      for (Table table : tables()) {
+         nanos += table.missNanos;
+         count += table.numTimedMisses;
+      }
+      return count == 0 ? 0 : (double) nanos / count;
+   }
+
+   /**
+    * Zero the counters, but keep what's cached.
+    */
+   public void resetCounters() {
+      for (Table table : tables()) {
+         table.lookups = table.hits = table.evictions = 0;
+         table.hitNanos = table.numTimedHits = 0;
+         table.missNanos = table.numTimedMisses = 0;
+      }
+   }
+
+   /**
+    * Register the counters with the platform MBean server under
+    * edu.berkeley.nlp.assign1:type=CachedLanguageModel,name=name, and return
+    * the name to unregister them with.
+    */
+   public ObjectName register(String name) throws JMException {
+      ObjectName objectName = new ObjectName(LmStats.DOMAIN
+            + ":type=CachedLanguageModel,name=" + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+            objectName);
+      return objectName;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("%s cache: %d/%d entries, %d hits (%.1f%%), %d "
+            + "misses, %d evictions, %.0fns per hit, %.0fns per miss",
+            sharing, getSize(), getCapacity(), getHits(), 100 * getHitRate(),
+            getMisses(), getEvictions(), getAverageHitNanos(),
+            getAverageMissNanos());
+   }
+}
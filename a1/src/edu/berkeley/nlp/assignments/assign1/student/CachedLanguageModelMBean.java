@@ -0,0 +1,25 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * JMX view of the counters of a CachedLanguageModel.
+ */
+public interface CachedLanguageModelMBean {
+
+   long getCapacity();
+
+   long getSize();
+
+   long getHits();
+
+   long getMisses();
+
+   long getEvictions();
+
+   double getHitRate();
+
+   double getAverageHitNanos();
+
+   double getAverageMissNanos();
+
+   void resetCounters();
+}
@@ -0,0 +1,205 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.List;
+import java.util.Locale;
+
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Memory and hash table health of one structure of a language model, taken
+ * without forcing a garbage collection:
+ * <ul>
+ * <li>retainedBytes: the bytes the structure holds on to, on or off the heap,
+ * computed from its arrays and tables rather than measured on the heap.
+ * <li>entries and slots: what the structure holds and the room it has for
+ * it; for an array, the indexes in use and its length. occupancy is their
+ * ratio (NaN for a structure that only reports its bytes).
+ * <li>loadFactor: the occupancy at which a hash table grows (NaN if it
+ * doesn't).
+ * <li>averageProbeLength and maxProbeLength: the number of slots a lookup of
+ * a stored key reads, 1 for a key in its home slot (NaN and -1 if the
+ * structure isn't a hash table or doesn't store its keys).
+ * </ul>
+ * The probe lengths are found by walking every slot, so taking the stats of
+ * a large table takes a moment, but it doesn't allocate anything.
+ */
+public class ComponentStats implements ComponentStatsMBean {
+
+   /**
+    * Estimated bytes per word of a StringIndexer besides its characters: the
+    * String and its array headers, the list reference and the slots of the
+    * open hash map. The indexer isn't ours, so its layout is estimated.
+    */
+   static final int STRING_INDEXER_BYTES_PER_WORD = 60;
+
+   public final String name;
+   public final String type;
+   public final long retainedBytes;
+   public final long entries;
+   public final long slots;
+   public final float loadFactor;
+   public final double averageProbeLength;
+   public final long maxProbeLength;
+
+   ComponentStats(String name, Object structure, long retainedBytes,
+         long entries, long slots, float loadFactor,
+         double averageProbeLength, long maxProbeLength) {
+      this.name = name;
+      this.type = structure.getClass().getSimpleName();
+      this.retainedBytes = retainedBytes;
+      this.entries = entries;
+      this.slots = slots;
+      this.loadFactor = loadFactor;
+      this.averageProbeLength = averageProbeLength;
+      this.maxProbeLength = maxProbeLength;
+   }
+
+   /**
+    * Stats of an int array of which the first used indexes are in use.
+    */
+   static ComponentStats ofArray(String name, int array[], long used) {
+      return new ComponentStats(name, array, 4L * array.length, used,
+            array.length, Float.NaN, Double.NaN, -1);
+   }
+
+   /**
+    * Stats of a structure that only has a size in bytes.
+    */
+   static ComponentStats ofBytes(String name, Object structure, long bytes) {
+      return new ComponentStats(name, structure, bytes, 0, 0, Float.NaN,
+            Double.NaN, -1);
+   }
+
+   static ComponentStats ofWords(String name, StringIndexer indexer) {
+      long bytes = 0;
+      for (int i = 0; i < indexer.size(); i++) {
+         bytes += STRING_INDEXER_BYTES_PER_WORD + 2L * indexer.get(i).length();
+      }
+      return new ComponentStats(name, indexer, bytes, indexer.size(),
+            indexer.size(), Float.NaN, Double.NaN, -1);
+   }
+
+   /**
+    * Stats of any of the bigram indexers or trigram counters.
+    */
+   static ComponentStats of(String name, Object structure) {
+      if (structure instanceof CrazilyPackedHashMap) {
+         CrazilyPackedHashMap map = (CrazilyPackedHashMap) structure;
+         long probes[] = map.probeLengths();
+         return new ComponentStats(name, map, map.bytes(), map.size(),
+               map.slotCount(), map.loadFactor < 1 ? map.loadFactor
+                     : Float.NaN, map.size() == 0 ? 0 : (double) probes[0]
+                     / map.size(), probes[1]);
+      } else if (structure instanceof CrazilyPackedHashMapApproximate) {
+         CrazilyPackedHashMapApproximate map = (CrazilyPackedHashMapApproximate) structure;
+         return new ComponentStats(name, map, map.bytes(), map.size(),
+               map.slotCount(), Float.NaN, Double.NaN, -1);
+      } else if (structure instanceof ExternalTrigramCounter) {
+         ExternalTrigramCounter counter = (ExternalTrigramCounter) structure;
+         return new ComponentStats(name, counter, counter.bytes(),
+               counter.size(), counter.bufferCapacity, Float.NaN, Double.NaN,
+               -1);
+      } else if (structure instanceof CountMinTrigramCounter) {
+         CountMinTrigramCounter counter = (CountMinTrigramCounter) structure;
+         return new ComponentStats(name, counter, counter.bytes(),
+               counter.size(), counter.size(), Float.NaN, Double.NaN, -1);
+      } else if (structure instanceof FrozenTrigramCounter) {
+         FrozenTrigramCounter counter = (FrozenTrigramCounter) structure;
+         return new ComponentStats(name, counter, counter.bytes(),
+               counter.size(), counter.size(), Float.NaN, Double.NaN, -1);
+      } else if (structure instanceof FrozenBigramIndexer) {
+         FrozenBigramIndexer indexer = (FrozenBigramIndexer) structure;
+         return new ComponentStats(name, indexer, indexer.bytes(),
+               indexer.size(), indexer.size(), Float.NaN, Double.NaN, -1);
+      }
+      throw new IllegalArgumentException("No stats for "
+            + structure.getClass().getName());
+   }
+
+   public double occupancy() {
+      return slots == 0 ? Double.NaN : (double) entries / slots;
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public String getType() {
+      return type;
+   }
+
+   public long getRetainedBytes() {
+      return retainedBytes;
+   }
+
+   public long getEntries() {
+      return entries;
+   }
+
+   public long getSlots() {
+      return slots;
+   }
+
+   public double getOccupancy() {
+      return occupancy();
+   }
+
+   public float getLoadFactor() {
+      return loadFactor;
+   }
+
+   public double getAverageProbeLength() {
+      return averageProbeLength;
+   }
+
+   public long getMaxProbeLength() {
+      return maxProbeLength;
+   }
+
+   /**
+    * Return the stats as a JSON object. Values that don't apply are null.
+    */
+   public String toJson() {
+      return "{\"name\": \"" + name + "\", \"type\": \"" + type
+            + "\", \"retainedBytes\": " + retainedBytes + ", \"entries\": "
+            + entries + ", \"slots\": " + slots + ", \"occupancy\": "
+            + json(occupancy()) + ", \"loadFactor\": " + json(loadFactor)
+            + ", \"averageProbeLength\": " + json(averageProbeLength)
+            + ", \"maxProbeLength\": "
+            + (maxProbeLength < 0 ? "null" : String.valueOf(maxProbeLength))
+            + "}";
+   }
+
+   /**
+    * Return the stats as a table, one structure per line, with their total
+    * retained bytes at the end.
+    */
+   static String table(List<ComponentStats> components) {
+      StringBuilder table = new StringBuilder();
+      long bytes = 0;
+      for (ComponentStats stats : components) {
+         table.append(stats).append('\n');
+         bytes += stats.retainedBytes;
+      }
+      return table.append(String.format("%-47s %9.1fMB", "Total",
+            bytes / 1048576.0)).toString();
+   }
+
+   private static String json(double value) {
+      return Double.isNaN(value) ? "null" : String.format(Locale.US, "%.4f",
+            value);
+   }
+
+   @Override
+   public String toString() {
+      String line = String.format("%-20s %-26s %9.1fMB", name, type,
+            retainedBytes / 1048576.0);
+      if (slots == 0) return line;
+      return line
+            + String.format(" %11d/%-11d %5.1f%%", entries, slots,
+                  100 * occupancy())
+            + (Double.isNaN(averageProbeLength) ? "" : String.format(
+                  "  load factor %.2f, probes %.2f avg %d max", loadFactor,
+                  averageProbeLength, maxProbeLength));
+   }
+}
@@ -0,0 +1,25 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * JMX view of a ComponentStats (see LmStats.register()).
+ */
+public interface ComponentStatsMBean {
+
+   String getName();
+
+   String getType();
+
+   long getRetainedBytes();
+
+   long getEntries();
+
+   long getSlots();
+
+   double getOccupancy();
+
+   float getLoadFactor();
+
+   double getAverageProbeLength();
+
+   long getMaxProbeLength();
+}
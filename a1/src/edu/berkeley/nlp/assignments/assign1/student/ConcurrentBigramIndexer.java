@@ -0,0 +1,156 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A BigramIndexer that many threads can add to and query at once. Indexes
+ * are handed out without gaps, starting at 1, in whatever order the threads
+ * get to their bigrams; ParallelLmBuilder renumbers them afterwards.
+ *
+ * The bigrams and their indexes are kept in a ConcurrentCrazilyPackedHashMap.
+ * A new bigram is inserted in two steps: the slot is first claimed with the
+ * key and a PENDING value (the all ones value field), then the index is
+ * taken and written over it. A thread that finds a PENDING slot for its own
+ * key waits for the index to show up; get() treats PENDING slots as not
+ * there yet. Room for the slot is reserved before it is claimed, and the
+ * value field is always wider than the number of entries the table can
+ * hold, so once a slot is claimed its index always fits.
+ *
+ * The map is wrapped rather than extended, so that its adjustOrPutValue()
+ * and remove(), which would break the indexes, aren't part of the indexer.
+ */
+public class ConcurrentBigramIndexer implements BigramIndexerInterface {
+
+   final ConcurrentCrazilyPackedHashMap map;
+   final AtomicInteger nextIndex = new AtomicInteger();
+
+   public ConcurrentBigramIndexer(int initialCapacity, float loadFactor) {
+      this(initialCapacity, loadFactor, 19);
+   }
+
+   /**
+    * Starts with numWordBits for each word, like BigramIndexer; resize()
+    * widens them.
+    */
+   public ConcurrentBigramIndexer(int initialCapacity, float loadFactor,
+         int numWordBits) {
+      map = new ConcurrentCrazilyPackedHashMap(initialCapacity, loadFactor,
+            numWordBits, numWordBits);
+   }
+
+   /**
+    * Return the index of (w1, w2), or 0 if it has not been added.
+    */
+   @Override
+   public int get(int w1, int w2) {
+      int value = map.get(w1, w2);
+      return value == map.valueMask ? 0 : value;
+   }
+
+   /**
+    * Return the number of bigrams that have an index.
+    */
+   @Override
+   public int size() {
+      return nextIndex.get();
+   }
+
+   @Override
+   public long prefetch(int w1, int w2) {
+      return map.prefetch(w1, w2);
+   }
+
+   /**
+    * Adds a new bigram to the indexer.
+    *
+    * @return The index of bigram, starting at 1.
+    */
+   @Override
+   public int addAndGetIndex(int w1, int w2) {
+      long key = map.checkedKey(w1, w2);
+      long pending = map.valueMask;
+      AtomicLongStorage slots = map.slots;
+      long length = slots.length();
+      long index = map.homePosition(key);
+      while (true) {
+         long slot = slots.get(index);
+         if (slot == 0) {
+            map.claimSlot();
+            if (slots.compareAndSet(index, 0, key | pending)) {
+               // At most capacity() slots are claimed, so this is < pending.
+               int bigramIndex = nextIndex.incrementAndGet();
+               slots.set(index, key | bigramIndex);
+               return bigramIndex;
+            }
+            map.count.decrementAndGet();
+         } else if ((slot & map.keyMask) == key) {
+            long value = slot & map.valueMask;
+            if (value != pending) return (int) value;
+            Thread.yield();
+         } else {
+            index++;
+            if (index == length) index = 0;
+         }
+      }
+   }
+
+   /**
+    * Return the number of bigrams the indexer can hold before it has to be
+    * resized.
+    */
+   public int capacity() {
+      return map.capacity();
+   }
+
+   /**
+    * See ConcurrentCrazilyPackedHashMap.hasRoom().
+    */
+   public boolean hasRoom(int numBigrams, int maxWord1, int maxWord2) {
+      return map.hasRoom(numBigrams, maxWord1, maxWord2);
+   }
+
+   /**
+    * See ConcurrentCrazilyPackedHashMap.resize(); no other thread may use the
+    * indexer until this returns.
+    */
+   public void resize(int numBigrams, int maxWord1, int maxWord2) {
+      map.resize(numBigrams, maxWord1, maxWord2);
+   }
+
+   /**
+    * Remove all bigrams; the next one added gets index 1 again. No other
+    * thread may use the indexer until this returns.
+    */
+   public void clear() {
+      map.clear();
+      nextIndex.set(0);
+   }
+
+   /**
+    * Return the number of slots. Slots can be walked with slotIndex(),
+    * slotFirstWord() and slotSecondWord(); empty slots have an index of zero.
+    */
+   public long slotCount() {
+      return map.slotCount();
+   }
+
+   public int slotIndex(long slot) {
+      return map.slotValue(slot);
+   }
+
+   public int slotFirstWord(long slot) {
+      return map.slotFirstKey(slot);
+   }
+
+   public int slotSecondWord(long slot) {
+      return map.slotSecondKey(slot);
+   }
+
+   /**
+    * Return the number of bytes used by the slots.
+    */
+   public long bytes() {
+      return map.bytes();
+   }
+
+}
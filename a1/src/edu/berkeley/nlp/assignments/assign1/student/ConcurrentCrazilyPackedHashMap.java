@@ -0,0 +1,237 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A CrazilyPackedHashMap that can be read and updated by many threads at once
+ * without a global lock. Since a key and its value share a single long, every
+ * update is one compare-and-set on that slot: claiming an empty slot installs
+ * the key and the value together, and adjusting a value replaces the whole
+ * slot. A thread that loses a race simply reads the slot again.
+ *
+ * Entries can't be moved by a compare-and-set, so the table doesn't grow or
+ * change its layout by itself, and always uses linear probing. Instead the
+ * owner checks hasRoom() before a batch of updates and calls resize() when
+ * there isn't, which grows the table and widens the key fields the same way
+ * CrazilyPackedHashMap does, but only while no other thread uses the map
+ * (e.g. under the write side of a lock whose read side the updaters hold).
+ * An update that doesn't fit anyway throws an IllegalStateException before
+ * it touches the table. remove() and clear() move entries too, so they have
+ * the same restriction.
+ */
+public class ConcurrentCrazilyPackedHashMap extends CrazilyPackedHashMap {
+
+   AtomicLongStorage slots;
+   final AtomicInteger count = new AtomicInteger();
+
+   /**
+    * Maximum number of entries at the load factor. At least one slot always
+    * stays empty so that probing for a missing key stops.
+    */
+   int maxSize;
+
+   final float maxLoadFactor;
+
+   public ConcurrentCrazilyPackedHashMap(int initialCapacity,
+         float loadFactor, int numFirstKeyBits, int numSecondKeyBits) {
+      this(new AtomicLongStorage(tableLength(initialCapacity, loadFactor)),
+            loadFactor, numFirstKeyBits, numSecondKeyBits);
+   }
+
+   private ConcurrentCrazilyPackedHashMap(AtomicLongStorage slots,
+         float loadFactor, int numFirstKeyBits, int numSecondKeyBits) {
+      super(slots, 0, -1L >>> (numFirstKeyBits + numSecondKeyBits),
+            numFirstKeyBits, numSecondKeyBits, Probing.LINEAR);
+      this.slots = slots;
+      this.maxLoadFactor = loadFactor;
+      this.maxSize = maxSize(slots.length());
+      if (valueMask <= maxSize) {
+         throw new IllegalArgumentException("Values of " + numValueBits
+               + " bits can't count " + maxSize + " entries");
+      }
+   }
+
+   private int maxSize(long length) {
+      return (int) Math.min((long) (length * (double) maxLoadFactor),
+            length - 1);
+   }
+
+   @Override
+   public int size() {
+      return count.get();
+   }
+
+   /**
+    * Return the number of entries the table can hold before it has to be
+    * resized.
+    */
+   public int capacity() {
+      return maxSize;
+   }
+
+   /**
+    * Return whether numEntries more entries, with keys up to maxKey1 and
+    * maxKey2, fit without resize().
+    */
+   public boolean hasRoom(int numEntries, int maxKey1, int maxKey2) {
+      return (long) count.get() + numEntries <= maxSize
+            && maxKey1 <= maxFirstKey && maxKey2 <= maxSecondKey;
+   }
+
+   /**
+    * Grow the table and widen its fields so that numEntries more entries,
+    * with keys up to maxKey1 and maxKey2, fit. The key fields take the bits
+    * they need from the value field, which has to keep enough for the values
+    * in the table and for counting the entries. No other thread may use the
+    * map until this returns.
+    */
+   public void resize(int numEntries, int maxKey1, int maxKey2) {
+      if (maxKey1 < 0 || maxKey2 < 0 || numEntries < 0) {
+         throw new IllegalArgumentException("Bad resize: " + numEntries
+               + " entries, keys up to (" + maxKey1 + ", " + maxKey2 + ")");
+      }
+      long length = slots.length();
+      long capacity = (long) count.get() + numEntries;
+      long newLength = length;
+      if (capacity > maxSize) {
+         if (capacity >= Integer.MAX_VALUE / 2) {
+            throw new IllegalStateException("Hash table can't hold "
+                  + capacity + " entries");
+         }
+         newLength = Math.max(PrimeFinder.nextPrime((int) Math.min(
+               2 * length, Integer.MAX_VALUE / 2)), tableLength(
+               (int) capacity, maxLoadFactor));
+      }
+
+      // What the fields have to hold.
+      long maxValue = maxSize(newLength);
+      for (long i = 0; i < length; i++) {
+         maxValue = Math.max(maxValue, slots.get(i) & valueMask);
+      }
+      int newFirstBits = Math.max(numFirstKeyBits, BitPackedArray
+            .bitsFor(maxKey1));
+      int newSecondBits = Math.max(numSecondKeyBits, BitPackedArray
+            .bitsFor(maxKey2));
+      int valueBits = BitPackedArray.bitsFor(maxValue + 1);
+      if (newFirstBits > 32 || newSecondBits > 32
+            || newFirstBits + newSecondBits + valueBits > 64) {
+         throw new IllegalStateException("Keys of " + newFirstBits + " and "
+               + newSecondBits + " bits and values of " + valueBits
+               + " bits don't fit in 64 bits");
+      }
+      if (newLength == length && newFirstBits == numFirstKeyBits
+            && newSecondBits == numSecondKeyBits) {
+         return;
+      }
+      System.out.println("Resizing concurrent hash table from " + length
+            + " slots, " + numFirstKeyBits + "/" + numSecondKeyBits
+            + " key bits to " + newLength + " slots, " + newFirstBits + "/"
+            + newSecondBits + " key bits");
+
+      // Unpack everything with the old layout, then repack with the new one.
+      AtomicLongStorage oldSlots = slots;
+      long oldValueMask = valueMask;
+      int oldSecondKeyBits = numSecondKeyBits;
+      int oldValueBits = numValueBits;
+      setLayout(-1L >>> (newFirstBits + newSecondBits), newFirstBits,
+            newSecondBits);
+      slots = new AtomicLongStorage((int) newLength);
+      data = slots;
+      maxSize = maxSize(newLength);
+      for (long i = 0; i < length; i++) {
+         long entry = oldSlots.get(i);
+         if (entry == 0) continue;
+         int key1 = (int) (entry >>> (oldSecondKeyBits + oldValueBits));
+         int key2 = (int) ((entry >>> oldValueBits)
+               & ((1L << oldSecondKeyBits) - 1));
+         insert(getKey(key1, key2) | (entry & oldValueMask));
+      }
+   }
+
+   /**
+    * Adjust or put the value and return the value.
+    */
+   @Override
+   public int adjustOrPutValue(int key1, int key2, int adjustAmount) {
+      long key = checkedKey(key1, key2);
+      long length = slots.length();
+      long index = homePosition(key);
+      while (true) {
+         long slot = slots.get(index);
+         if (slot == 0) {
+            checkValue(adjustAmount);
+            claimSlot();
+            if (slots.compareAndSet(index, 0, key | adjustAmount)) {
+               return adjustAmount;
+            }
+            // Somebody else took the slot; look at it again.
+            count.decrementAndGet();
+         } else if ((slot & keyMask) == key) {
+            checkValue((slot & valueMask) + adjustAmount);
+            long updated = slot + adjustAmount;
+            if (slots.compareAndSet(index, slot, updated)) {
+               return (int) (updated & valueMask);
+            }
+         } else {
+            index++;
+            if (index == length) index = 0;
+         }
+      }
+   }
+
+   /**
+    * Return the key of (key1, key2), which must fit the layout.
+    */
+   protected long checkedKey(int key1, int key2) {
+      if (!fits(key1, key2)) {
+         throw new IllegalStateException("(" + key1 + ", " + key2
+               + ") doesn't fit in " + numFirstKeyBits + "/"
+               + numSecondKeyBits + " key bits");
+      }
+      return getKey(key1, key2);
+   }
+
+   protected void checkValue(long value) {
+      if (value < 0 || value >= valueMask) {
+         throw new IllegalStateException("Value " + value + " doesn't fit in "
+               + numValueBits + " bits");
+      }
+   }
+
+   /**
+    * Reserve room for a new entry before claiming its slot, so that a full
+    * table fails without leaving anything behind.
+    */
+   protected void claimSlot() {
+      if (count.incrementAndGet() > maxSize) {
+         count.decrementAndGet();
+         throw new IllegalStateException("Hash table is full (" + maxSize
+               + " entries in " + slots.length() + " slots)");
+      }
+   }
+
+   /**
+    * Remove (key1, key2) and return its value, or 0 if it was not there.
+    * This shifts the following entries back, which a compare-and-set can't
+    * do, so like resize() it may only run while no other thread uses the
+    * map.
+    */
+   @Override
+   public int remove(int key1, int key2) {
+      // A value may be 0, so that doesn't tell whether the key was there.
+      if (indexOf(key1, key2) < 0) return 0;
+      count.decrementAndGet();
+      return super.remove(key1, key2);
+   }
+
+   /**
+    * Remove all entries, keeping the length and layout of the table. Like
+    * resize() this may only run while no other thread uses the map.
+    */
+   @Override
+   public void clear() {
+      super.clear();
+      count.set(0);
+   }
+
+}
@@ -0,0 +1,45 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * A TrigramCounter that many threads can update and query at once, e.g. to
+ * keep serving a model while a live feed adds counts. It's keyed like
+ * TrigramCounter by (w1w2, w3), starting with the given widths, but counts
+ * can't spill to a side table: the owner keeps room for the next batch with
+ * hasRoom() and resize() (see ConcurrentCrazilyPackedHashMap), and a count
+ * that outgrows its field throws an IllegalStateException.
+ */
+public class ConcurrentTrigramCounter extends ConcurrentCrazilyPackedHashMap
+      implements TrigramCounterInterface {
+
+   public ConcurrentTrigramCounter(int initialCapacity, float loadFactor) {
+      this(initialCapacity, loadFactor, 23, 19);
+   }
+
+   public ConcurrentTrigramCounter(int initialCapacity, float loadFactor,
+         int numBigramBits, int numWordBits) {
+      super(initialCapacity, loadFactor, numBigramBits, numWordBits);
+   }
+
+   /* (non-Javadoc)
+    * @see edu.berkeley.nlp.assignments.assign1.student.TrigramCounterInterface#increaseCount(int, int)
+    */
+   @Override
+   public int increaseCount(int w1w2, int w3) {
+      return adjustOrPutValue(w1w2, w3, 1);
+   }
+
+   /* (non-Javadoc)
+    * @see edu.berkeley.nlp.assignments.assign1.student.TrigramCounterInterface#reportTopTrigram()
+    */
+   @Override
+   public void reportTopTrigram() {
+      long maxCount = 0;
+      long slots = slotCount();
+      for (long i = 0; i < slots; i++) {
+         long value = slotValue(i);
+         if (value > maxCount) maxCount = value;
+      }
+      System.out.println("Top trigram count: " + maxCount);
+   }
+
+}
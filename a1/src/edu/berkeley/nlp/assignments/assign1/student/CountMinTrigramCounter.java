@@ -0,0 +1,230 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * Trigram counts in a count-min sketch, so that the memory is fixed up front
+ * no matter how long the corpus is. Every trigram is hashed to one counter in
+ * each of numRows rows and its count is estimated by the smallest of them.
+ * The estimate is never below the true count; with conservative update (only
+ * the counters below the new estimate are raised) it's usually much closer
+ * than with a plain count-min sketch.
+ *
+ * KneserNeyTrigramLm learns that a trigram is new when increaseCount()
+ * returns 1, which the sketch alone would miss whenever all the counters of a
+ * new trigram already hold some other trigram's count. So the trigrams seen
+ * are also added to a Bloom filter: a trigram is new if it's not in the
+ * filter, and only the filter's false positives (a small fixed share, see
+ * BloomFilter) are taken for trigrams already seen. size() counts the new
+ * trigrams. Lookups check the filter too, so that an unseen trigram whose
+ * counters all happen to be taken still gets a count of 0.
+ *
+ * Optionally, trigrams whose estimate reaches heavyHitterThreshold are moved
+ * to a small exact TrigramCounter, so the most frequent trigrams, which most
+ * queries hit, stop picking up the noise of the sketch. The table takes no
+ * more trigrams once it holds heavyHitterCapacity of them, so it never grows.
+ *
+ * Estimates can be far above the true counts, even above the count of the
+ * trigram's first bigram; KneserNeyTrigramLm clamps them to that, but the
+ * distribution it computes from them is no longer normalized.
+ *
+ * Counters are 32 bits and saturate. Counts can't be decreased. Like the
+ * other counters, this one must not be updated from several threads, but it
+ * can be queried from several once it's built.
+ */
+public class CountMinTrigramCounter implements TrigramCounterInterface {
+
+   final BitPackedArray counters;
+   final int numRows;
+   final long rowLength;
+   final long maxCount;
+
+   final BloomFilter seen;
+
+   final TrigramCounter heavyHitters;
+   final int heavyHitterCapacity;
+   final int heavyHitterThreshold;
+
+   int size;
+   long sum;
+
+   /**
+    * Positions of the trigram being updated in every row.
+    */
+   final long positions[];
+
+   /**
+    * Sketch of sketchBytes bytes in numRows rows, plus a Bloom filter of
+    * filterBytes bytes. With heavyHitterCapacity > 0, up to that many
+    * trigrams seen at least heavyHitterThreshold times are counted exactly.
+    */
+   public CountMinTrigramCounter(long sketchBytes, int numRows,
+         long filterBytes, int heavyHitterCapacity, int heavyHitterThreshold,
+         boolean offHeap) {
+      if (numRows < 1 || sketchBytes < 4L * numRows || filterBytes < 8) {
+         throw new IllegalArgumentException("Bad sketch: " + sketchBytes
+               + " bytes in " + numRows + " rows, " + filterBytes
+               + " filter bytes");
+      }
+      this.numRows = numRows;
+      this.rowLength = sketchBytes / 4 / numRows;
+      this.maxCount = 0xFFFFFFFFL;
+      counters = new BitPackedArray(LongStorage.allocate(
+            BitPackedArray.numLongs(numRows * rowLength, 32), offHeap),
+            numRows * rowLength, 32);
+      positions = new long[numRows];
+
+      // The filter is sized for as many trigrams as there are counters. With
+      // more the sketch is far off anyway.
+      long filterBits = 8 * filterBytes;
+      seen = new BloomFilter(filterBits, BloomFilter.optimalNumHashes(
+            (double) filterBits / (numRows * rowLength)), offHeap);
+
+      this.heavyHitterCapacity = heavyHitterCapacity;
+      this.heavyHitterThreshold = heavyHitterThreshold;
+      heavyHitters = heavyHitterCapacity > 0 ? new TrigramCounter(
+            heavyHitterCapacity, KneserNeyTrigramLm.loadFactor,
+            CrazilyPackedHashMap.Probing.LINEAR, offHeap) : null;
+
+      System.out.println(String.format("Count-min sketch: %d x %d counters,"
+            + " %d hash Bloom filter of %.1f MB", numRows, rowLength,
+            seen.numHashes, seen.bytes() / 1048576.0));
+   }
+
+   /**
+    * Return the estimated count of the trigram with the given mixed key, and
+    * store its positions if positions isn't null.
+    */
+   private long estimate(long hash, long positions[]) {
+      // Double hashing: row i uses hash + i * step.
+      long step = HashFunctions.mix(hash) | 1;
+      long estimate = maxCount;
+      for (int i = 0; i < numRows; i++) {
+         long position = i * rowLength
+               + HashFunctions.fastRange(hash, rowLength);
+         if (positions != null) positions[i] = position;
+         estimate = Math.min(estimate, counters.get(position));
+         hash += step;
+      }
+      return estimate;
+   }
+
+   /**
+    * Add to the count and return the new count, which is exactly 1 for a
+    * trigram seen for the first time (but for Bloom filter false positives).
+    */
+   @Override
+   public int increaseCount(int w1w2, int w3) {
+      return adjustOrPutValue(w1w2, w3, 1);
+   }
+
+   @Override
+   public int adjustOrPutValue(int key1, int key2, int adjustAmount) {
+      if (adjustAmount < 0) {
+         throw new IllegalArgumentException(
+               "Counts in a count-min sketch can't be decreased");
+      }
+      sum += adjustAmount;
+      if (heavyHitters != null) {
+         int count = heavyHitters.get(key1, key2);
+         if (count > 0) {
+            return heavyHitters.adjustOrPutValue(key1, key2, adjustAmount);
+         }
+      }
+
+      long hash = HashFunctions.mix(Utils.pack(key1, key2));
+      long estimate = estimate(hash, positions);
+      // The filter mixes the hash again, so its bits don't collide together
+      // with the counters. A trigram whose counters are all zero can't have
+      // been seen either.
+      boolean isNew = seen.add(hash) || estimate == 0;
+      if (isNew) {
+         size++;
+         // Counters shared with other trigrams overestimate; the true count
+         // is known.
+         estimate = 0;
+      }
+      long count = Math.min(maxCount, estimate + adjustAmount);
+
+      // Conservative update: raise only the counters below the new count.
+      for (int i = 0; i < numRows; i++) {
+         if (counters.get(positions[i]) < count) {
+            counters.set(positions[i], count);
+         }
+      }
+
+      if (heavyHitters != null && count >= heavyHitterThreshold
+            && heavyHitters.size() < heavyHitterCapacity) {
+         heavyHitters.adjustOrPutValue(key1, key2, (int) Math.min(count,
+               Integer.MAX_VALUE));
+      }
+      return (int) Math.min(count, Integer.MAX_VALUE);
+   }
+
+   @Override
+   public int get(int key1, int key2) {
+      if (heavyHitters != null) {
+         int count = heavyHitters.get(key1, key2);
+         if (count > 0) return count;
+      }
+      long hash = HashFunctions.mix(Utils.pack(key1, key2));
+      if (!seen.mightContain(hash)) return 0;
+      return (int) Math.min(estimate(hash, null), Integer.MAX_VALUE);
+   }
+
+   /**
+    * The sketch has no per trigram slots; a seen trigram is reported at its
+    * position in the first row.
+    */
+   @Override
+   public long indexOf(int key1, int key2) {
+      if (get(key1, key2) == 0) return -1;
+      return HashFunctions.fastRange(HashFunctions.mix(Utils.pack(key1, key2)),
+            rowLength);
+   }
+
+   @Override
+   public long prefetch(int key1, int key2) {
+      long hash = HashFunctions.mix(Utils.pack(key1, key2));
+      return counters.get(HashFunctions.fastRange(hash, rowLength));
+   }
+
+   /**
+    * Return the number of distinct trigrams counted.
+    */
+   @Override
+   public int size() {
+      return size;
+   }
+
+   /**
+    * Return the exact total of all counts.
+    */
+   @Override
+   public long sum() {
+      return sum;
+   }
+
+   @Override
+   public void reportTopTrigram() {
+      long top = 0;
+      for (long i = 0; i < rowLength; i++) {
+         top = Math.max(top, counters.get(i));
+      }
+      if (heavyHitters != null) {
+         long slots = heavyHitters.slotCount();
+         for (long slot = 0; slot < slots; slot++) {
+            top = Math.max(top, heavyHitters.slotValue(slot));
+         }
+      }
+      System.out.println("Top trigram count: " + top + " (estimate)"
+            + (heavyHitters != null ? ", " + heavyHitters.size()
+                  + " heavy hitters counted exactly" : ""));
+   }
+
+   /**
+    * Return the number of bytes used.
+    */
+   public long bytes() {
+      return counters.bytes() + seen.bytes()
+            + (heavyHitters != null ? heavyHitters.bytes() : 0);
+   }
+}
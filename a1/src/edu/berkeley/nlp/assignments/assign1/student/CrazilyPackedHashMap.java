@@ -3,21 +3,85 @@ package edu.berkeley.nlp.assignments.assign1.student;
 /**
  * A very compact hash map. It is so compact that it has only one array for
  * data. Both the keys and the values are packed in the same data array.
- * 
+ *
+ * The table grows when the number of entries crosses the load factor: all
+ * entries are rehashed into a new table with a prime length at least twice as
+ * large. Tables wrapping existing storage (e.g. a memory mapped snapshot)
+ * don't grow. Slots are addressed with longs, so with chunked storage a table
+ * can have more than 2^31 slots (it still holds at most 2^31 - 1 entries).
+ *
+ * Collisions are resolved by one of two probing schemes, chosen per map:
+ * <ul>
+ * <li>LINEAR: plain linear probing. Inserts are cheapest, but at high load
+ * factors the probe sequences for missing keys get very long.
+ * <li>ROBIN_HOOD: linear probing where an insert takes the slot of any entry
+ * that is closer to its home slot than the new entry is, and a lookup stops
+ * as soon as it passes entries closer to home than the key would be. This
+ * keeps the probe lengths short and even up to a load factor of 0.9+, at the
+ * price of moving entries on insert. Removal shifts the following entries
+ * back instead of leaving tombstones.
+ * </ul>
+ * Both schemes place keys with HashFunctions.mix(), which spreads the packed
+ * keys far better than the old xor-fold.
+ *
+ * The layout (how many of the 64 bits go to each key and to the value) is
+ * only a starting point. When a key doesn't fit its field, or a value doesn't
+ * fit and the map can't spill it, the table is repacked in place with wider
+ * fields, taking the bits from the other fields where they have room to
+ * spare. A map that spills values (a counter) keeps values too large for the
+ * value field in a side table instead; their field then holds valueMask. If
+ * no layout fits, an IllegalStateException is thrown rather than letting a
+ * key or a value run into its neighbor.
+ *
  * @author rxin
- * 
+ *
  */
 public class CrazilyPackedHashMap {
-   
+
+   public enum Probing {
+      LINEAR, ROBIN_HOOD
+   }
+
+   /**
+    * Smallest value field of a map that spills values. Below this most values
+    * would end up in the side table.
+    */
+   static final int MIN_SPILL_VALUE_BITS = 8;
+
    // 0x3FFFFF = 22 bits of 1.
    protected long valueMask = 0x3FFFFF;
    protected long keyMask = ~valueMask;
    protected int numFirstKeyBits = 23;
    protected int numSecondKeyBits = 19;
    protected int numValueBits = 64 - numFirstKeyBits - numSecondKeyBits;
-   
+
+   /**
+    * Largest keys that fit in their fields.
+    */
+   long maxFirstKey;
+   long maxSecondKey;
+
    int size;
-   long data[];
+   LongStorage data;
+
+   /**
+    * Grow the table when size reaches this.
+    */
+   long threshold;
+   float loadFactor;
+
+   Probing probing = Probing.LINEAR;
+
+   /**
+    * Whether values that don't fit in the value field go to the side table
+    * (counts), or force a wider layout (indexes).
+    */
+   boolean spillValues = false;
+
+   /**
+    * Values that didn't fit in their field, by Utils.pack(key1, key2).
+    */
+   LongIntHashMap spilled = new LongIntHashMap();
 
    /**
     * Initializes the hash table to a prime capacity which is at least
@@ -25,19 +89,100 @@ public class CrazilyPackedHashMap {
     */
    public CrazilyPackedHashMap(int initialCapacity, float loadFactor,
          long valueMask, int numFirstKeyBits, int numSecondKeyBits) {
-      
+      this(initialCapacity, loadFactor, valueMask, numFirstKeyBits,
+            numSecondKeyBits, Probing.LINEAR);
+   }
+
+   public CrazilyPackedHashMap(int initialCapacity, float loadFactor,
+         long valueMask, int numFirstKeyBits, int numSecondKeyBits,
+         Probing probing) {
+      this(initialCapacity, loadFactor, valueMask, numFirstKeyBits,
+            numSecondKeyBits, probing, false);
+   }
+
+   /**
+    * With offHeap set the slots are kept in direct buffers outside the Java
+    * heap (see OffHeapLongStorage), and stay there when the table grows.
+    */
+   public CrazilyPackedHashMap(int initialCapacity, float loadFactor,
+         long valueMask, int numFirstKeyBits, int numSecondKeyBits,
+         Probing probing, boolean offHeap) {
+      this.probing = probing;
+
       // Initialize the data array.
-      int length = HashFunctions.fastCeil(initialCapacity / loadFactor);
-      length = PrimeFinder.nextPrime(length);
+      int length = tableLength(initialCapacity, loadFactor);
       System.out.println("TrigramCounter length: " + length);
-      data = new long[length];
-      
+      data = LongStorage.allocate(length, offHeap);
+      setLoadFactor(loadFactor);
+
       // Set the parameters.
+      setLayout(valueMask, numFirstKeyBits, numSecondKeyBits);
+   }
+
+   /**
+    * Return the prime table length for the given capacity and load factor.
+    */
+   static int tableLength(int initialCapacity, float loadFactor) {
+      int length = HashFunctions.fastCeil(initialCapacity / loadFactor);
+      return PrimeFinder.nextPrime(length);
+   }
+
+   /**
+    * Wraps an already filled storage, e.g. a table mapped from a snapshot file.
+    */
+   protected CrazilyPackedHashMap(LongStorage data, int size, long valueMask,
+         int numFirstKeyBits, int numSecondKeyBits, Probing probing) {
+      this.probing = probing;
+      this.data = data;
+      this.size = size;
+      setLoadFactor(1);
+      setLayout(valueMask, numFirstKeyBits, numSecondKeyBits);
+   }
+
+   /**
+    * A copy of another table that can grow with the given load factor. The
+    * slots go to the same kind of storage as the other table's (on or off the
+    * heap; a mapped table is copied to the heap), so the copy can be updated
+    * while the original is still read.
+    */
+   protected CrazilyPackedHashMap(CrazilyPackedHashMap other, float loadFactor) {
+      this.probing = other.probing;
+      this.spillValues = other.spillValues;
+      setLayout(other.valueMask, other.numFirstKeyBits, other.numSecondKeyBits);
+      long length = other.data.length();
+      data = other.data.newStorage(length);
+      for (long i = 0; i < length; i++) {
+         data.set(i, other.data.get(i));
+      }
+      size = other.size;
+      spilled = new LongIntHashMap(other.spilled);
+      setLoadFactor(loadFactor);
+      if (size >= threshold) grow();
+   }
+
+   private void setLoadFactor(float loadFactor) {
+      this.loadFactor = loadFactor;
+      // Always keep one slot empty so that probing for a missing key stops.
+      threshold = Math.min((long) (data.length() * (double) loadFactor),
+            data.length() - 1);
+   }
+
+   void setLayout(long valueMask, int numFirstKeyBits,
+         int numSecondKeyBits) {
+      if (numFirstKeyBits < 1 || numFirstKeyBits > 32 || numSecondKeyBits < 1
+            || numSecondKeyBits > 32 || numFirstKeyBits + numSecondKeyBits > 63
+            || valueMask != (-1L >>> (numFirstKeyBits + numSecondKeyBits))) {
+         throw new IllegalArgumentException("Bad layout: " + numFirstKeyBits
+               + "/" + numSecondKeyBits + " key bits, value mask "
+               + Long.toHexString(valueMask));
+      }
       this.valueMask = valueMask;
       keyMask = ~valueMask;
       this.numFirstKeyBits = numFirstKeyBits;
       this.numSecondKeyBits = numSecondKeyBits;
       this.numValueBits = 64 - numFirstKeyBits - numSecondKeyBits;
+      maxFirstKey = (1L << numFirstKeyBits) - 1;
+      maxSecondKey = (1L << numSecondKeyBits) - 1;
    }
 
    /**
@@ -46,61 +191,457 @@ public class CrazilyPackedHashMap {
    public int size() {
       return size;
    }
-   
+
+   public Probing getProbing() {
+      return probing;
+   }
+
    /**
     * Return the value of (key1, key2).
     */
    public int get(int key1, int key2) {
-      long key = getKey(key1, key2);
-      int location = locatePosition(key);
-      long value = data[location] & valueMask;
-      return (int) value;
+      if (!fits(key1, key2)) return 0;
+      long location = locatePosition(getKey(key1, key2));
+      if (location < 0) return 0;
+      return value(data.get(location));
+   }
+
+   /**
+    * Return the slot holding (key1, key2), or -1 if it's not in the table.
+    */
+   public long indexOf(int key1, int key2) {
+      if (!fits(key1, key2)) return -1;
+      return locatePosition(getKey(key1, key2));
+   }
+
+   /**
+    * Read the home slot of (key1, key2) and return it. Reading the home slots
+    * of a batch of keys before looking them up lets the cache misses overlap
+    * instead of paying for them one lookup at a time.
+    */
+   public long prefetch(int key1, int key2) {
+      if (!fits(key1, key2)) return 0;
+      return data.get(homePosition(getKey(key1, key2)));
    }
-   
+
    /**
     * Adjust or put the value and return the value.
     */
    public int adjustOrPutValue(int key1, int key2, int adjustAmount) {
+      if (!fits(key1, key2)) widen(key1, key2, Math.max(adjustAmount, 0));
       long key = getKey(key1, key2);
-      int location = locatePosition(key);
-      long value = data[location] & valueMask;
-      
-      if (value == 0) {
+      long location = locatePosition(key);
+      if (location >= 0) {
+         long entry = data.get(location);
+         long value = (entry & valueMask) + adjustAmount;
+         // A spilled value's field holds valueMask, not the value, so it
+         // always takes the slow path.
+         if (value >= 0 && value < valueMask
+               && (entry & valueMask) != valueMask) {
+            data.set(location, entry + adjustAmount);
+            return (int) value;
+         }
+         return setValue(location, key1, key2, (long) value(entry)
+               + adjustAmount);
+      }
+
+      if (size >= threshold) {
+         grow();
+      }
+      if (size == Integer.MAX_VALUE) {
+         throw new IllegalStateException("Hash table can't hold more than "
+               + size + " entries");
+      }
+      if (adjustAmount < 0 || adjustAmount >= valueMask) {
+         if (adjustAmount < 0 || !spillValues) {
+            return setValue(-1, key1, key2, adjustAmount);
+         }
+         spilled.put(Utils.pack(key1, key2), adjustAmount);
          size++;
+         insert(key | valueMask);
+         return adjustAmount;
+      }
+      size++;
+      insert(key | adjustAmount);
+      return adjustAmount;
+   }
+
+   /**
+    * The slow path of adjustOrPutValue(): store a value that doesn't fit in
+    * the value field, or that leaves the side table. location is -1 for a new
+    * entry, which can only happen for maps that don't spill values.
+    */
+   private int setValue(long location, int key1, int key2, long value) {
+      if (value < 0 || value > Integer.MAX_VALUE) {
+         throw new IllegalStateException("Value of (" + key1 + ", " + key2
+               + ") out of range: " + value);
+      }
+      if (value >= valueMask && !spillValues) {
+         widen(key1, key2, value);
+         return adjustOrPutValue(key1, key2, (int) value - get(key1, key2));
+      }
+      long key = getKey(key1, key2);
+      long packed = Utils.pack(key1, key2);
+      if (value < valueMask) {
+         spilled.remove(packed);
+         data.set(location, key | value);
+      } else {
+         spilled.put(packed, (int) value);
+         data.set(location, key | valueMask);
+      }
+      return (int) value;
+   }
+
+   /**
+    * Remove (key1, key2) and return its value, or 0 if it was not there. The
+    * entries after it are shifted back so no tombstone is left behind.
+    */
+   public int remove(int key1, int key2) {
+      if (!fits(key1, key2)) return 0;
+      long location = locatePosition(getKey(key1, key2));
+      if (location < 0) return 0;
+      int value = value(data.get(location));
+      spilled.remove(Utils.pack(key1, key2));
+      size--;
+
+      long length = data.length();
+      long hole = location;
+      long index = hole;
+      while (true) {
+         if (++index == length) index = 0;
+         long entry = data.get(index);
+         if (entry == 0) break;
+         if (probing == Probing.ROBIN_HOOD) {
+            // Everything up to the next empty slot or entry at home moves.
+            if (probeDistance(entry, index) == 0) break;
+         } else {
+            // Move an entry only if the hole is between its home and it.
+            long home = homePosition(entry & keyMask);
+            if (hole <= index ? (home > hole && home <= index)
+                  : (home > hole || home <= index)) {
+               continue;
+            }
+         }
+         data.set(hole, entry);
+         hole = index;
+      }
+      data.set(hole, 0);
+      return value;
+   }
+
+   /**
+    * Remove all entries. The table keeps its length and layout, so it can be
+    * refilled without allocating.
+    */
+   public void clear() {
+      long length = data.length();
+      for (long i = 0; i < length; i++) {
+         data.set(i, 0);
+      }
+      size = 0;
+      spilled.clear();
+   }
+
+   /**
+    * Rehash all entries into a table at least twice as large.
+    */
+   protected void grow() {
+      if (loadFactor >= 1) {
+         throw new IllegalStateException("Hash table is full ("
+               + data.length() + " slots)");
+      }
+      long length = data.length();
+      // Lengths beyond the int primes needn't be prime; fastRange() doesn't
+      // care.
+      long newLength = 2 * length < PrimeFinder.largestPrime ? PrimeFinder
+            .nextPrime((int) (2 * length)) : 2 * length;
+      System.out.println("Growing hash table from " + length + " to "
+            + newLength + " slots");
+      rehash(data.newStorage(newLength));
+   }
+
+   /**
+    * Move all entries into the given (empty) storage.
+    */
+   protected void rehash(LongStorage newData) {
+      LongStorage oldData = data;
+      long oldLength = oldData.length();
+      data = newData;
+      for (long i = 0; i < oldLength; i++) {
+         long entry = oldData.get(i);
+         if (entry != 0) {
+            insert(entry);
+         }
+      }
+      setLoadFactor(loadFactor);
+   }
+
+   /**
+    * Repack all entries with fields wide enough for the entries in the table
+    * plus (key1, key2) with the given value. Bits for the keys are taken from
+    * the value field, and the other way around, as long as what's in the
+    * table still fits.
+    */
+   protected void widen(int key1, int key2, long value) {
+      if (key1 < 0 || key2 < 0) {
+         throw new IllegalArgumentException("Negative key (" + key1 + ", "
+               + key2 + ")");
+      }
+      if (loadFactor >= 1) {
+         throw new IllegalStateException("Can't change the layout of a "
+               + "loaded table to fit (" + key1 + ", " + key2 + ")");
+      }
+
+      // What the fields have to hold.
+      long maxKey1 = key1, maxKey2 = key2, maxValue = value;
+      long length = data.length();
+      for (long i = 0; i < length; i++) {
+         long entry = data.get(i);
+         if (entry != 0) {
+            maxKey1 = Math.max(maxKey1, firstKey(entry));
+            maxKey2 = Math.max(maxKey2, secondKey(entry));
+            if (!spillValues) maxValue = Math.max(maxValue, entry & valueMask);
+         }
+      }
+      int firstBits = BitPackedArray.bitsFor(maxKey1);
+      int secondBits = BitPackedArray.bitsFor(maxKey2);
+      int valueBits = spillValues ? MIN_SPILL_VALUE_BITS : BitPackedArray
+            .bitsFor(maxValue + 1);
+      if (firstBits + secondBits + valueBits > 64) {
+         throw new IllegalStateException("Keys of " + firstBits + " and "
+               + secondBits + " bits and values of " + valueBits
+               + " bits don't fit in 64 bits");
+      }
+
+      // Keep the current widths (and a bit of headroom for whatever had to
+      // grow) unless the value field needs the room.
+      int newFirstBits = Math.max(numFirstKeyBits, firstBits + 1);
+      int newSecondBits = Math.max(numSecondKeyBits, secondBits + 1);
+      if (newFirstBits + newSecondBits + valueBits > 64) {
+         newFirstBits = Math.max(numFirstKeyBits, firstBits);
+         newSecondBits = Math.max(numSecondKeyBits, secondBits);
+      }
+      if (newFirstBits + newSecondBits + valueBits > 64) {
+         newFirstBits = firstBits;
+         newSecondBits = secondBits;
+      }
+      newFirstBits = Math.min(newFirstBits, 32);
+      newSecondBits = Math.min(newSecondBits, 32);
+      int newValueBits = 64 - newFirstBits - newSecondBits;
+      System.out.println("Changing hash table layout from "
+            + numFirstKeyBits + "/" + numSecondKeyBits + "/" + numValueBits
+            + " to " + newFirstBits + "/" + newSecondBits + "/"
+            + newValueBits + " bits");
+
+      // Unpack everything with the old layout, then repack with the new one.
+      LongStorage oldData = data;
+      long oldValueMask = valueMask;
+      int oldSecondKeyBits = numSecondKeyBits;
+      int oldValueBits = numValueBits;
+      LongIntHashMap oldSpilled = spilled;
+      spilled = new LongIntHashMap(oldSpilled.size());
+      setLayout(-1L >>> (newFirstBits + newSecondBits), newFirstBits,
+            newSecondBits);
+      data = oldData.newStorage(length);
+      for (long i = 0; i < length; i++) {
+         long entry = oldData.get(i);
+         if (entry == 0) continue;
+         int oldKey1 = (int) (entry >>> (oldSecondKeyBits + oldValueBits));
+         int oldKey2 = (int) ((entry >>> oldValueBits)
+               & ((1L << oldSecondKeyBits) - 1));
+         long oldValue = entry & oldValueMask;
+         if (oldValue == oldValueMask && spillValues) {
+            oldValue = oldSpilled.get(Utils.pack(oldKey1, oldKey2));
+         }
+         long newKey = getKey(oldKey1, oldKey2);
+         if (oldValue >= valueMask) {
+            spilled.put(Utils.pack(oldKey1, oldKey2), (int) oldValue);
+            insert(newKey | valueMask);
+         } else {
+            insert(newKey | oldValue);
+         }
       }
-      value += adjustAmount;
-      data[location] = key | value;
-      return (int)value;
    }
-   
+
    /**
     * Return the sum of all values.
     */
    public long sum() {
       long sum = 0;
-      for (int i = 0; i < data.length; i++) {
-         long value = data[i] & valueMask;
+      long length = data.length();
+      for (long i = 0; i < length; i++) {
+         long value = data.get(i) & valueMask;
          sum += value;
       }
+      // Spilled values were counted as valueMask.
+      for (int i = 0; i < spilled.slotCount(); i++) {
+         int value = spilled.slotValue(i);
+         if (value != 0) sum += value - valueMask;
+      }
       return sum;
    }
-   
+
+   /**
+    * Return the number of slots in the table. Slots can be walked with
+    * slotValue(), slotFirstKey() and slotSecondKey(); empty slots have a value
+    * of zero.
+    */
+   public long slotCount() {
+      return data.length();
+   }
+
+   public int slotValue(long slot) {
+      return value(data.get(slot));
+   }
+
+   public int slotFirstKey(long slot) {
+      return firstKey(data.get(slot));
+   }
+
+   public int slotSecondKey(long slot) {
+      return secondKey(data.get(slot));
+   }
+
+   /**
+    * Return the total and the largest number of slots read by lookups of the
+    * stored keys, 1 for a key in its home slot. This walks the whole table.
+    */
+   public long[] probeLengths() {
+      long total = 0, max = 0;
+      long length = data.length();
+      for (long i = 0; i < length; i++) {
+         long entry = data.get(i);
+         if (entry != 0) {
+            long probes = probeDistance(entry, i) + 1;
+            total += probes;
+            max = Math.max(max, probes);
+         }
+      }
+      return new long[] { total, max };
+   }
+
+   /**
+    * Return the number of values that are kept in the side table.
+    */
+   public int numSpilled() {
+      return spilled.size();
+   }
+
+   /**
+    * Return the number of bytes used by the slots and the side table.
+    */
+   public long bytes() {
+      return 8L * data.length() + spilled.bytes();
+   }
+
+   private int firstKey(long entry) {
+      return (int) (entry >>> (numSecondKeyBits + numValueBits));
+   }
+
+   private int secondKey(long entry) {
+      return (int) ((entry >>> numValueBits) & maxSecondKey);
+   }
+
+   /**
+    * Return the value of an entry, looking it up in the side table if it's
+    * too large for its field.
+    */
+   protected int value(long entry) {
+      long value = entry & valueMask;
+      if (value == valueMask && spillValues) {
+         int spilledValue = spilled.get(Utils.pack(firstKey(entry),
+               secondKey(entry)));
+         if (spilledValue != 0) return spilledValue;
+      }
+      return (int) value;
+   }
+
+   /**
+    * Return whether the keys fit in their fields. Keys that don't can't be in
+    * the table.
+    */
+   protected boolean fits(int key1, int key2) {
+      return (key1 & 0xFFFFFFFFL) <= maxFirstKey
+            && (key2 & 0xFFFFFFFFL) <= maxSecondKey;
+   }
+
    protected long getKey(int key1, int key2) {
       long key = key1;
       key = key << numSecondKeyBits | key2;
       key = key << numValueBits;
       return key;
    }
-   
-   protected int locatePosition(long key) {
-      int index = HashFunctions.hash(key) % data.length;
-      //int index = (int)(key % (long)data.length);
-      if (index < 0) index = -index;
-      while ((data[index] != 0) && (data[index] & keyMask) != key) {
-         index++;
-         if (index == data.length) index = 0;
+
+   /**
+    * Return the slot holding the key, or -1 if the key is not in the table.
+    */
+   protected long locatePosition(long key) {
+      long length = data.length();
+      long index = homePosition(key);
+      if (probing == Probing.ROBIN_HOOD) {
+         for (long distance = 0;; distance++) {
+            long entry = data.get(index);
+            if (entry == 0) return -1;
+            if ((entry & keyMask) == key) return index;
+            // The key would have taken this slot when it was inserted.
+            if (probeDistance(entry, index) < distance) return -1;
+            if (++index == length) index = 0;
+         }
+      } else {
+         while (true) {
+            long entry = data.get(index);
+            if (entry == 0) return -1;
+            if ((entry & keyMask) == key) return index;
+            if (++index == length) index = 0;
+         }
       }
-      return index;
+   }
+
+   /**
+    * Put an entry whose key is not in the table yet.
+    */
+   protected void insert(long entry) {
+      long length = data.length();
+      long index = homePosition(entry & keyMask);
+      if (probing == Probing.ROBIN_HOOD) {
+         long distance = 0;
+         while (true) {
+            long current = data.get(index);
+            if (current == 0) {
+               data.set(index, entry);
+               return;
+            }
+            long currentDistance = probeDistance(current, index);
+            if (currentDistance < distance) {
+               // Take the slot from the richer entry and move that one on.
+               data.set(index, entry);
+               entry = current;
+               distance = currentDistance;
+            }
+            if (++index == length) index = 0;
+            distance++;
+         }
+      } else {
+         while (data.get(index) != 0) {
+            if (++index == length) index = 0;
+         }
+         data.set(index, entry);
+      }
+   }
+
+   /**
+    * Return the slot a key would take in an empty table.
+    */
+   protected long homePosition(long key) {
+      return HashFunctions.fastRange(HashFunctions.mix(key), data.length());
+   }
+
+   /**
+    * Return how far the entry at the given slot is from its home slot.
+    */
+   protected long probeDistance(long entry, long index) {
+      long distance = index - homePosition(entry & keyMask);
+      return distance < 0 ? distance + data.length() : distance;
    }
 
 }
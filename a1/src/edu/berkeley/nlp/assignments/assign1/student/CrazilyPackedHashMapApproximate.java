@@ -2,40 +2,78 @@ package edu.berkeley.nlp.assignments.assign1.student;
 
 /**
  * A very compact hash map with approximation. This is based on
- * CrazilyPackedHashMap but it only uses a single int array (instead of long
- * array). Instead of storing the keys, a 9-bit checksum of the keys are stored.
- * 
+ * CrazilyPackedHashMap but instead of storing the keys, only a fingerprint of
+ * the keys is stored next to the value. The default layout is a 9-bit
+ * fingerprint and a 23-bit value, 32 bits per slot (instead of 64). The slots
+ * are bit packed in a BitPackedArray, so like the exact maps they can live on
+ * the heap or off the heap, and any other widths can be chosen, e.g. 16/16
+ * for a lower false positive rate or 8/16 for 24-bit slots.
+ *
+ * The home slot is picked from the high bits of the mixed key and the
+ * fingerprint is taken from the low bits, so, as in a quotient filter, the
+ * position in the table and the fingerprint are independent and a lookup of
+ * an absent key is fooled with a probability of about (probe length) /
+ * 2^fingerprintBits. A value that would not fit in its field saturates at
+ * the largest one that does.
+ *
+ * Since the keys are not stored the table can't be rehashed, so unlike
+ * CrazilyPackedHashMap it never grows. Adding to a full table throws an
+ * IllegalStateException.
+ *
  * @author rxin
- * 
+ *
  */
 public class CrazilyPackedHashMapApproximate {
-   
-   // 0x3FFFFF = 22 bits of 1.
-   protected int valueMask = 0x7FFFFF;
-   protected int checksumMask = ~valueMask;
-   protected int numKeyBits = 9;
+
+   protected int numFingerprintBits = 9;
    protected int numValueBits = 23;
-   
+   protected long fingerprintMask = (1L << numFingerprintBits) - 1;
+   protected long valueMask = (1L << numValueBits) - 1;
+
    int size;
-   int data[];
+   BitPackedArray data;
+   final int length;
+
+   /**
+    * Number of adjustments that were capped at valueMask.
+    */
+   long numSaturated;
 
    /**
     * Initializes the hash table to a prime capacity which is at least
-    * <tt>initialCapacity/loadFactor + 1</tt>.
+    * <tt>initialCapacity/loadFactor + 1</tt>, with slots of numFingerprintBits
+    * + numValueBits bits.
     */
    public CrazilyPackedHashMapApproximate(int initialCapacity,
-         float loadFactor, int valueMask, int numValueBits) {
-      
+         float loadFactor, int numFingerprintBits, int numValueBits) {
+      this(initialCapacity, loadFactor, numFingerprintBits, numValueBits,
+            false);
+   }
+
+   public CrazilyPackedHashMapApproximate(int initialCapacity,
+         float loadFactor, int numFingerprintBits, int numValueBits,
+         boolean offHeap) {
+      if (numFingerprintBits < 1 || numValueBits < 1 || numValueBits > 31
+            || numFingerprintBits + numValueBits > 64) {
+         throw new IllegalArgumentException("Bad layout: "
+               + numFingerprintBits + " fingerprint bits, " + numValueBits
+               + " value bits");
+      }
+
       // Initialize the data array.
       int length = HashFunctions.fastCeil(initialCapacity / loadFactor);
       length = PrimeFinder.nextPrime(length);
-      data = new int[length];
-      
+      this.length = length;
+      int slotBits = numFingerprintBits + numValueBits;
+      data = new BitPackedArray(LongStorage.allocate(
+            BitPackedArray.numLongs(length, slotBits), offHeap), length,
+            slotBits);
+
       // Set the parameters.
-      this.valueMask = valueMask;
-      this.checksumMask = ~valueMask;
+      this.numFingerprintBits = numFingerprintBits;
       this.numValueBits = numValueBits;
-      this.numKeyBits = 32 - numValueBits;
+      this.fingerprintMask = -1L >>> (64 - numFingerprintBits);
+      this.valueMask = (1L << numValueBits) - 1;
    }
 
    /**
@@ -44,53 +82,119 @@ public class CrazilyPackedHashMapApproximate {
    public int size() {
       return size;
    }
-   
+
    /**
     * Return the value of (key1, key2).
     */
    public int get(int key1, int key2) {
       int location = locatePosition(key1, key2);
-      return data[location] & valueMask;
+      return (int) (slot(location) & valueMask);
+   }
+
+   /**
+    * Return the slot holding (key1, key2), or -1 if it's not in the table.
+    * Like get(), this can be fooled by a fingerprint collision.
+    */
+   public long indexOf(int key1, int key2) {
+      int location = locatePosition(key1, key2);
+      return slot(location) == 0 ? -1 : location;
    }
-   
+
+   /**
+    * Read the home slot of (key1, key2) and return it.
+    */
+   public long prefetch(int key1, int key2) {
+      long hash = HashFunctions.mix(Utils.pack(key1, key2));
+      return slot(HashFunctions.fastRange(hash, length));
+   }
+
    /**
     * Adjust or put the value and return the value.
     */
    public int adjustOrPutValue(int key1, int key2, int adjustAmount) {
-      int location = locatePosition(key1, key2);
-      int value = data[location] & valueMask;
-      
+      long hash = HashFunctions.mix(Utils.pack(key1, key2));
+      int location = locatePosition(hash);
+      long value = slot(location) & valueMask;
+
       if (value == 0) {
+         // Always keep one slot empty so that probing stops.
+         if (size >= length - 1) {
+            throw new IllegalStateException("Hash table is full ("
+                  + length + " slots)");
+         }
          size++;
       }
-      value += adjustAmount;
-      
-      long keyPacked = Utils.pack(key1, key2);
-      int checksum = HashFunctions.checksum(keyPacked) << numValueBits;
-      data[location] = checksum | value;
-      return (int)value;
-   }
-   
+      if (value + adjustAmount > valueMask) {
+         numSaturated++;
+         value = valueMask;
+      } else {
+         value += adjustAmount;
+      }
+
+      data.set(location, ((hash & fingerprintMask) << numValueBits) | value);
+      return (int) value;
+   }
+
    /**
     * Return the sum of all values.
     */
    public long sum() {
       long sum = 0;
-      for (int i = 0; i < data.length; i++) {
-         long value = data[i] & valueMask;
+      for (int i = 0; i < length; i++) {
+         long value = slot(i) & valueMask;
          sum += value;
       }
       return sum;
    }
-   
+
+   /**
+    * Return the number of adjustments that didn't fit and were capped.
+    */
+   public long numSaturated() {
+      return numSaturated;
+   }
+
+   /**
+    * Return the number of slots.
+    */
+   public int slotCount() {
+      return length;
+   }
+
+   public int numFingerprintBits() {
+      return numFingerprintBits;
+   }
+
+   public int numValueBits() {
+      return numValueBits;
+   }
+
+   /**
+    * Return the number of bytes used by the slots.
+    */
+   public long bytes() {
+      return data.bytes();
+   }
+
+   /**
+    * Return the fingerprint and value stored in a slot.
+    */
+   long slot(int index) {
+      return data.get(index);
+   }
+
    protected int locatePosition(int key1, int key2) {
-      long keyPacked = Utils.pack(key1, key2);
-      int index = HashFunctions.hash(keyPacked) % data.length;
-      if (index < 0) index = -index;
-      int checksum = HashFunctions.checksum(keyPacked) << numValueBits;
-      while ((data[index] != 0) && (data[index] & checksumMask) != checksum) {
+      return locatePosition(HashFunctions.mix(Utils.pack(key1, key2)));
+   }
+
+   private int locatePosition(long hash) {
+      int index = HashFunctions.fastRange(hash, length);
+      long fingerprint = hash & fingerprintMask;
+      long slot;
+      while ((slot = slot(index)) != 0
+            && (slot >>> numValueBits) != fingerprint) {
          index++;
-         if (index == data.length) index = 0;
+         if (index == length) index = 0;
       }
       return index;
    }
@@ -0,0 +1,223 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.nlp.io.SentenceCollection;
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Picks the discounts of a KneserNeyTrigramLm that minimize the perplexity of
+ * held-out sentences.
+ *
+ * <pre>
+ * java DiscountTuner model.bin heldout.txt [-threads n] [-modified] [-save tuned.bin]
+ * </pre>
+ *
+ * The counts don't depend on the discounts, so the model is built (or
+ * loaded) once, and every candidate is a view of it with other discounts
+ * (see KneserNeyTrigramLm.withDiscounts()) that a PerplexityEvaluator scores
+ * on all threads. The held-out sentences are indexed once.
+ *
+ * The perplexity is close to convex in each discount, so the discounts are
+ * found by golden section search: the single discount of plain Kneser-Ney,
+ * or D1, D2 and D3+ one after the other for a few rounds for modified
+ * Kneser-Ney, each between 0 and its count. The model only discounts at the
+ * trigram level (the bigram level is the continuation distribution), so
+ * these are all the discounts it has.
+ */
+public class DiscountTuner {
+
+   /**
+    * Width to which the range of a discount is narrowed.
+    */
+   static final double TOLERANCE = 0.005;
+
+   /**
+    * Number of rounds over D1, D2 and D3+ for modified Kneser-Ney.
+    */
+   static final int MODIFIED_ROUNDS = 2;
+
+   static final double GOLDEN = (Math.sqrt(5) - 1) / 2;
+
+   final KneserNeyTrigramLm lm;
+   final int sentences[][];
+   final int numThreads;
+
+   int numEvaluations;
+   double bestPerplexity;
+   float bestDiscounts[];
+
+   /**
+    * Tune the discounts of the model on the held-out sentences, scoring them
+    * on the given number of threads.
+    */
+   public DiscountTuner(KneserNeyTrigramLm lm,
+         Iterable<List<String>> heldOut, int numThreads) {
+      this.lm = lm;
+      this.numThreads = numThreads;
+      StringIndexer wordIndexer = EnglishWordIndexer.getIndexer();
+      List<int[]> indexed = new ArrayList<int[]>();
+      for (List<String> sentence : heldOut) {
+         int words[] = new int[sentence.size() + 2];
+         words[0] = wordIndexer.addAndGetIndex(NgramLanguageModel.START);
+         for (int i = 0; i < sentence.size(); i++) {
+            words[i + 1] = wordIndexer.addAndGetIndex(sentence.get(i));
+         }
+         words[words.length - 1] = wordIndexer
+               .addAndGetIndex(NgramLanguageModel.STOP);
+         indexed.add(words);
+      }
+      sentences = indexed.toArray(new int[indexed.size()][]);
+   }
+
+   /**
+    * The tuned discounts and what it took to find them.
+    */
+   public static class Result {
+      public final float discounts[];
+      public final double perplexity;
+      public final int numEvaluations;
+      public final double seconds;
+
+      Result(float discounts[], double perplexity, int numEvaluations,
+            double seconds) {
+         this.discounts = discounts;
+         this.perplexity = perplexity;
+         this.numEvaluations = numEvaluations;
+         this.seconds = seconds;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("Discounts %.3f %.3f %.3f, held-out perplexity"
+               + " %.4f, %d evaluations in %.1fs", discounts[0], discounts[1],
+               discounts[2], perplexity, numEvaluations, seconds);
+      }
+   }
+
+   /**
+    * Search the discounts, starting from the model's. With modified set
+    * D1, D2 and D3+ are tuned separately, otherwise they're kept equal. The
+    * model itself isn't changed; see KneserNeyTrigramLm.setDiscounts().
+    */
+   public Result tune(boolean modified) {
+      long start = System.currentTimeMillis();
+      numEvaluations = 0;
+      bestDiscounts = lm.getDiscounts();
+      if (!modified) {
+         float discount = bestDiscounts[0];
+         bestDiscounts = new float[] { discount, discount, discount };
+      }
+      bestPerplexity = perplexity(bestDiscounts);
+
+      if (modified) {
+         for (int round = 0; round < MODIFIED_ROUNDS; round++) {
+            for (int c = 1; c <= 3; c++) search(c);
+         }
+      } else {
+         search(0);
+      }
+      return new Result(bestDiscounts, bestPerplexity, numEvaluations,
+            (System.currentTimeMillis() - start) / 1000.0);
+   }
+
+   /**
+    * Golden section search for the discount of count c (0 for all three
+    * together) in (0, max(c, 1)), with the others at their best so far.
+    */
+   private void search(int c) {
+      double low = 0, high = Math.max(c, 1);
+      double x1 = high - GOLDEN * (high - low);
+      double x2 = low + GOLDEN * (high - low);
+      double y1 = perplexity(c, x1);
+      double y2 = perplexity(c, x2);
+      while (high - low > TOLERANCE) {
+         if (y1 <= y2) {
+            high = x2;
+            x2 = x1;
+            y2 = y1;
+            x1 = high - GOLDEN * (high - low);
+            y1 = perplexity(c, x1);
+         } else {
+            low = x1;
+            x1 = x2;
+            y1 = y2;
+            x2 = low + GOLDEN * (high - low);
+            y2 = perplexity(c, x2);
+         }
+      }
+   }
+
+   /**
+    * Return the perplexity with the discount of count c (0 for all three)
+    * set to x and the others at their best so far.
+    */
+   private double perplexity(int c, double x) {
+      float discounts[] = bestDiscounts.clone();
+      if (c == 0) {
+         discounts[0] = discounts[1] = discounts[2] = (float) x;
+      } else {
+         discounts[c - 1] = (float) x;
+      }
+      return perplexity(discounts);
+   }
+
+   /**
+    * Score the held-out sentences with the given discounts and keep them if
+    * they're the best so far.
+    */
+   private double perplexity(float discounts[]) {
+      KneserNeyTrigramLm view = lm.withDiscounts(discounts[0], discounts[1],
+            discounts[2]);
+      PerplexityEvaluator.Result result = new PerplexityEvaluator(view,
+            numThreads).evaluate(sentences);
+      numEvaluations++;
+      double perplexity = result.perplexity();
+      System.out.println(String.format("Discounts %.4f %.4f %.4f: "
+            + "perplexity %.4f (%.2fs)", discounts[0], discounts[1],
+            discounts[2], perplexity, result.seconds));
+      if (numEvaluations == 1 || perplexity < bestPerplexity) {
+         bestPerplexity = perplexity;
+         bestDiscounts = discounts;
+      }
+      return perplexity;
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 2) {
+         System.out.println("Usage: DiscountTuner model heldout [-threads n]"
+               + " [-modified] [-save model]");
+         System.exit(1);
+      }
+      int numThreads = Runtime.getRuntime().availableProcessors();
+      boolean modified = false;
+      String save = null;
+      for (int i = 2; i < args.length; i++) {
+         if (args[i].equals("-threads")) {
+            numThreads = Integer.parseInt(args[++i]);
+         } else if (args[i].equals("-modified")) {
+            modified = true;
+         } else if (args[i].equals("-save")) {
+            save = args[++i];
+         } else {
+            throw new IllegalArgumentException("Bad option " + args[i]);
+         }
+      }
+
+      KneserNeyTrigramLm lm = KneserNeyTrigramLm.load(new File(args[0]));
+      DiscountTuner tuner = new DiscountTuner(lm, new SentenceCollection(
+            args[1]), numThreads);
+      Result result = tuner.tune(modified);
+      System.out.println(result);
+      if (save != null) {
+         lm.setDiscounts(result.discounts[0], result.discounts[1],
+               result.discounts[2]);
+         lm.save(new File(save));
+      }
+   }
+}
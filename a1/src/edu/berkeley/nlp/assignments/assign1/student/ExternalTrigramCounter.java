@@ -0,0 +1,444 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+/**
+ * Counts trigrams with bounded memory, for corpora whose trigrams don't fit
+ * in the heap. The trigrams are counted in a TrigramCounter buffer of fixed
+ * capacity; whenever it fills up its contents are written to disk as a run
+ * sorted by (w1w2, w3) and it's cleared. finish() merges the runs in a k-way
+ * merge, summing the counts of trigrams that appear in several runs, into a
+ * FrozenTrigramCounter, which holds the trigrams in a fraction of the memory
+ * of a hash table. This is the sort based counting of KenLM's lmplz: the
+ * memory is the buffer's, and the disk is only read and written sequentially.
+ *
+ * A merge reads at most MAX_FAN_IN runs at once, so the open files and the
+ * read buffers stay bounded however many runs there are. With more runs
+ * than that, finish() first merges them in passes, MAX_FAN_IN at a time,
+ * into longer intermediate runs, until no more than MAX_FAN_IN are left.
+ *
+ * Until finish() the counts returned by increaseCount() and get() are those
+ * of the current buffer, so they can't tell a new trigram from one that is in
+ * an earlier run. The Handler passed to finish() gets every distinct trigram
+ * with its total count instead, which is what KneserNeyTrigramLm computes the
+ * N1+ counts from.
+ *
+ * A run file holds the number of trigrams, then (Utils.pack(w1w2, w3), count)
+ * per trigram in key order. The files are deleted once they're merged.
+ */
+public class ExternalTrigramCounter implements TrigramCounterInterface {
+
+   /**
+    * Bytes of buffer per run file while merging. Many runs are read at once,
+    * so this is smaller than usual.
+    */
+   static final int RUN_BUFFER_SIZE = 1 << 16;
+
+   /**
+    * Most runs read by one merge.
+    */
+   static final int MAX_FAN_IN = 64;
+
+   /**
+    * Counts below this are collected in an array while merging, larger ones
+    * in a set.
+    */
+   static final int SMALL_COUNTS = 1 << 16;
+
+   /**
+    * Receives the distinct trigrams with their total counts, sorted by w1w2
+    * and then w3.
+    */
+   public interface Handler {
+      void trigram(int w1w2, int w3, int count);
+   }
+
+   final int bufferCapacity;
+   final File directory;
+
+   /**
+    * The trigrams counted since the last run was written; null once the runs
+    * are merged.
+    */
+   TrigramCounter buffer;
+
+   /**
+    * Reusable array for sorting the keys of a run.
+    */
+   long keys[];
+
+   final List<File> runs = new ArrayList<File>();
+   long sum;
+
+   /**
+    * Count up to bufferCapacity distinct trigrams in memory at a time, and
+    * write the runs to the given directory (null for the default temporary
+    * file directory). The other arguments are those of the buffer's
+    * TrigramCounter.
+    */
+   public ExternalTrigramCounter(int bufferCapacity, File directory,
+         float loadFactor, CrazilyPackedHashMap.Probing probing,
+         boolean offHeap, int numBigramBits, int numWordBits) {
+      if (bufferCapacity < 1) {
+         throw new IllegalArgumentException("Bad buffer capacity "
+               + bufferCapacity);
+      }
+      this.bufferCapacity = bufferCapacity;
+      this.directory = directory;
+      buffer = new TrigramCounter(bufferCapacity, loadFactor, probing,
+            offHeap, numBigramBits, numWordBits);
+      keys = new long[bufferCapacity];
+   }
+
+   @Override
+   public int increaseCount(int w1w2, int w3) {
+      return adjustOrPutValue(w1w2, w3, 1);
+   }
+
+   /**
+    * Add to the count in the buffer and return the buffer's count.
+    */
+   @Override
+   public int adjustOrPutValue(int key1, int key2, int adjustAmount) {
+      checkCounting();
+      int count = buffer.adjustOrPutValue(key1, key2, adjustAmount);
+      sum += adjustAmount;
+      if (buffer.size() >= bufferCapacity) {
+         try {
+            writeRun();
+         } catch (IOException e) {
+            throw new RuntimeException("Writing a trigram run failed", e);
+         }
+      }
+      return count;
+   }
+
+   private void checkCounting() {
+      if (buffer == null) {
+         throw new IllegalStateException("The trigram runs are merged already");
+      }
+   }
+
+   /**
+    * Write the buffer to a new run file and clear it.
+    */
+   private void writeRun() throws IOException {
+      long start = System.currentTimeMillis();
+      int numKeys = 0;
+      long slots = buffer.slotCount();
+      for (long slot = 0; slot < slots; slot++) {
+         if (buffer.slotValue(slot) > 0) {
+            keys[numKeys++] = Utils.pack(buffer.slotFirstKey(slot),
+                  buffer.slotSecondKey(slot));
+         }
+      }
+      Arrays.sort(keys, 0, numKeys);
+
+      File file = File.createTempFile("trigrams", ".run", directory);
+      file.deleteOnExit();
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file), PartialCounts.BUFFER_SIZE));
+      try {
+         out.writeInt(numKeys);
+         for (int i = 0; i < numKeys; i++) {
+            out.writeLong(keys[i]);
+            out.writeInt(buffer.get(Utils.left(keys[i]), Utils.right(keys[i])));
+         }
+      } finally {
+         out.close();
+      }
+      runs.add(file);
+      buffer.clear();
+      System.out.println("Wrote trigram run " + runs.size() + " (" + numKeys
+            + " trigrams) in " + (System.currentTimeMillis() - start) / 1000.0
+            + "s");
+   }
+
+   /**
+    * A run file being merged.
+    */
+   static class Run {
+      final DataInputStream in;
+      int remaining;
+      long key;
+      int count;
+
+      Run(File file) throws IOException {
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+               file), RUN_BUFFER_SIZE));
+         remaining = in.readInt();
+      }
+
+      boolean next() throws IOException {
+         if (remaining == 0) return false;
+         remaining--;
+         key = in.readLong();
+         count = in.readInt();
+         return true;
+      }
+   }
+
+   static final Comparator<Run> BY_KEY = new Comparator<Run>() {
+      public int compare(Run a, Run b) {
+         return a.key < b.key ? -1 : (a.key == b.key ? 0 : 1);
+      }
+   };
+
+   /**
+    * The distinct trigrams of several runs in key order, with their counts
+    * summed over the runs.
+    */
+   static class Merger {
+      final PriorityQueue<Run> queue;
+      final List<Run> open = new ArrayList<Run>();
+      long key;
+      int count;
+
+      Merger(List<File> files) throws IOException {
+         queue = new PriorityQueue<Run>(Math.max(1, files.size()), BY_KEY);
+         try {
+            for (File file : files) {
+               Run run = new Run(file);
+               open.add(run);
+               if (run.next()) queue.add(run);
+            }
+         } catch (IOException e) {
+            close();
+            throw e;
+         }
+      }
+
+      /**
+       * Move to the next trigram; return false at the end.
+       */
+      boolean next() throws IOException {
+         if (queue.isEmpty()) return false;
+         key = queue.peek().key;
+         long sum = 0;
+         while (!queue.isEmpty() && queue.peek().key == key) {
+            Run run = queue.poll();
+            sum += run.count;
+            if (run.next()) queue.add(run);
+         }
+         count = (int) Math.min(sum, Integer.MAX_VALUE);
+         return true;
+      }
+
+      void close() throws IOException {
+         for (Run run : open) run.in.close();
+      }
+   }
+
+   /**
+    * Merge the runs and hand every distinct trigram to the handler.
+    */
+   private void merge(Handler handler) throws IOException {
+      Merger merger = new Merger(runs);
+      try {
+         while (merger.next()) {
+            handler.trigram(Utils.left(merger.key), Utils.right(merger.key),
+                  merger.count);
+         }
+      } finally {
+         merger.close();
+      }
+   }
+
+   /**
+    * Merge the runs in passes, MAX_FAN_IN at a time, into longer runs until
+    * no more than MAX_FAN_IN are left.
+    */
+   private void mergePasses() throws IOException {
+      for (int pass = 1; runs.size() > MAX_FAN_IN; pass++) {
+         long start = System.currentTimeMillis();
+         int numRuns = runs.size();
+         // The merged runs go to the end of the list, so every file is in
+         // it for finish() to delete if a merge fails.
+         for (int left = numRuns; left > 0;) {
+            List<File> group = runs.subList(0, Math.min(MAX_FAN_IN, left));
+            left -= group.size();
+            File merged = group.size() == 1 ? group.get(0)
+                  : mergeIntoRun(group);
+            for (File file : group) {
+               if (file != merged) file.delete();
+            }
+            group.clear();
+            runs.add(merged);
+         }
+         System.out.println("Merge pass " + pass + ": " + numRuns
+               + " trigram runs into " + runs.size() + " in "
+               + (System.currentTimeMillis() - start) / 1000.0 + "s");
+      }
+   }
+
+   /**
+    * Merge the given runs into a new run file and return it.
+    */
+   private File mergeIntoRun(List<File> group) throws IOException {
+      File file = File.createTempFile("trigrams", ".run", directory);
+      file.deleteOnExit();
+      int numKeys = 0;
+      Merger merger = new Merger(group);
+      try {
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+               new FileOutputStream(file), PartialCounts.BUFFER_SIZE));
+         try {
+            // The number of trigrams, filled in at the end.
+            out.writeInt(0);
+            while (merger.next()) {
+               out.writeLong(merger.key);
+               out.writeInt(merger.count);
+               numKeys++;
+            }
+         } finally {
+            out.close();
+         }
+      } finally {
+         merger.close();
+      }
+      RandomAccessFile header = new RandomAccessFile(file, "rw");
+      try {
+         header.writeInt(numKeys);
+      } finally {
+         header.close();
+      }
+      return file;
+   }
+
+   /**
+    * Write the last run and merge all of them into a FrozenTrigramCounter for
+    * the bigram indexes up to numBigrams. The handler gets every distinct
+    * trigram on the way. After any passes needed to bring the runs down to
+    * MAX_FAN_IN, the runs are merged twice, once to size the frozen counter
+    * and once to fill it; this counter can't be used afterwards.
+    */
+   public FrozenTrigramCounter finish(int numBigrams, Handler handler)
+         throws IOException {
+      checkCounting();
+      long start = System.currentTimeMillis();
+      if (buffer.size() > 0) writeRun();
+      buffer = null;
+      keys = null;
+
+      try {
+         mergePasses();
+
+         // Count the trigrams per context and find the distinct counts and
+         // the largest word.
+         final int offsets[] = new int[numBigrams + 2];
+         final boolean smallCounts[] = new boolean[SMALL_COUNTS];
+         final TreeSet<Integer> largeCounts = new TreeSet<Integer>();
+         final int maxWord[] = new int[1];
+         final Handler userHandler = handler;
+         merge(new Handler() {
+            public void trigram(int w1w2, int w3, int count) {
+               userHandler.trigram(w1w2, w3, count);
+               offsets[w1w2 + 1]++;
+               maxWord[0] = Math.max(maxWord[0], w3);
+               if (count < SMALL_COUNTS) {
+                  smallCounts[count] = true;
+               } else {
+                  largeCounts.add(count);
+               }
+            }
+         });
+         for (int i = 1; i < offsets.length; i++) {
+            offsets[i] += offsets[i - 1];
+         }
+         int numCounts = largeCounts.size();
+         for (boolean seen : smallCounts) {
+            if (seen) numCounts++;
+         }
+         final int counts[] = new int[numCounts];
+         int numSmallCounts = 0;
+         for (int count = 0; count < SMALL_COUNTS; count++) {
+            if (smallCounts[count]) counts[numSmallCounts++] = count;
+         }
+         for (int count : largeCounts) counts[numSmallCounts++] = count;
+
+         // The runs come out in the order of the frozen entries.
+         final int countBits = BitPackedArray.bitsFor(Math.max(numCounts - 1,
+               0));
+         final BitPackedArray entries = new BitPackedArray(
+               offsets[offsets.length - 1], BitPackedArray.bitsFor(maxWord[0])
+                     + countBits);
+         merge(new Handler() {
+            long position = 0;
+
+            public void trigram(int w1w2, int w3, int count) {
+               entries.set(position++, ((long) w3 << countBits)
+                     | Arrays.binarySearch(counts, count));
+            }
+         });
+
+         System.out.println("Merged " + runs.size() + " trigram runs in "
+               + (System.currentTimeMillis() - start) / 1000.0 + "s");
+         return new FrozenTrigramCounter(offsets, counts, entries, countBits);
+      } finally {
+         for (File file : runs) file.delete();
+      }
+   }
+
+   /**
+    * Return the count in the buffer.
+    */
+   @Override
+   public int get(int key1, int key2) {
+      checkCounting();
+      return buffer.get(key1, key2);
+   }
+
+   @Override
+   public long indexOf(int key1, int key2) {
+      checkCounting();
+      return buffer.indexOf(key1, key2);
+   }
+
+   @Override
+   public long prefetch(int key1, int key2) {
+      checkCounting();
+      return buffer.prefetch(key1, key2);
+   }
+
+   /**
+    * Return the number of distinct trigrams in the buffer.
+    */
+   @Override
+   public int size() {
+      return buffer == null ? 0 : buffer.size();
+   }
+
+   /**
+    * Return the exact total of all counts.
+    */
+   @Override
+   public long sum() {
+      return sum;
+   }
+
+   @Override
+   public void reportTopTrigram() {
+      System.out.println(runs.size() + " trigram runs written");
+   }
+
+   /**
+    * Return the number of bytes used by the buffer.
+    */
+   public long bytes() {
+      return buffer == null ? 0 : buffer.bytes() + 8L * keys.length;
+   }
+}
@@ -0,0 +1,118 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * A read only bigram indexer for serving a finished model. The bigrams are
+ * sorted by first word and then by second word, and the index of a bigram is
+ * simply its position in that order (plus one, since 0 means unseen).
+ * 
+ * offsets[w1] is the position of the first bigram starting with w1, so the
+ * second words of those bigrams are secondWords[offsets[w1] ..
+ * offsets[w1 + 1]), bit packed with just enough bits for the largest word
+ * index. Lookups search that range.
+ * 
+ * For the 8,374,230 bigrams this takes 19 bits per bigram plus 4 bytes per
+ * word, about 22MB, compared to 8 bytes per slot in a BigramIndexer.
+ */
+public class FrozenBigramIndexer implements BigramIndexerInterface {
+
+   final int offsets[];
+   final BitPackedArray secondWords;
+
+   FrozenBigramIndexer(int offsets[], BitPackedArray secondWords) {
+      this.offsets = offsets;
+      this.secondWords = secondWords;
+   }
+
+   /**
+    * Build a frozen copy of the given indexer. The bigrams get new indexes;
+    * newIndexes[i] is set to the new index of the bigram that had index i.
+    * newIndexes must have room for indexer.size() + 1 entries.
+    */
+   public static FrozenBigramIndexer freeze(BigramIndexer indexer,
+         int newIndexes[]) {
+      long slots = indexer.slotCount();
+
+      int maxFirstWord = 0, maxSecondWord = 0;
+      for (long slot = 0; slot < slots; slot++) {
+         if (indexer.slotValue(slot) > 0) {
+            maxFirstWord = Math.max(maxFirstWord, indexer.slotFirstKey(slot));
+            maxSecondWord = Math.max(maxSecondWord, indexer.slotSecondKey(slot));
+         }
+      }
+
+      // Count the bigrams per first word and turn the counts into offsets.
+      int offsets[] = new int[maxFirstWord + 2];
+      for (long slot = 0; slot < slots; slot++) {
+         if (indexer.slotValue(slot) > 0) {
+            offsets[indexer.slotFirstKey(slot) + 1]++;
+         }
+      }
+      for (int i = 1; i < offsets.length; i++) {
+         offsets[i] += offsets[i - 1];
+      }
+
+      // Bucket (second word, old index) pairs by first word, then sort each
+      // bucket by second word.
+      int size = indexer.size();
+      int wordBits = BitPackedArray.bitsFor(maxSecondWord);
+      int indexBits = BitPackedArray.bitsFor(size);
+      BitPackedArray pairs = new BitPackedArray(size, wordBits + indexBits);
+      int next[] = offsets.clone();
+      for (long slot = 0; slot < slots; slot++) {
+         int index = indexer.slotValue(slot);
+         if (index > 0) {
+            long pair = ((long) indexer.slotSecondKey(slot) << indexBits) | index;
+            pairs.set(next[indexer.slotFirstKey(slot)]++, pair);
+         }
+      }
+
+      BitPackedArray secondWords = new BitPackedArray(size, wordBits);
+      long indexMask = (1L << indexBits) - 1;
+      for (int w1 = 0; w1 + 1 < offsets.length; w1++) {
+         pairs.sort(offsets[w1], offsets[w1 + 1]);
+         for (int i = offsets[w1]; i < offsets[w1 + 1]; i++) {
+            long pair = pairs.get(i);
+            secondWords.set(i, pair >>> indexBits);
+            newIndexes[(int) (pair & indexMask)] = i + 1;
+         }
+      }
+
+      return new FrozenBigramIndexer(offsets, secondWords);
+   }
+
+   @Override
+   public int get(int w1, int w2) {
+      if (w1 < 0 || w1 + 1 >= offsets.length || w2 < 0) return 0;
+      long position = secondWords.search(offsets[w1], offsets[w1 + 1], w2, 0);
+      return position < 0 ? 0 : (int) position + 1;
+   }
+
+   @Override
+   public long prefetch(int w1, int w2) {
+      if (w1 < 0 || w1 + 1 >= offsets.length) return 0;
+      // Interpolation usually lands close to the start of small groups.
+      return secondWords.get(offsets[w1]);
+   }
+
+   @Override
+   public int addAndGetIndex(int w1, int w2) {
+      int index = get(w1, w2);
+      if (index == 0) {
+         throw new UnsupportedOperationException(
+               "Can't add bigrams to a frozen indexer");
+      }
+      return index;
+   }
+
+   @Override
+   public int size() {
+      return offsets[offsets.length - 1];
+   }
+
+   /**
+    * Return the number of bytes used by the index.
+    */
+   public long bytes() {
+      return 4L * offsets.length + secondWords.bytes();
+   }
+}
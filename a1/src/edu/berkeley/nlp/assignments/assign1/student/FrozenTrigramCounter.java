@@ -0,0 +1,178 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * A read only trigram counter for serving a finished model, laid out like a
+ * compressed sparse row matrix. The trigrams are grouped by their context
+ * bigram w1w2 and sorted by w3 within a group; offsets[w1w2] is the position
+ * of the first trigram of the group.
+ * 
+ * Each trigram is a single bit packed entry (w3, count code). Counts are very
+ * skewed (most trigrams appear once or twice), so instead of the count itself
+ * the entry stores its rank among the distinct counts, which needs far fewer
+ * bits than the largest count.
+ * 
+ * With 19 bits for w3 that is well under half the 64 bits per entry of the
+ * TrigramCounter hash table, before even counting its empty slots.
+ */
+public class FrozenTrigramCounter implements TrigramCounterInterface {
+
+   final int offsets[];
+   final int counts[];
+   final BitPackedArray entries;
+   final int countBits;
+   final long countMask;
+
+   FrozenTrigramCounter(int offsets[], int counts[], BitPackedArray entries,
+         int countBits) {
+      this.offsets = offsets;
+      this.counts = counts;
+      this.entries = entries;
+      this.countBits = countBits;
+      this.countMask = (1L << countBits) - 1;
+   }
+
+   /**
+    * Build a frozen copy of the given counter, changing the context bigram
+    * indexes as given by newIndexes (see FrozenBigramIndexer.freeze()).
+    */
+   public static FrozenTrigramCounter freeze(TrigramCounter counter,
+         int newIndexes[]) {
+      long slots = counter.slotCount();
+
+      // Find the distinct counts and the largest word index. Spilled counts
+      // can be as large as an int, so only the small ones are marked in an
+      // array, like in ExternalTrigramCounter.finish().
+      int maxWord = 0;
+      boolean smallCounts[] = new boolean[ExternalTrigramCounter.SMALL_COUNTS];
+      TreeSet<Integer> largeCounts = new TreeSet<Integer>();
+      for (long slot = 0; slot < slots; slot++) {
+         int count = counter.slotValue(slot);
+         if (count > 0) {
+            maxWord = Math.max(maxWord, counter.slotSecondKey(slot));
+            if (count < smallCounts.length) {
+               smallCounts[count] = true;
+            } else {
+               largeCounts.add(count);
+            }
+         }
+      }
+      int numCounts = largeCounts.size();
+      for (boolean seen : smallCounts) {
+         if (seen) numCounts++;
+      }
+      int counts[] = new int[numCounts];
+      int numSmallCounts = 0;
+      for (int count = 0; count < smallCounts.length; count++) {
+         if (smallCounts[count]) counts[numSmallCounts++] = count;
+      }
+      for (int count : largeCounts) counts[numSmallCounts++] = count;
+      smallCounts = null;
+
+      // Count the trigrams per context and turn the counts into offsets.
+      int offsets[] = new int[newIndexes.length + 1];
+      for (long slot = 0; slot < slots; slot++) {
+         if (counter.slotValue(slot) > 0) {
+            offsets[newIndexes[counter.slotFirstKey(slot)] + 1]++;
+         }
+      }
+      for (int i = 1; i < offsets.length; i++) {
+         offsets[i] += offsets[i - 1];
+      }
+
+      // Bucket the entries by context, then sort each bucket by w3.
+      int countBits = BitPackedArray.bitsFor(Math.max(numCounts - 1, 0));
+      BitPackedArray entries = new BitPackedArray(counter.size(),
+            BitPackedArray.bitsFor(maxWord) + countBits);
+      int next[] = offsets.clone();
+      for (long slot = 0; slot < slots; slot++) {
+         int count = counter.slotValue(slot);
+         if (count > 0) {
+            long entry = ((long) counter.slotSecondKey(slot) << countBits)
+                  | Arrays.binarySearch(counts, count);
+            entries.set(next[newIndexes[counter.slotFirstKey(slot)]]++, entry);
+         }
+      }
+      next = null;
+      for (int i = 0; i + 1 < offsets.length; i++) {
+         entries.sort(offsets[i], offsets[i + 1]);
+      }
+
+      return new FrozenTrigramCounter(offsets, counts, entries, countBits);
+   }
+
+   @Override
+   public int get(int w1w2, int w3) {
+      long position = indexOf(w1w2, w3);
+      if (position < 0) return 0;
+      return countAt(position);
+   }
+
+   /**
+    * Return the count of the trigram at the given position.
+    */
+   public int countAt(long position) {
+      return counts[(int) (entries.get(position) & countMask)];
+   }
+
+   /**
+    * Return the w3 of the trigram at the given position.
+    */
+   public int wordAt(long position) {
+      return (int) (entries.get(position) >>> countBits);
+   }
+
+   @Override
+   public long indexOf(int w1w2, int w3) {
+      if (w1w2 <= 0 || w1w2 + 1 >= offsets.length || w3 < 0) return -1;
+      return entries.search(offsets[w1w2], offsets[w1w2 + 1], w3, countBits);
+   }
+
+   @Override
+   public long prefetch(int w1w2, int w3) {
+      if (w1w2 <= 0 || w1w2 + 1 >= offsets.length) return 0;
+      // Interpolation usually lands close to the start of small groups.
+      return entries.get(offsets[w1w2]);
+   }
+
+   @Override
+   public int increaseCount(int w1w2, int w3) {
+      throw new UnsupportedOperationException(
+            "Can't count trigrams in a frozen counter");
+   }
+
+   @Override
+   public int adjustOrPutValue(int key1, int key2, int adjustAmount) {
+      throw new UnsupportedOperationException(
+            "Can't count trigrams in a frozen counter");
+   }
+
+   @Override
+   public int size() {
+      return offsets[offsets.length - 1];
+   }
+
+   @Override
+   public long sum() {
+      long sum = 0;
+      for (int i = size() - 1; i >= 0; i--) {
+         sum += countAt(i);
+      }
+      return sum;
+   }
+
+   @Override
+   public void reportTopTrigram() {
+      System.out.println("Top trigram count: "
+            + (counts.length > 0 ? counts[counts.length - 1] : 0));
+   }
+
+   /**
+    * Return the number of bytes used by the counter.
+    */
+   public long bytes() {
+      return 4L * offsets.length + 4L * counts.length + entries.bytes();
+   }
+}
@@ -67,6 +67,39 @@ public final class HashFunctions {
       return ((int) (value ^ (value >>> 32))) * 31;
    }
 
+   /**
+    * Scrambles all 64 bits of the value so that every input bit affects every
+    * output bit (the 64-bit finalizer of MurmurHash3). Unlike hash(long), keys
+    * that only differ in a few high bits, like our packed n-grams, don't end
+    * up in the same neighbourhood.
+    */
+   public static long mix(long value) {
+      value ^= value >>> 33;
+      value *= 0xff51afd7ed558ccdL;
+      value ^= value >>> 33;
+      value *= 0xc4ceb9fe1a85ec53L;
+      value ^= value >>> 33;
+      return value;
+   }
+
+   /**
+    * Map a mixed hash onto [0, length) using its high 32 bits. This is a
+    * multiplication and a shift instead of a modulo.
+    */
+   public static int fastRange(long hash, int length) {
+      return (int) (((hash >>> 32) * length) >>> 32);
+   }
+
+   /**
+    * fastRange() for tables that may have more than 2^31 slots. Below 2^32
+    * slots it gives the same result as the int version; above, it uses fewer
+    * hash bits so that the product still fits in 64 bits (up to 2^40 slots).
+    */
+   public static long fastRange(long hash, long length) {
+      if (length <= 0xFFFFFFFFL) return ((hash >>> 32) * length) >>> 32;
+      return ((hash >>> 40) * length) >>> 24;
+   }
+
    /**
     * Returns a hashcode for the specified object.
     * 
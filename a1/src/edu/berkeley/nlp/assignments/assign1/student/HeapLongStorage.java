@@ -0,0 +1,29 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * Slots stored in a plain long array on the Java heap.
+ */
+public class HeapLongStorage extends LongStorage {
+
+   final long data[];
+
+   public HeapLongStorage(int length) {
+      data = new long[length];
+   }
+
+   @Override
+   public long get(long index) {
+      return data[(int) index];
+   }
+
+   @Override
+   public void set(long index, long value) {
+      data[(int) index] = value;
+   }
+
+   @Override
+   public long length() {
+      return data.length;
+   }
+
+}
@@ -0,0 +1,392 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * An n-gram language model of any order with interpolated, modified
+ * Kneser-Ney smoothing (Chen & Goodman).
+ * 
+ * The n-grams are indexed order by order: the index of a k-gram is looked up
+ * by the index of its first k-1 words and its last word (see NgramIndexer),
+ * and the index of a unigram is its word index + 1.
+ * 
+ * Every order k has its own discounts D1, D2 and D3+ for n-grams whose count
+ * is 1, 2 or more, computed from the number n_c of k-grams with count c:
+ * 
+ * <pre>
+ * Y  = n1 / (n1 + 2 n2)
+ * Dc = c - (c + 1) Y n_{c+1} / n_c
+ * </pre>
+ * 
+ * The counts used are the raw counts for the highest order and for n-grams
+ * starting with START, and the number of distinct words seen before the
+ * n-gram (its continuation count) for the others. The probability of a word w
+ * after the context h is then
+ * 
+ * <pre>
+ * P(w | h) = max(c(h w) - D(c(h w)), 0) / c(h .) + gamma(h) P(w | h')
+ * gamma(h) = (D1 N1(h .) + D2 N2(h .) + D3+ N3+(h .)) / c(h .)
+ * </pre>
+ * 
+ * where h' is h without its first word, and the recursion ends in the uniform
+ * distribution over the vocabulary. If h hasn't been seen, P(w | h) is simply
+ * P(w | h').
+ */
+public class KneserNeyNgramLm implements NgramLanguageModel {
+
+   /**
+    * Initial capacity of the n-gram tables and count arrays of every order.
+    * Everything grows as needed.
+    */
+   static final int INITIAL_CAPACITY = 1 << 16;
+
+   final int order;
+
+   StringIndexer wordIndexer;
+
+   /**
+    * Number of words in the vocabulary when the model was built.
+    */
+   int numWords;
+
+   /**
+    * indexers[k] indexes the k-grams, for 2 <= k <= order.
+    */
+   final NgramIndexer indexers[];
+
+   /**
+    * counts[k][i] is the number of times the k-gram with index i occurs.
+    */
+   final int counts[][];
+
+   /**
+    * adjustedCounts[k][i] is the count of the k-gram i used for smoothing
+    * (see above). For the highest order this is the same array as counts.
+    */
+   final int adjustedCounts[][];
+
+   /**
+    * discounts[k][c] is the discount of a k-gram with a count of c (c = 1, 2,
+    * 3+).
+    */
+   final float discounts[][];
+
+   /**
+    * contextTotals[k][i] is the sum of the adjusted counts of the (k+1)-grams
+    * starting with the k-gram i, and backoffs[k][i] is gamma of the k-gram i.
+    * Order 0 has a single context, the empty one, with index 1.
+    */
+   final int contextTotals[][];
+   final float backoffs[][];
+
+   public KneserNeyNgramLm(Iterable<List<String>> sentenceCollection,
+         int order) {
+      if (order < 1) {
+         throw new IllegalArgumentException("Bad order " + order);
+      }
+      this.order = order;
+      wordIndexer = EnglishWordIndexer.getIndexer();
+      indexers = new NgramIndexer[order + 1];
+      counts = new int[order + 1][];
+      adjustedCounts = new int[order + 1][];
+      for (int k = 1; k <= order; k++) {
+         counts[k] = new int[INITIAL_CAPACITY];
+         if (k < order) adjustedCounts[k] = new int[INITIAL_CAPACITY];
+         if (k > 1) {
+            indexers[k] = new NgramIndexer(INITIAL_CAPACITY,
+                  KneserNeyTrigramLm.loadFactor);
+         }
+      }
+      discounts = new float[order + 1][];
+      contextTotals = new int[order][];
+      backoffs = new float[order][];
+
+      long start = System.currentTimeMillis();
+      buildModel(sentenceCollection);
+      finishModel();
+      System.out.println("Build time: "
+            + (System.currentTimeMillis() - start) / 1000.0 + "s (order "
+            + order + ")");
+   }
+
+   /* (non-Javadoc)
+    * @see edu.berkeley.nlp.langmodel.NgramLanguageModel#getOrder()
+    */
+   @Override
+   public int getOrder() {
+      return order;
+   }
+
+   /* (non-Javadoc)
+    * @see edu.berkeley.nlp.langmodel.NgramLanguageModel#getNgramLogProbability(int[], int, int)
+    */
+   @Override
+   public double getNgramLogProbability(int[] ngram, int from, int to) {
+      if (to - from > order) from = to - order;
+      int word = ngram[to - 1];
+
+      double prob = 1.0 / numWords;
+      int context = 1;
+      for (int k = 1; k <= to - from; k++) {
+         if (k > 1) context = index(ngram, to - k, to - 1);
+         // If the context hasn't been seen or extended, neither have the
+         // longer ones that end with it.
+         if (context <= 0 || context >= contextTotals[k - 1].length) break;
+         int total = contextTotals[k - 1][context];
+         if (total == 0) break;
+
+         int index = k == 1 ? unigramIndex(word) : indexers[k].get(context,
+               word);
+         int count = index > 0 && index < adjustedCounts[k].length
+               ? adjustedCounts[k][index]
+               : 0;
+         prob = Math.max(count - discount(k, count), 0) / total
+               + backoffs[k - 1][context] * prob;
+      }
+      return Math.log(prob);
+   }
+
+   /* (non-Javadoc)
+    * @see edu.berkeley.nlp.langmodel.NgramLanguageModel#getCount(int[])
+    */
+   @Override
+   public long getCount(int[] ngram) {
+      if (ngram.length == 0 || ngram.length > order) return 0;
+      int index = index(ngram, 0, ngram.length);
+      int k = ngram.length;
+      return index > 0 && index < counts[k].length ? counts[k][index] : 0;
+   }
+
+   /**
+    * Return the index of the n-gram ngram[from .. to), or 0 if it hasn't been
+    * seen.
+    */
+   int index(int ngram[], int from, int to) {
+      int index = unigramIndex(ngram[from]);
+      for (int i = from + 1; i < to && index > 0; i++) {
+         index = indexers[i - from + 1].get(index, ngram[i]);
+      }
+      return index;
+   }
+
+   int unigramIndex(int word) {
+      return word >= 0 && word + 1 < counts[1].length ? word + 1 : 0;
+   }
+
+   float discount(int k, int count) {
+      return count == 0 ? 0 : discounts[k][Math.min(count, 3)];
+   }
+
+   /**
+    * Count all n-grams of every order up to the model's.
+    */
+   private void buildModel(Iterable<List<String>> sentenceCollection) {
+      System.out.println("Building the order " + order
+            + " language model . . .");
+      int startWord = wordIndexer.addAndGetIndex(NgramLanguageModel.START);
+      int stopWord = wordIndexer.addAndGetIndex(NgramLanguageModel.STOP);
+
+      // previous[k] is the index of the k-gram ending at the previous word.
+      int previous[] = new int[order + 1];
+      int current[] = new int[order + 1];
+
+      int num_sentence = 0;
+      for (List<String> sentence : sentenceCollection) {
+         num_sentence++;
+         if (num_sentence % 1000000 == 0) {
+            System.out.println("On sentence " + num_sentence);
+         }
+
+         int position = 0;
+         countWord(position++, startWord, previous, current);
+         for (String word : sentence) {
+            int tmp[] = previous;
+            previous = current;
+            current = tmp;
+            countWord(position++, wordIndexer.addAndGetIndex(word), previous,
+                  current);
+         }
+         int tmp[] = previous;
+         previous = current;
+         current = tmp;
+         countWord(position, stopWord, previous, current);
+      }
+   }
+
+   /**
+    * Count the n-grams ending with the word at the given position of a
+    * sentence.
+    */
+   private void countWord(int position, int word, int previous[],
+         int current[]) {
+      int unigram = word + 1;
+      ensureCapacity(1, unigram);
+      counts[1][unigram]++;
+      current[1] = unigram;
+
+      int maxOrder = Math.min(order, position + 1);
+      for (int k = 2; k <= maxOrder; k++) {
+         NgramIndexer indexer = indexers[k];
+         int oldSize = indexer.size();
+         int index = indexer.addAndGetIndex(previous[k - 1], word);
+         ensureCapacity(k, index);
+         counts[k][index]++;
+         current[k] = index;
+
+         if (index > oldSize) {
+            // Assertion: This is a new k-gram, so its suffix has one more
+            // distinct word before it.
+            adjustedCounts[k - 1][current[k - 1]]++;
+         }
+         if (k < order && position == k - 1) {
+            // No word comes before an n-gram starting with START.
+            adjustedCounts[k][index]++;
+         }
+      }
+   }
+
+   private void ensureCapacity(int k, int index) {
+      if (index >= counts[k].length) {
+         counts[k] = Utils.ensureCapacity(counts[k], index);
+         if (k < order) {
+            adjustedCounts[k] = Utils.ensureCapacity(adjustedCounts[k], index);
+         }
+      }
+   }
+
+   /**
+    * Compute the discounts and the context totals once all the counts are in.
+    */
+   private void finishModel() {
+      numWords = wordIndexer.size();
+      for (int k = 1; k <= order; k++) {
+         int size = numNgrams(k);
+         counts[k] = Utils.trim(counts[k], size + 1);
+         adjustedCounts[k] = k < order
+               ? Utils.trim(adjustedCounts[k], size + 1)
+               : counts[k];
+         discounts[k] = modifiedDiscounts(adjustedCounts[k]);
+      }
+
+      for (int k = 1; k <= order; k++) {
+         int numContexts = k == 1 ? 1 : numNgrams(k - 1);
+         int totals[] = new int[numContexts + 1];
+         double mass[] = new double[numContexts + 1];
+         int adjusted[] = adjustedCounts[k];
+         if (k == 1) {
+            for (int i = 1; i < adjusted.length; i++) {
+               totals[1] += adjusted[i];
+               mass[1] += discount(1, adjusted[i]);
+            }
+         } else {
+            NgramIndexer indexer = indexers[k];
+            int slots = indexer.slotCount();
+            for (int slot = 0; slot < slots; slot++) {
+               int index = indexer.slotIndex(slot);
+               if (index > 0) {
+                  int context = indexer.slotContext(slot);
+                  totals[context] += adjusted[index];
+                  mass[context] += discount(k, adjusted[index]);
+               }
+            }
+         }
+
+         float gamma[] = new float[numContexts + 1];
+         for (int i = 1; i <= numContexts; i++) {
+            if (totals[i] > 0) gamma[i] = (float) (mass[i] / totals[i]);
+         }
+         contextTotals[k - 1] = totals;
+         backoffs[k - 1] = gamma;
+      }
+
+      System.out.println("Done building language model.");
+      reportStatus();
+      System.out.println(ComponentStats.table(componentStats()));
+   }
+
+   int numNgrams(int k) {
+      return k == 1 ? numWords : indexers[k].size();
+   }
+
+   /**
+    * Return the modified Kneser-Ney discounts D1, D2 and D3+ (at indexes 1 to
+    * 3) for the given counts. A discount that comes out of range because some
+    * count of counts is 0, as in a tiny corpus, falls back to the plain
+    * Kneser-Ney discount.
+    */
+   static float[] modifiedDiscounts(int counts[]) {
+      long n[] = new long[5];
+      for (int i = 1; i < counts.length; i++) {
+         if (counts[i] >= 1 && counts[i] <= 4) n[counts[i]]++;
+      }
+      double y = n[1] / (n[1] + 2.0 * n[2]);
+      float d[] = new float[4];
+      for (int c = 1; c <= 3; c++) {
+         double discount = c - (c + 1) * y * n[c + 1] / n[c];
+         if (!(discount > 0 && discount < c)) {
+            discount = KneserNeyTrigramLm.defaultDiscount;
+         }
+         d[c] = (float) discount;
+      }
+      return d;
+   }
+
+   protected void reportStatus() {
+      for (int k = 1; k <= order; k++) {
+         System.out.println("Order " + k + ": " + numNgrams(k)
+               + " n-grams, discounts " + discounts[k][1] + " "
+               + discounts[k][2] + " " + discounts[k][3]);
+      }
+      System.out.println();
+   }
+
+   /**
+    * Return the number of bytes used by the n-grams of the given order: the
+    * table, the counts, and the context totals and backoffs of the (k+1)-grams
+    * starting with them.
+    */
+   public long bytes(int k) {
+      long bytes = 4L * counts[k].length;
+      if (k < order) {
+         bytes += 4L * adjustedCounts[k].length + 4L
+               * contextTotals[k].length + 4L * backoffs[k].length;
+      }
+      if (k > 1) bytes += indexers[k].bytes();
+      return bytes;
+   }
+
+   /**
+    * Return the retained bytes of every order (see bytes(k)) and the
+    * occupancy of its table, without forcing a garbage collection. The
+    * unigrams have no table; their slots are the word indexes.
+    */
+   List<ComponentStats> componentStats() {
+      List<ComponentStats> stats = new ArrayList<ComponentStats>();
+      for (int k = 1; k <= order; k++) {
+         if (k == 1) {
+            stats.add(new ComponentStats("order 1", counts[1], bytes(1),
+                  numWords, counts[1].length - 1, Float.NaN, Double.NaN, -1));
+         } else {
+            NgramIndexer indexer = indexers[k];
+            stats.add(new ComponentStats("order " + k, indexer, bytes(k),
+                  indexer.size(), indexer.slotCount(), indexer.loadFactor,
+                  Double.NaN, -1));
+         }
+      }
+      return stats;
+   }
+
+   /**
+    * Return the number of bytes used by the model.
+    */
+   public long bytes() {
+      long bytes = 0;
+      for (int k = 1; k <= order; k++) bytes += bytes(k);
+      return bytes;
+   }
+}
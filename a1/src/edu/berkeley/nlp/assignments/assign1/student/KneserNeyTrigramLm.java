@@ -1,6 +1,9 @@
 package edu.berkeley.nlp.assignments.assign1.student;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
@@ -15,14 +18,14 @@ import edu.berkeley.nlp.util.StringIndexer;
 public class KneserNeyTrigramLm implements NgramLanguageModel {
 
    /**
-    * Discounting factor in Kneser-Ney.
+    * Discounting factor in Kneser-Ney, unless setDiscounts() picks others.
     * 0.70 -> 24.493
     * 0.75 -> 24.502
     * 0.80 -> 24.520
     * 0.90 -> 24.533
     * 0.95 -> 24.493
     */
-   public static final float discount = 0.9f;
+   public static final float defaultDiscount = 0.9f;
    
    /**
     * Hash table load factor. The larger this is, the less memory
@@ -34,13 +37,17 @@ public class KneserNeyTrigramLm implements NgramLanguageModel {
     * 0.85 -> 331.348s, 881M
     * 0.90 -> 354.125s, 861M
     * 0.95 -> 710.900s, 836M
+    * (building the full model, timed by hand). HashMapBenchmark in bench/src
+    * measures the lookups per load factor reproducibly; see the bench target
+    * of build_assign1.xml.
     */
    public static final float loadFactor = 0.75f;
    
    /**
     * Initial capacities for the counters and hash maps. Note that this
     * parameter should not affect the language model performance. It only helps
-    * speed up the model training.
+    * speed up the model training. Everything grows if the corpus turns out to
+    * be larger.
     */
    public static final int initial_unigram_capacity = 495200;
    public static final int initial_bigram_capacity  = 8375000;
@@ -68,6 +75,18 @@ public class KneserNeyTrigramLm implements NgramLanguageModel {
     */
    public static final double very_small_value = 1e-6;
 
+   /**
+    * Bigram index in a scoring state whose context is a single word.
+    */
+   static final int START_CONTEXT = -1;
+
+   /**
+    * Number of pairs scoreBatch() looks up together. Large enough to keep
+    * many cache misses in flight, small enough that the touched slots are
+    * still cached when they're looked up.
+    */
+   static final int SCORE_BATCH_BLOCK = 64;
+
    /**
     * Unigram word indexer and counter.
     */
@@ -77,7 +96,7 @@ public class KneserNeyTrigramLm implements NgramLanguageModel {
    /**
     * Bigram indexer and bigram counter.
     */
-   BigramIndexer bigramIndexer;
+   BigramIndexerInterface bigramIndexer;
    int bigramCounter[];
 
    /**
@@ -85,6 +104,14 @@ public class KneserNeyTrigramLm implements NgramLanguageModel {
     * data structure that consumes the most amount of memory.
     */
    TrigramCounterInterface trigramCounter;
+   int trigramCapacity;
+
+   /**
+    * Initial key widths of the hash tables: bits per word and per bigram
+    * index. The tables widen them if the corpus outgrows them.
+    */
+   int wordBits;
+   int bigramBits;
    int totalTrigram = 0;
 
    /**
@@ -104,49 +131,413 @@ public class KneserNeyTrigramLm implements NgramLanguageModel {
    double unseenBigramLogProb = 0;
    double unseenTrigramLogProb = 0;
 
+   /**
+    * discounts[c] is the discount of a trigram with a count of c (c = 1, 2,
+    * 3+), as in KneserNeyNgramLm.
+    */
+   float discounts[] = { 0, defaultDiscount, defaultDiscount, defaultDiscount };
+
+   /**
+    * N1(w1 w2 .) and N2(w1 w2 .), the number of words seen once and twice
+    * after a bigram. Only counted while the discounts differ, since the
+    * interpolation weight then depends on them.
+    */
+   int n1_bigram_x[];
+   int n2_bigram_x[];
+
+   /**
+    * Precomputed log probabilities, set by quantize().
+    */
+   QuantizedLogProbTables quantized;
+
+   /**
+    * Filters of the seen bigrams, keyed by their words, and of the seen
+    * trigrams, keyed by the index of their first bigram and their last word,
+    * and the bits per n-gram they were built with. Null and 0 without
+    * filters (see buildFilters()).
+    */
+   BlockedBloomFilter bigramFilter;
+   BlockedBloomFilter trigramFilter;
+   double filterBitsPerKey;
+
    public KneserNeyTrigramLm(Iterable<List<String>> sentenceCollection,
          boolean approximate) {
+      this(sentenceCollection, options(approximate));
+   }
 
-      if (Runtime.getRuntime().maxMemory() > 500 * 1024 * 1024) {
-         init(initial_unigram_capacity, initial_bigram_capacity,
-               initial_trigram_capacity, approximate);
+   public KneserNeyTrigramLm(Iterable<List<String>> sentenceCollection,
+         LmBuildOptions options) {
+      init(options);
+
+      long start = System.currentTimeMillis();
+      long allocated = Utils.allocatedBytes();
+      long numTokens;
+      if (options.numThreads > 1) {
+         numTokens = new ParallelLmBuilder(this, options)
+               .build(sentenceCollection);
       } else {
-         init(initial_unigram_capacity_small, initial_bigram_capacity_small,
-               initial_trigram_capacity_small, approximate);
+         numTokens = buildModel(sentenceCollection);
       }
-      
-      buildModel(sentenceCollection);
+      reportBuildTime(start, allocated, numTokens, options);
    }
 
    /**
-    * Allocate memory for the structures. The structures are allocated here so I
-    * can better measure the memory consumption.
+    * Build the model from a file with one tokenized sentence per line. The
+    * file is read through a memory map and tokenized in place (see
+    * MappedCorpusReader), so no Strings or Lists are created per sentence. The
+    * model is the same as the one built from new SentenceCollection(file).
+    */
+   public KneserNeyTrigramLm(File corpus, LmBuildOptions options)
+         throws IOException {
+      init(options);
+
+      long start = System.currentTimeMillis();
+      long allocated = Utils.allocatedBytes();
+      MappedCorpusReader reader = new MappedCorpusReader(corpus,
+            new TokenIndexer(wordIndexer, unigramCapacity(options), loadFactor));
+      if (options.numThreads > 1) {
+         new ParallelLmBuilder(this, options).build(reader);
+      } else {
+         buildModel(reader);
+      }
+      reportBuildTime(start, allocated, reader.numTokens(), options);
+   }
+
+   private void init(LmBuildOptions options) {
+      boolean large = isLarge();
+      init(unigramCapacity(options),
+            capacity(options.bigramCapacity, large, initial_bigram_capacity,
+                  initial_bigram_capacity_small),
+            capacity(options.trigramCapacity, large, initial_trigram_capacity,
+                  initial_trigram_capacity_small),
+            options);
+   }
+
+   private static boolean isLarge() {
+      return Runtime.getRuntime().maxMemory() > 500 * 1024 * 1024;
+   }
+
+   private static int unigramCapacity(LmBuildOptions options) {
+      return capacity(options.unigramCapacity, isLarge(),
+            initial_unigram_capacity, initial_unigram_capacity_small);
+   }
+
+   /**
+    * Print the build time, the throughput, and how much the building thread
+    * allocated (when the JVM can tell).
+    */
+   private static void reportBuildTime(long start, long allocated,
+         long numTokens, LmBuildOptions options) {
+      double seconds = (System.currentTimeMillis() - start) / 1000.0;
+      System.out.println("Build time: " + seconds + "s ("
+            + options.numThreads + " threads)");
+      String line = String.format("Read %d tokens (%.0f tokens/s)", numTokens,
+            numTokens / Math.max(seconds, 1e-3));
+      if (allocated >= 0) {
+         double mb = (Utils.allocatedBytes() - allocated) / (1024.0 * 1024);
+         line += String.format(", allocated %.1fMB (%.1fMB/s) on the "
+               + "building thread", mb, mb / Math.max(seconds, 1e-3));
+      }
+      System.out.println(line);
+   }
+
+   private static int capacity(int requested, boolean large, int normal,
+         int small) {
+      if (requested > 0) return requested;
+      return large ? normal : small;
+   }
+
+   private static LmBuildOptions options(boolean approximate) {
+      LmBuildOptions options = new LmBuildOptions();
+      options.approximate = approximate;
+      return options;
+   }
+
+   /**
+    * Used by LmSnapshot, which fills in the fields itself.
+    */
+   KneserNeyTrigramLm() {
+   }
+
+   /**
+    * An empty model with its tables allocated, for LmMerger to fill in.
+    */
+   KneserNeyTrigramLm(LmBuildOptions options) {
+      init(options);
+   }
+
+   /**
+    * Load a model saved by save(). The hash tables are memory mapped read
+    * only, so the model is ready to answer queries as soon as this returns and
+    * several processes serving the same file share the page cache.
+    */
+   public static KneserNeyTrigramLm load(File file) throws IOException {
+      long start = System.currentTimeMillis();
+      KneserNeyTrigramLm lm = LmSnapshot.load(file);
+      System.out.println("Loaded language model from " + file + " in "
+            + (System.currentTimeMillis() - start) / 1000.0 + "s");
+      lm.reportStatus();
+      return lm;
+   }
+
+   /**
+    * Save the model to a binary snapshot file that can be loaded by load().
+    */
+   public void save(File file) throws IOException {
+      LmSnapshot.save(this, file);
+   }
+
+   /**
+    * Replace the hash tables with sorted, bit packed read only stores (see
+    * FrozenBigramIndexer and FrozenTrigramCounter). They take a fraction of
+    * the memory but lookups search a sorted range instead of probing a hash
+    * table, and nothing can be added to the model afterwards. The bigrams are
+    * renumbered, so the arrays indexed by bigram are reordered too.
+    */
+   public void freeze() {
+      if (!(bigramIndexer instanceof BigramIndexer)
+            || !(trigramCounter instanceof TrigramCounter)) {
+         throw new IllegalStateException(
+               "Only exact models that aren't frozen yet can be frozen");
+      }
+      if (quantized != null) {
+         throw new IllegalStateException("Freeze the model before quantizing it");
+      }
+      long start = System.currentTimeMillis();
+      // The trigram filter is keyed by the old bigram indexes.
+      bigramFilter = trigramFilter = null;
+
+      int newIndexes[] = new int[bigramIndexer.size() + 1];
+      FrozenBigramIndexer frozenBigrams = FrozenBigramIndexer.freeze(
+            (BigramIndexer) bigramIndexer, newIndexes);
+      trigramCounter = FrozenTrigramCounter.freeze(
+            (TrigramCounter) trigramCounter, newIndexes);
+      bigramIndexer = frozenBigrams;
+
+      bigramCounter = reorder(bigramCounter, newIndexes);
+      n1plus_bigram_x = reorder(n1plus_bigram_x, newIndexes);
+      n1plus_x_bigram = reorder(n1plus_x_bigram, newIndexes);
+      if (n1_bigram_x != null) {
+         n1_bigram_x = reorder(n1_bigram_x, newIndexes);
+         n2_bigram_x = reorder(n2_bigram_x, newIndexes);
+      }
+
+      System.out.println("Freezing time: "
+            + (System.currentTimeMillis() - start) / 1000.0 + "s");
+      if (filterBitsPerKey > 0) buildFilters(filterBitsPerKey);
+      reportStatus();
+      System.out.println(stats());
+   }
+
+   /**
+    * Precompute the log probabilities of the model and store them as codes of
+    * the given number of bits (see QuantizedLogProbTables). Queries then use
+    * the tables and are approximate; getExactLogProbability() still computes
+    * the exact values. The tables aren't saved with the model, so a loaded
+    * model has to be quantized again.
+    */
+   public void quantize(int bits) {
+      long start = System.currentTimeMillis();
+      quantized = null;
+      quantized = new QuantizedLogProbTables(this, bits);
+      System.out.println("Quantizing time: "
+            + (System.currentTimeMillis() - start) / 1000.0 + "s, "
+            + quantized.bytes() / (1024 * 1024) + "MB of tables");
+   }
+
+   /**
+    * Use the given discounts for trigrams seen once, twice and three or more
+    * times (modified Kneser-Ney); three equal discounts are plain Kneser-Ney.
+    * The counts don't depend on the discounts, so nothing is rebuilt, but
+    * the quantized tables, which do, are dropped. Different discounts need
+    * exact trigram counts.
+    */
+   public void setDiscounts(float discount1, float discount2, float discount3) {
+      if (!(discount1 > 0 && discount1 < 1 && discount2 > 0 && discount2 < 2
+            && discount3 > 0 && discount3 < 3)) {
+         throw new IllegalArgumentException("Bad discounts " + discount1 + " "
+               + discount2 + " " + discount3);
+      }
+      discounts = new float[] { 0, discount1, discount2, discount3 };
+      quantized = null;
+      if (discount1 == discount2 && discount2 == discount3) {
+         n1_bigram_x = null;
+         n2_bigram_x = null;
+      } else if (n1_bigram_x == null) {
+         countContextsByCount();
+      }
+   }
+
+   /**
+    * Return the discounts D1, D2 and D3+.
+    */
+   public float[] getDiscounts() {
+      return new float[] { discounts[1], discounts[2], discounts[3] };
+   }
+
+   /**
+    * Return a model that shares the counts and tables of this one but uses
+    * the given discounts (see setDiscounts()), so that many discounts can be
+    * tried, even at the same time, without copying or rebuilding anything.
+    * N1 and N2 are counted once, here, and shared. Neither model may be
+    * updated while the view is used.
+    */
+   public KneserNeyTrigramLm withDiscounts(float discount1, float discount2,
+         float discount3) {
+      if (n1_bigram_x == null
+            && !(discount1 == discount2 && discount2 == discount3)) {
+         countContextsByCount();
+      }
+      KneserNeyTrigramLm view = new KneserNeyTrigramLm();
+      view.wordIndexer = wordIndexer;
+      view.unigramCounter = unigramCounter;
+      view.bigramIndexer = bigramIndexer;
+      view.bigramCounter = bigramCounter;
+      view.trigramCounter = trigramCounter;
+      view.trigramCapacity = trigramCapacity;
+      view.wordBits = wordBits;
+      view.bigramBits = bigramBits;
+      view.totalTrigram = totalTrigram;
+      view.n1plus_x_unigram_x = n1plus_x_unigram_x;
+      view.n1plus_bigram_x = n1plus_bigram_x;
+      view.n1plus_x_bigram = n1plus_x_bigram;
+      view.n1_bigram_x = n1_bigram_x;
+      view.n2_bigram_x = n2_bigram_x;
+      view.num_unigrams = num_unigrams;
+      view.num_bigrams = num_bigrams;
+      view.num_trigrams = num_trigrams;
+      view.unseenBigramLogProb = unseenBigramLogProb;
+      view.unseenTrigramLogProb = unseenTrigramLogProb;
+      view.bigramFilter = bigramFilter;
+      view.trigramFilter = trigramFilter;
+      view.filterBitsPerKey = filterBitsPerKey;
+      view.setDiscounts(discount1, discount2, discount3);
+      return view;
+   }
+
+   /**
+    * Count N1(w1 w2 .) and N2(w1 w2 .) from the trigram counts.
+    */
+   private void countContextsByCount() {
+      if (!(trigramCounter instanceof TrigramCounter)
+            && !(trigramCounter instanceof FrozenTrigramCounter)) {
+         throw new IllegalStateException(
+               "Modified discounts need exact trigram counts");
+      }
+      int n1[] = new int[bigramCounter.length];
+      int n2[] = new int[bigramCounter.length];
+      QuantizedLogProbTables.TrigramWalker walker =
+            new QuantizedLogProbTables.TrigramWalker(this, null);
+      while (walker.next()) {
+         if (walker.count == 1) {
+            n1[walker.context]++;
+         } else if (walker.count == 2) {
+            n2[walker.context]++;
+         }
+      }
+      n1_bigram_x = n1;
+      n2_bigram_x = n2;
+   }
+
+   /**
+    * Fill in the first and second word of every bigram, by bigram index.
+    */
+   void getBigramWords(int firstWords[], int secondWords[]) {
+      if (bigramIndexer instanceof FrozenBigramIndexer) {
+         FrozenBigramIndexer frozen = (FrozenBigramIndexer) bigramIndexer;
+         for (int w1 = 0; w1 + 1 < frozen.offsets.length; w1++) {
+            for (int i = frozen.offsets[w1]; i < frozen.offsets[w1 + 1]; i++) {
+               firstWords[i + 1] = w1;
+               secondWords[i + 1] = (int) frozen.secondWords.get(i);
+            }
+         }
+      } else {
+         CrazilyPackedHashMap indexer = (CrazilyPackedHashMap) bigramIndexer;
+         long slots = indexer.slotCount();
+         for (long slot = 0; slot < slots; slot++) {
+            int index = indexer.slotValue(slot);
+            if (index > 0) {
+               firstWords[index] = indexer.slotFirstKey(slot);
+               secondWords[index] = indexer.slotSecondKey(slot);
+            }
+         }
+      }
+   }
+
+   /**
+    * Return a copy of a bigram indexed array with the new bigram indexes.
+    * Index 0, the unseen bigram, stays where it is.
+    */
+   private static int[] reorder(int arr[], int newIndexes[]) {
+      int reordered[] = new int[newIndexes.length];
+      reordered[0] = arr[0];
+      for (int i = 1; i < newIndexes.length; i++) {
+         reordered[newIndexes[i]] = arr[i];
+      }
+      return reordered;
+   }
+
+   /**
+    * Allocate memory for the structures. What each of them uses is reported
+    * by stats().
     */
    private void init(int unigram_cap, int bigram_cap, int trigram_cap,
-         boolean approximate) {
-     Utils.reportMemoryUsage();
+         LmBuildOptions options) {
       wordIndexer = EnglishWordIndexer.getIndexer();
-      Utils.reportMemoryUsage();
       unigramCounter = new int[unigram_cap];
-      Utils.reportMemoryUsage();
-      bigramIndexer = new BigramIndexer(bigram_cap, loadFactor);
-      Utils.reportMemoryUsage();
+      // Size the keys for the expected vocabulary and number of bigrams, but
+      // never below the widths of the original corpus.
+      wordBits = options.wordBits > 0 ? options.wordBits : Math.max(19,
+            BitPackedArray.bitsFor(unigram_cap));
+      bigramBits = options.bigramBits > 0 ? options.bigramBits : Math.max(23,
+            BitPackedArray.bitsFor(bigram_cap));
+      bigramIndexer = new BigramIndexer(bigram_cap, options.loadFactor,
+            options.probing, options.offHeap, wordBits);
       bigramCounter = new int[bigram_cap];
-      Utils.reportMemoryUsage();
       
-      if (!approximate) {
-         trigramCounter = new TrigramCounter(trigram_cap, loadFactor);
+      trigramCapacity = trigram_cap;
+      if (options.numThreads > 1
+            && (options.approximate || options.sketchBytes > 0)) {
+         // ParallelLmBuilder counts the distinct trigrams exactly, so with
+         // collisions or overestimates its N1+ counts would differ from
+         // those of a sequential build.
+         throw new IllegalArgumentException("Building on several threads "
+               + "needs exact trigram counts");
+      }
+      if (options.externalTrigramBuffer > 0) {
+         if (options.approximate || options.sketchBytes > 0
+               || options.numThreads > 1) {
+            throw new IllegalArgumentException("External trigram counting "
+                  + "needs exact counts and a single thread");
+         }
+         trigramCounter = new ExternalTrigramCounter(
+               options.externalTrigramBuffer, options.runDirectory,
+               options.loadFactor, options.probing, options.offHeap,
+               bigramBits, wordBits);
+      } else if (options.sketchBytes > 0) {
+         trigramCounter = new CountMinTrigramCounter(
+               options.sketchBytes * 3 / 4, options.sketchRows,
+               options.sketchBytes / 4, options.heavyHitterCapacity,
+               options.heavyHitterThreshold, options.offHeap);
+      } else if (!options.approximate) {
+         trigramCounter = new TrigramCounter(trigram_cap, options.loadFactor,
+               options.probing, options.offHeap, bigramBits, wordBits);
       } else {
-         trigramCounter = new TrigramCounterApproximate(trigram_cap, loadFactor);
+         trigramCounter = new TrigramCounterApproximate(trigram_cap,
+               options.loadFactor, options.offHeap, options.fingerprintBits,
+               options.countBits);
       }
-      Utils.reportMemoryUsage();
-      
+
       n1plus_x_unigram_x = new int[unigram_cap];
-      Utils.reportMemoryUsage();
       n1plus_bigram_x = new int[bigram_cap];
-      Utils.reportMemoryUsage();
       n1plus_x_bigram = new int[bigram_cap];
-      Utils.reportMemoryUsage();
+
+      if (options.filterBitsPerKey > 0
+            && (options.approximate || options.sketchBytes > 0)) {
+         throw new IllegalArgumentException(
+               "The n-gram filters need exact trigram counts");
+      }
+      filterBitsPerKey = options.filterBitsPerKey;
    }
 
    /* (non-Javadoc)
@@ -162,56 +553,134 @@ public class KneserNeyTrigramLm implements NgramLanguageModel {
     */
    @Override
    public double getNgramLogProbability(int[] ngram, int from, int to) {
+      if (quantized != null) {
+         return quantized.getLogProbability(ngram, from, to);
+      }
+      return getExactLogProbability(ngram, from, to);
+   }
+
+   /**
+    * Compute the log probability from the counts, ignoring the quantized
+    * tables if there are any.
+    */
+   public double getExactLogProbability(int[] ngram, int from, int to) {
       if (to - from == 3) {
          // Assertion: Trigram.
-         double prob = 0.0;
          int word2 = ngram[from + 1];
+         int word1word2 = bigram(ngram[from], word2);
+         int word2word3 = bigram(word2, ngram[from + 2]);
+         return exactTrigramLogProbability(word1word2, word2word3, word2,
+               ngram[from + 2]);
 
-         int word1word2 = bigramIndexer.get(ngram[from], word2);
-         int word2word3 = bigramIndexer.get(word2, ngram[from + 2]);
+      } else {
+         // Assertion: Bigram, beginning of a sentence.
+         int word1word2 = bigram(ngram[from], ngram[from + 1]);
+         return bigramLogProbability(ngram[from], word1word2);
+      }
+   }
 
-         int word1word2count = word1word2 > 0 ? bigramCounter[word1word2] : 1;
+   /**
+    * Return the index of the bigram w1 w2, or 0 if it wasn't seen, without
+    * probing the bigram table if the filter rules it out.
+    */
+   int bigram(int w1, int w2) {
+      if (bigramFilter != null
+            && !bigramFilter.mightContain(Utils.pack(w1, w2))) {
+         return 0;
+      }
+      return bigramIndexer.get(w1, w2);
+   }
 
-         if (word1word2 > 0 && word2word3 > 0) {
-            int trigramCount = trigramCounter.get(word1word2, ngram[from + 2]);
-            if (trigramCount > 0) {
-               prob = (trigramCount - discount) / word1word2count;
-            } // else prob = 0;
-         } // else prob = 0;
-         
-         double bigram_x = word1word2 > 0
-               ? n1plus_bigram_x[word1word2]
-               : very_small_value;
-         double x_bigram = word2word3 > 0
-               ? n1plus_x_bigram[word2word3]
-               : very_small_value;
+   /**
+    * The exact log probability of w3 after w1 w2, given the indexes of the
+    * bigrams w1 w2 and w2 w3 (0 if unseen).
+    */
+   double exactTrigramLogProbability(int word1word2, int word2word3,
+         int word2, int word3) {
+      int trigramCount = 0;
+      if (word1word2 > 0 && word2word3 > 0 && (trigramFilter == null
+            || trigramFilter.mightContain(Utils.pack(word1word2, word3)))) {
+         trigramCount = trigramCounter.get(word1word2, word3);
+      }
+      return Math.log(trigramProbability(word1word2, word2word3, word2,
+            trigramCount));
+   }
 
-         int x_unigram_x = (word2 <= 0 || word2 >= n1plus_x_unigram_x.length)
-               ? 1
-               : n1plus_x_unigram_x[word2];
+   /**
+    * The interpolated Kneser-Ney probability of a trigram, given the indexes
+    * of its two bigrams (0 if unseen), its middle word and its count.
+    * 
+    * A trigram can't occur more often than its first bigram, but the
+    * approximate counters (fingerprints, sketches) can overestimate a count
+    * well past that, which would give probabilities above 1. Counts are
+    * clamped to c(w1 w2), which leaves exact counts alone; with approximate
+    * counts the probabilities after a context still needn't sum to 1.
+    */
+   double trigramProbability(int word1word2, int word2word3, int word2,
+         int trigramCount) {
+      double prob = 0.0;
+      int word1word2count = word1word2 > 0 ? bigramCounter[word1word2] : 1;
+      trigramCount = Math.min(trigramCount, word1word2count);
+
+      if (trigramCount > 0) {
+         prob = (trigramCount - discount(trigramCount)) / word1word2count;
+      } // else prob = 0;
+
+      double mass = word1word2 > 0
+            ? discountMass(word1word2)
+            : discounts[1] * very_small_value;
+      double x_bigram = word2word3 > 0
+            ? atLeastOne(n1plus_x_bigram[word2word3])
+            : very_small_value;
 
-         prob += discount * bigram_x * x_bigram / x_unigram_x / word1word2count;
+      int x_unigram_x = (word2 <= 0 || word2 >= n1plus_x_unigram_x.length)
+            ? 1
+            : atLeastOne(n1plus_x_unigram_x[word2]);
+
+      prob += mass * x_bigram / x_unigram_x / word1word2count;
+      return prob;
+   }
 
-         return Math.log(prob);
+   float discount(int count) {
+      return count == 0 ? 0 : discounts[Math.min(count, 3)];
+   }
+
+   /**
+    * The probability mass the discounts take from the trigrams after the
+    * bigram w1 w2: D N1+(w1 w2 .), or D1 N1 + D2 N2 + D3+ N3+ with modified
+    * discounts. Divided by c(w1 w2) it's the interpolation weight.
+    */
+   double discountMass(int word1word2) {
+      int n1plus = n1plus_bigram_x[word1word2];
+      if (n1_bigram_x == null || n1plus == 0) {
+         return discounts[1] * (double) atLeastOne(n1plus);
+      }
+      int n1 = n1_bigram_x[word1word2];
+      int n2 = n2_bigram_x[word1word2];
+      return discounts[1] * (double) n1 + discounts[2] * (double) n2
+            + discounts[3] * (double) (n1plus - n1 - n2);
+   }
 
+   /**
+    * The log probability of a bigram at the beginning of a sentence, given
+    * its first word and its index (0 if unseen).
+    */
+   double bigramLogProbability(int word1, int word1word2) {
+      // if (word1word2 == 0) return unseenBigramLogProb;
+      // Like every count, the count of the unseen bigram 0 is taken as 1.
+      double x_bigram = (atLeastOne(bigramCounter[word1word2]) > 0)
+            ? atLeastOne(n1plus_x_bigram[word1word2])
+            : very_small_value;
+      int word1count = (word1 < 0 || word1 >= n1plus_x_unigram_x.length)
+            ? 1
+            : atLeastOne(n1plus_x_unigram_x[word1]);
+      if (word1count <= 0) {
+         // return unseenBigramLogProb;
+         return Math.log(very_small_value);
       } else {
-         // Assertion: Bigram, beginning of a sentence.
-         int word1word2 = bigramIndexer.get(ngram[from], ngram[from + 1]);
-         // if (word1word2 == 0) return unseenBigramLogProb;
-         double x_bigram = (bigramCounter[word1word2] > 0)
-               ? n1plus_x_bigram[word1word2]
-               : very_small_value;
-         int word1count = (ngram[from] < 0 || ngram[from] >= n1plus_x_unigram_x.length)
-               ? 1
-               : n1plus_x_unigram_x[ngram[from]];
-         if (word1count <= 0) {
-            // return unseenBigramLogProb;
-            return Math.log(very_small_value);
-         } else {
-            if (x_bigram <= 0)
-               x_bigram = very_small_value;
-            return Math.log(x_bigram / word1count);
-         }
+         if (x_bigram <= 0)
+            x_bigram = very_small_value;
+         return Math.log(x_bigram / word1count);
       }
    }
 
@@ -234,15 +703,139 @@ public class KneserNeyTrigramLm implements NgramLanguageModel {
       return count;
    }
 
+   /**
+    * Return the scoring state at the beginning of a sentence, where only
+    * START has been seen.
+    * 
+    * A state is the last word of the context together with the already
+    * resolved bigram index of the last two words, packed into a long, so
+    * scoring the next word needs one bigram lookup (for the new state) and
+    * one trigram lookup instead of the two bigram lookups and the trigram
+    * lookup of getNgramLogProbability(). States of one model can't be used
+    * with another.
+    */
+   public long getStartState() {
+      return Utils.pack(wordIndexer.indexOf(NgramLanguageModel.START),
+            START_CONTEXT);
+   }
+
+   /**
+    * Return the scoring state after the words w1 w2.
+    */
+   public long getState(int w1, int w2) {
+      return Utils.pack(w2, bigram(w1, w2));
+   }
+
+   /**
+    * Return the log probability of the word in the given state and put the
+    * state after the word in nextState[0]. The result is the same as
+    * getNgramLogProbability() on the corresponding bigram or trigram.
+    */
+   public double score(long state, int word, long nextState[]) {
+      int word2 = Utils.left(state);
+      int word2word3 = bigram(word2, word);
+      nextState[0] = Utils.pack(word, word2word3);
+      return score(Utils.right(state), word2, word, word2word3);
+   }
+
+   /**
+    * Score a word whose bigram with the previous word has been looked up.
+    */
+   private double score(int word1word2, int word2, int word, int word2word3) {
+      if (word1word2 == START_CONTEXT) {
+         if (quantized != null) {
+            return quantized.bigramLogProbability(word2, word2word3);
+         }
+         return bigramLogProbability(word2, word2word3);
+      }
+      if (quantized != null) {
+         return quantized.trigramLogProbability(word1word2, word2word3, word2,
+               word);
+      }
+      return exactTrigramLogProbability(word1word2, word2word3, word2, word);
+   }
+
+   /**
+    * Score n (state, word) pairs at once: logProbs[i] and nextStates[i] are
+    * what score(states[i], words[i], ...) would return. nextStates may be
+    * null.
+    * 
+    * Every lookup of a single score() call depends on the one before it, so
+    * the cache misses are paid one after the other. Here the pairs are
+    * scored in blocks, and every lookup stage first touches the memory of
+    * all the lookups of the block, so the CPU can have many misses in flight
+    * before the lookups themselves run from the cache.
+    * 
+    * @return a value that depends on the memory touched ahead of the
+    *         lookups. It means nothing, but a caller that wants to be sure
+    *         the JIT keeps those reads (like a benchmark) can consume it.
+    */
+   public long scoreBatch(long states[], int words[], int n,
+         double logProbs[], long nextStates[]) {
+      int word2word3[] = new int[Math.min(n, SCORE_BATCH_BLOCK)];
+      long touched = 0;
+      for (int from = 0; from < n; from += SCORE_BATCH_BLOCK) {
+         int to = Math.min(n, from + SCORE_BATCH_BLOCK);
+
+         for (int i = from; i < to; i++) {
+            touched += bigramIndexer.prefetch(Utils.left(states[i]), words[i]);
+         }
+         for (int i = from; i < to; i++) {
+            word2word3[i - from] = bigram(Utils.left(states[i]), words[i]);
+         }
+
+         for (int i = from; i < to; i++) {
+            int word1word2 = Utils.right(states[i]);
+            int bigram = word2word3[i - from];
+            if (word1word2 > 0 && bigram > 0) {
+               touched += trigramCounter.prefetch(word1word2, words[i]);
+            }
+            if (quantized != null) {
+               touched += quantized.prefetch(word1word2, bigram);
+            } else {
+               if (word1word2 > 0) {
+                  touched += bigramCounter[word1word2]
+                        + n1plus_bigram_x[word1word2];
+               }
+               touched += n1plus_x_bigram[bigram];
+            }
+         }
+         for (int i = from; i < to; i++) {
+            logProbs[i] = score(Utils.right(states[i]), Utils.left(states[i]),
+                  words[i], word2word3[i - from]);
+            if (nextStates != null) {
+               nextStates[i] = Utils.pack(words[i], word2word3[i - from]);
+            }
+         }
+      }
+      return touched;
+   }
+
+   /**
+    * Return the log probability of the words words[from .. to) in the given
+    * state and put the state after the last of them in nextState[0].
+    */
+   public double scorePhrase(long state, int words[], int from, int to,
+         long nextState[]) {
+      double logProb = 0;
+      nextState[0] = state;
+      for (int i = from; i < to; i++) {
+         logProb += score(nextState[0], words[i], nextState);
+      }
+      return logProb;
+   }
+
    /**
     * Build the language model using the input sentenceCollection.
     * @param sentenceCollection
+    * @return the number of words read
     */
-   private void buildModel(Iterable<List<String>> sentenceCollection) {
+   private long buildModel(Iterable<List<String>> sentenceCollection) {
       System.out.println("Building the language model . . .");
 
       // Loop over all sentences.
       int num_sentence = 0;
+      long num_words = 0;
       for (List<String> sentence : sentenceCollection) {
          num_sentence++;
          if (num_sentence % 1000000 == 0) {
@@ -251,46 +844,217 @@ public class KneserNeyTrigramLm implements NgramLanguageModel {
             //reportStatus();
          }
 
-         // Pad the sentence with START and STOP.
-         List<String> stoppedSentence = new ArrayList<String>(sentence);
-         stoppedSentence.add(0, NgramLanguageModel.START);
-         stoppedSentence.add(NgramLanguageModel.STOP);
-
-         // Get the index for the first two words.
-         int word1 = wordIndexer.addAndGetIndex(stoppedSentence.get(0));
-         int word2 = wordIndexer.addAndGetIndex(stoppedSentence.get(1));
-         unigramCounter[word1]++;
-         unigramCounter[word2]++;
-         int word1word2 = bigramIndexer.addAndGetIndex(word1, word2);
-         bigramCounter[word1word2]++;
-
-         // Go over all words.
-         int num_words = stoppedSentence.size();
-         for (int i = 2; i < num_words; i++) {
-            // Get the unigram index and update the count.
-            int word3 = wordIndexer.addAndGetIndex(stoppedSentence.get(i));
-            unigramCounter[word3]++;
-
-            // Get the bigram index and bigram count.
-            int word2word3 = bigramIndexer.addAndGetIndex(word2, word3);
-            bigramCounter[word2word3]++;
-
-            // Count the trigram. If it's a new trigram, incease the appropriate
-            // n1plus values.
-            if (trigramCounter.increaseCount(word1word2, word3) == 1) {
-               // Assertion: This is a new trigram.
-               n1plus_x_unigram_x[word2]++;
-               n1plus_bigram_x[word1word2]++;
-               n1plus_x_bigram[word2word3]++;
+         countSentence(indexSentence(sentence), sentence.size() + 2);
+         num_words += sentence.size();
+      }
+      
+      finishModel();
+      return num_words;
+   }
+
+   /**
+    * Add the n-grams of more sentences to the model, as if they had been part
+    * of the corpus it was built from; all the counts, including the N1+
+    * counts, end up the same as with a rebuild. The model must still have its
+    * hash tables: frozen and quantized models can't be updated, and the
+    * tables of a loaded model can't grow, so update a copy() of it.
+    * 
+    * Queries must not run while this does. To keep serving queries, update a
+    * copy and switch over once it's done, as UpdatableKneserNeyLm does.
+    * 
+    * @return the number of words added
+    */
+   public long addSentences(Iterable<List<String>> sentences) {
+      if (!(bigramIndexer instanceof BigramIndexer)
+            || trigramCounter instanceof FrozenTrigramCounter
+            || quantized != null) {
+         throw new IllegalStateException(
+               "Frozen or quantized models can't be updated");
+      }
+      long start = System.currentTimeMillis();
+      long num_words = 0;
+      for (List<String> sentence : sentences) {
+         countSentence(indexSentence(sentence), sentence.size() + 2);
+         num_words += sentence.size();
+      }
+      finishModel();
+      System.out.println("Added " + num_words + " words in "
+            + (System.currentTimeMillis() - start) / 1000.0 + "s");
+      return num_words;
+   }
+
+   /**
+    * Return a copy of the model that can be updated with addSentences()
+    * while this one keeps answering queries. The hash tables and arrays are
+    * copied, to the heap or off the heap like the originals; the word indexer
+    * is shared. Only models with exact counts in hash tables can be copied.
+    */
+   public KneserNeyTrigramLm copy() {
+      if (!(bigramIndexer instanceof BigramIndexer)
+            || !(trigramCounter instanceof TrigramCounter)) {
+         throw new IllegalStateException(
+               "Only exact models that aren't frozen can be copied");
+      }
+      KneserNeyTrigramLm copy = new KneserNeyTrigramLm();
+      copy.wordIndexer = wordIndexer;
+      BigramIndexer bigrams = (BigramIndexer) bigramIndexer;
+      copy.bigramIndexer = new BigramIndexer(bigrams, growableLoadFactor(bigrams));
+      TrigramCounter trigrams = (TrigramCounter) trigramCounter;
+      copy.trigramCounter = new TrigramCounter(trigrams,
+            growableLoadFactor(trigrams));
+      copy.trigramCapacity = trigramCapacity;
+      copy.wordBits = wordBits;
+      copy.bigramBits = bigramBits;
+      copy.totalTrigram = totalTrigram;
+
+      copy.unigramCounter = unigramCounter.clone();
+      copy.bigramCounter = bigramCounter.clone();
+      copy.n1plus_x_unigram_x = n1plus_x_unigram_x.clone();
+      copy.n1plus_bigram_x = n1plus_bigram_x.clone();
+      copy.n1plus_x_bigram = n1plus_x_bigram.clone();
+      copy.discounts = discounts.clone();
+      if (n1_bigram_x != null) {
+         copy.n1_bigram_x = n1_bigram_x.clone();
+         copy.n2_bigram_x = n2_bigram_x.clone();
+      }
+
+      copy.num_unigrams = num_unigrams;
+      copy.num_bigrams = num_bigrams;
+      copy.num_trigrams = num_trigrams;
+      copy.unseenBigramLogProb = unseenBigramLogProb;
+      copy.unseenTrigramLogProb = unseenTrigramLogProb;
+      // The copy has the same bigram indexes, so the filters hold until it's
+      // updated, and addSentences() rebuilds them.
+      copy.bigramFilter = bigramFilter;
+      copy.trigramFilter = trigramFilter;
+      copy.filterBitsPerKey = filterBitsPerKey;
+      return copy;
+   }
+
+   /**
+    * The load factor of a table, or the default one for a loaded table that
+    * can't grow.
+    */
+   private static float growableLoadFactor(CrazilyPackedHashMap map) {
+      return map.loadFactor < 1 ? map.loadFactor : loadFactor;
+   }
+
+   /**
+    * Build the language model from a memory mapped corpus.
+    */
+   private void buildModel(final MappedCorpusReader reader)
+         throws IOException {
+      System.out.println("Building the language model from " + reader.file
+            + " . . .");
+      reader.read(new MappedCorpusReader.Handler() {
+         public void sentence(int words[], int length) {
+            countSentence(words, length);
+            if (reader.numSentences() % 1000000 == 0) {
+               System.out.println("On sentence " + reader.numSentences());
             }
-            
-            // Update the prev word indexes.
-            word1 = word2;
-            word2 = word3;
-            word1word2 = word2word3;
          }
+      });
+      finishModel();
+   }
+
+   /**
+    * Reusable buffer for indexSentence().
+    */
+   private int sentenceBuffer[] = new int[64];
+
+   /**
+    * Return the word indexes of the sentence padded with START and STOP, in
+    * a buffer that is reused by the next call. The words are indexed in
+    * order, START first.
+    */
+   int[] indexSentence(List<String> sentence) {
+      int length = sentence.size() + 2;
+      if (length > sentenceBuffer.length) {
+         sentenceBuffer = new int[Math.max(length, 2 * sentenceBuffer.length)];
       }
-      
+      int words[] = sentenceBuffer;
+      words[0] = wordIndexer.addAndGetIndex(NgramLanguageModel.START);
+      int i = 1;
+      for (String word : sentence) {
+         words[i++] = wordIndexer.addAndGetIndex(word);
+      }
+      words[i] = wordIndexer.addAndGetIndex(NgramLanguageModel.STOP);
+      return words;
+   }
+
+   /**
+    * Count the n-grams of a sentence given as word indexes, already padded
+    * with START and STOP.
+    */
+   void countSentence(int words[], int length) {
+      // The first two words.
+      int word1 = words[0];
+      int word2 = words[1];
+      ensureUnigramCapacity(Math.max(word1, word2));
+      unigramCounter[word1]++;
+      unigramCounter[word2]++;
+      int word1word2 = bigramIndexer.addAndGetIndex(word1, word2);
+      ensureBigramCapacity(word1word2);
+      bigramCounter[word1word2]++;
+
+      // Go over all words.
+      for (int i = 2; i < length; i++) {
+         // Update the unigram count.
+         int word3 = words[i];
+         ensureUnigramCapacity(word3);
+         unigramCounter[word3]++;
+
+         // Get the bigram index and bigram count.
+         int word2word3 = bigramIndexer.addAndGetIndex(word2, word3);
+         ensureBigramCapacity(word2word3);
+         bigramCounter[word2word3]++;
+
+         // Count the trigram. If it's a new trigram, incease the appropriate
+         // n1plus values.
+         if (trigramCounter.increaseCount(word1word2, word3) == 1) {
+            // Assertion: This is a new trigram.
+            n1plus_x_unigram_x[word2]++;
+            n1plus_bigram_x[word1word2]++;
+            n1plus_x_bigram[word2word3]++;
+         }
+         
+         // Update the prev word indexes.
+         word2 = word3;
+         word1word2 = word2word3;
+      }
+   }
+
+   /**
+    * Grow the arrays indexed by word if needed. Word indexes are handed out in
+    * order, so it's enough to check the newest ones.
+    */
+   void ensureUnigramCapacity(int word) {
+      if (word >= unigramCounter.length) {
+         unigramCounter = Utils.ensureCapacity(unigramCounter, word);
+         n1plus_x_unigram_x = Utils.ensureCapacity(n1plus_x_unigram_x, word);
+      }
+   }
+
+   /**
+    * Grow the arrays indexed by bigram if needed.
+    */
+   void ensureBigramCapacity(int bigram) {
+      if (bigram >= bigramCounter.length) {
+         bigramCounter = Utils.ensureCapacity(bigramCounter, bigram);
+         n1plus_bigram_x = Utils.ensureCapacity(n1plus_bigram_x, bigram);
+         n1plus_x_bigram = Utils.ensureCapacity(n1plus_x_bigram, bigram);
+      }
+   }
+
+   /**
+    * Compute the stats once all the counts are in.
+    */
+   void finishModel() {
+      if (trigramCounter instanceof ExternalTrigramCounter) {
+         mergeTrigramRuns();
+      }
+      if (n1_bigram_x != null) countContextsByCount();
+
       // Update stats.
       num_unigrams = wordIndexer.size();
       num_bigrams = bigramIndexer.size();
@@ -306,29 +1070,103 @@ public class KneserNeyTrigramLm implements NgramLanguageModel {
       
       System.out.println("unseen bigram prob = " + unseenBigramLogProb);
       System.out.println("unseen trigram prob = " + unseenTrigramLogProb);
-      
-      setToOneIfZero(n1plus_x_unigram_x);
-      setToOneIfZero(n1plus_bigram_x);
-      setToOneIfZero(n1plus_x_bigram);
-      setToOneIfZero(bigramCounter);
-      setToOneIfZero(unigramCounter);
+
+      if (filterBitsPerKey > 0) buildFilters(filterBitsPerKey);
 
       // Finish up.
       System.out.println("Done building language model.");
       reportStatus();
-      Utils.reportMemoryUsage();
+      System.out.println(stats());
    }
    
    /**
-    * Set all elements in the array that are zero to one.
+    * Replace an ExternalTrigramCounter with the FrozenTrigramCounter its runs
+    * merge into. The N1+ counts that countSentence() kept only saw one run at
+    * a time, so they're counted again from the distinct trigrams of the merge.
     */
-   protected void setToOneIfZero(int arr[]) {
-      for (int i = 0; i < arr.length; i++) {
-         if (arr[i] <= 0) {
-            arr[i] = 1;
-         }
+   private void mergeTrigramRuns() {
+      int numBigrams = bigramIndexer.size();
+      int firstWords[] = new int[numBigrams + 1];
+      final int secondWords[] = new int[numBigrams + 1];
+      getBigramWords(firstWords, secondWords);
+      firstWords = null;
+
+      Arrays.fill(n1plus_x_unigram_x, 0);
+      Arrays.fill(n1plus_bigram_x, 0);
+      Arrays.fill(n1plus_x_bigram, 0);
+      try {
+         trigramCounter = ((ExternalTrigramCounter) trigramCounter).finish(
+               numBigrams, new ExternalTrigramCounter.Handler() {
+                  public void trigram(int word1word2, int word3, int count) {
+                     int word2 = secondWords[word1word2];
+                     n1plus_x_unigram_x[word2]++;
+                     n1plus_bigram_x[word1word2]++;
+                     n1plus_x_bigram[bigramIndexer.get(word2, word3)]++;
+                  }
+               });
+      } catch (IOException e) {
+         throw new RuntimeException("Merging the trigram runs failed", e);
       }
    }
+
+   /**
+    * Build filters of the seen bigrams and trigrams with the given bits per
+    * n-gram (see BlockedBloomFilter), or drop them if it's 0. Most n-grams a
+    * decoder asks about were never seen, and looking one up in a hash table
+    * only ends at an empty slot, after the longest probe; the filters rule
+    * out all but a few of them with one cache miss each, and queries then
+    * skip the bigram and trigram tables. Once built, the filters are rebuilt
+    * whenever the model changes (finishModel(), freeze()). They aren't saved
+    * with the model, so a loaded model has to build them again.
+    */
+   public void buildFilters(double bitsPerKey) {
+      if (bitsPerKey <= 0) {
+         bigramFilter = trigramFilter = null;
+         filterBitsPerKey = 0;
+         return;
+      }
+      if (!(trigramCounter instanceof TrigramCounter)
+            && !(trigramCounter instanceof FrozenTrigramCounter)) {
+         throw new IllegalStateException(
+               "The n-gram filters need exact trigram counts");
+      }
+      long start = System.currentTimeMillis();
+
+      int numBigrams = bigramIndexer.size();
+      int firstWords[] = new int[numBigrams + 1];
+      int secondWords[] = new int[numBigrams + 1];
+      getBigramWords(firstWords, secondWords);
+      BlockedBloomFilter bigrams = BlockedBloomFilter.forKeys(numBigrams,
+            bitsPerKey);
+      for (int i = 1; i <= numBigrams; i++) {
+         bigrams.add(Utils.pack(firstWords[i], secondWords[i]));
+      }
+
+      BlockedBloomFilter trigrams = BlockedBloomFilter.forKeys(
+            trigramCounter.size(), bitsPerKey);
+      QuantizedLogProbTables.TrigramWalker walker =
+            new QuantizedLogProbTables.TrigramWalker(this, null);
+      while (walker.next()) {
+         trigrams.add(Utils.pack(walker.context, walker.word));
+      }
+
+      bigramFilter = bigrams;
+      trigramFilter = trigrams;
+      filterBitsPerKey = bitsPerKey;
+      System.out.println(String.format("Filter building time: %.3fs, "
+            + "%.1f bits per n-gram, %.1fMB", (System.currentTimeMillis()
+            - start) / 1000.0, bitsPerKey,
+            (bigrams.bytes() + trigrams.bytes()) / 1048576.0));
+   }
+
+   /**
+    * Counts are used as at least one, so that an n-gram that was never
+    * continued or preceded still gets some probability. The arrays keep the
+    * true counts, which addSentences() builds on.
+    */
+   static int atLeastOne(int count) {
+      return count > 0 ? count : 1;
+   }
    
    /**
     * A helper function to check the counts.
@@ -348,6 +1186,51 @@ public class KneserNeyTrigramLm implements NgramLanguageModel {
       System.out.println(word1 + "," + word2 + "," + word3 + ": " + getCount(w1w2w3));
    }
 
+   /**
+    * Return the retained bytes of every structure of the model and the
+    * occupancy and probe lengths of its hash tables (see LmStats). This
+    * walks the tables but doesn't force a garbage collection.
+    */
+   public LmStats stats() {
+      return new LmStats(this);
+   }
+
+   List<ComponentStats> componentStats() {
+      int numWords = wordIndexer.size();
+      int numBigrams = bigramIndexer.size() + 1;
+      List<ComponentStats> stats = new ArrayList<ComponentStats>();
+      stats.add(ComponentStats.ofWords("wordIndexer", wordIndexer));
+      stats.add(ComponentStats.ofArray("unigramCounter", unigramCounter,
+            numWords));
+      stats.add(ComponentStats.of("bigramIndexer", bigramIndexer));
+      stats.add(ComponentStats.ofArray("bigramCounter", bigramCounter,
+            numBigrams));
+      stats.add(ComponentStats.of("trigramCounter", trigramCounter));
+      stats.add(ComponentStats.ofArray("n1plus_x_unigram_x",
+            n1plus_x_unigram_x, numWords));
+      stats.add(ComponentStats.ofArray("n1plus_bigram_x", n1plus_bigram_x,
+            numBigrams));
+      stats.add(ComponentStats.ofArray("n1plus_x_bigram", n1plus_x_bigram,
+            numBigrams));
+      if (n1_bigram_x != null) {
+         stats.add(ComponentStats.ofArray("n1_bigram_x", n1_bigram_x,
+               numBigrams));
+         stats.add(ComponentStats.ofArray("n2_bigram_x", n2_bigram_x,
+               numBigrams));
+      }
+      if (quantized != null) {
+         stats.add(ComponentStats.ofBytes("quantized", quantized,
+               quantized.bytes()));
+      }
+      if (bigramFilter != null) {
+         stats.add(ComponentStats.ofBytes("bigramFilter", bigramFilter,
+               bigramFilter.bytes()));
+         stats.add(ComponentStats.ofBytes("trigramFilter", trigramFilter,
+               trigramFilter.bytes()));
+      }
+      return stats;
+   }
+
    protected void reportStatus() {
       System.out.println("Unigram Size: " + wordIndexer.size());
       System.out.println("Bigram Size: " + bigramIndexer.size());
@@ -0,0 +1,106 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.File;
+
+/**
+ * Knobs for building a KneserNeyTrigramLm. The defaults build the model the
+ * same way the original two-argument constructor did.
+ */
+public class LmBuildOptions {
+
+   /**
+    * Use the approximate trigram counter (checksums instead of keys).
+    */
+   public boolean approximate = false;
+
+   /**
+    * Layout of the approximate trigram counter: bits of key fingerprint and
+    * bits of count per slot. More fingerprint bits mean fewer unseen trigrams
+    * mistaken for seen ones; counts that don't fit saturate.
+    */
+   public int fingerprintBits = 9;
+   public int countBits = 23;
+
+   /**
+    * Count the trigrams in a count-min sketch of this many bytes instead of a
+    * hash table (see CountMinTrigramCounter), so the trigram counts take the
+    * same memory however long the corpus is. A quarter of the bytes go to
+    * the Bloom filter that tells new trigrams apart. Zero for a hash table.
+    */
+   public long sketchBytes = 0;
+   public int sketchRows = 4;
+
+   /**
+    * With a sketch, count up to this many trigrams that occur at least
+    * heavyHitterThreshold times exactly. Zero for none.
+    */
+   public int heavyHitterCapacity = 0;
+   public int heavyHitterThreshold = 64;
+
+   /**
+    * Count the trigrams this many distinct ones at a time and write each
+    * batch to disk as a sorted run, merged into a frozen counter at the end
+    * (see ExternalTrigramCounter), so the trigrams never take more memory
+    * than the buffer while counting. The runs go to runDirectory, or the
+    * default temporary file directory if it's null. Zero counts all the
+    * trigrams in memory. Needs exact counts and a single thread.
+    */
+   public int externalTrigramBuffer = 0;
+   public File runDirectory = null;
+
+   /**
+    * Number of threads indexing bigrams, and as many counting trigrams. With
+    * more than one the model is built by ParallelLmBuilder, which needs the
+    * exact trigram counter in memory.
+    */
+   public int numThreads = 1;
+
+   /**
+    * Initial number of unigrams, bigrams and trigrams to make room for. The
+    * tables and arrays grow when they fill up, so these only save rehashing
+    * when the corpus size is known in advance. Zero picks the defaults in
+    * KneserNeyTrigramLm, which depend on the heap size.
+    */
+   public int unigramCapacity = 0;
+   public int bigramCapacity = 0;
+   public int trigramCapacity = 0;
+
+   /**
+    * Load factor of the bigram and trigram hash tables.
+    */
+   public float loadFactor = KneserNeyTrigramLm.loadFactor;
+
+   /**
+    * Probing scheme of the bigram and trigram hash tables. Robin Hood probing
+    * keeps lookups fast at load factors of 0.9 and above.
+    */
+   public CrazilyPackedHashMap.Probing probing =
+         CrazilyPackedHashMap.Probing.LINEAR;
+
+   /**
+    * Keep the bigram and trigram hash tables in direct buffers outside the
+    * Java heap (see OffHeapLongStorage). The JVM then needs
+    * -XX:MaxDirectMemorySize large enough for the tables rather than a large
+    * -Xmx.
+    */
+   public boolean offHeap = false;
+
+   /**
+    * Initial bits per word and per bigram index in the packed hash table
+    * keys. Zero derives them from the capacities above (at least 19 and 23
+    * bits, enough for the assignment corpus). Either way the tables widen
+    * their layout when an index outgrows it, so these only save the repacking.
+    */
+   public int wordBits = 0;
+   public int bigramBits = 0;
+
+   /**
+    * Bits per n-gram of the BlockedBloomFilters of the seen bigrams and
+    * trigrams that let queries skip probing the hash tables for n-grams that
+    * were never seen (see KneserNeyTrigramLm.buildFilters()). About 10 bits
+    * give 1% false positives; BlockedBloomFilter.bitsPerKey() converts a
+    * rate. Zero for no filters. Needs exact trigram counts.
+    */
+   public double filterBitsPerKey = 0;
+
+}
@@ -0,0 +1,209 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Builds a KneserNeyTrigramLm from the counts of disjoint shards of a corpus,
+ * each counted separately (by another process or machine) and written with
+ * PartialCounts.write().
+ *
+ * <pre>
+ * java LmMerger count corpus-shard.txt shard.counts
+ * java LmMerger merge model.bin shard1.counts shard2.counts ...
+ * </pre>
+ *
+ * The merge reads every file front to back once, in three k-way merges: the
+ * vocabularies (by word), the bigrams and the trigrams (by the global ranks
+ * of their words). Only the current record of every file is in memory, plus
+ * the model being built and a rank map per shard, so the shards together can
+ * be much larger than the heap. Every distinct n-gram comes out of the merge
+ * once with its summed count, so the N1+ continuation counts are computed on
+ * the way, exactly as if the model had been built from the whole corpus.
+ */
+public class LmMerger {
+
+   /**
+    * A shard file and the global ranks of its words.
+    */
+   static class Shard {
+      final PartialCounts.Reader reader;
+      int globalRanks[] = new int[1024];
+
+      /**
+       * Global ranks of the current record.
+       */
+      int rank1, rank2, rank3;
+
+      Shard(File file) throws IOException {
+         reader = new PartialCounts.Reader(file);
+      }
+
+      void setGlobalRank(int localRank, int globalRank) {
+         globalRanks = Utils.ensureCapacity(globalRanks, localRank);
+         globalRanks[localRank] = globalRank;
+      }
+
+      boolean nextBigram() throws IOException {
+         if (!reader.nextBigram()) return false;
+         rank1 = globalRanks[reader.rank1];
+         rank2 = globalRanks[reader.rank2];
+         return true;
+      }
+
+      boolean nextTrigram() throws IOException {
+         if (!reader.nextTrigram()) return false;
+         rank1 = globalRanks[reader.rank1];
+         rank2 = globalRanks[reader.rank2];
+         rank3 = globalRanks[reader.rank3];
+         return true;
+      }
+   }
+
+   static final Comparator<Shard> BY_WORD = new Comparator<Shard>() {
+      public int compare(Shard a, Shard b) {
+         return a.reader.word.compareTo(b.reader.word);
+      }
+   };
+
+   static final Comparator<Shard> BY_RANKS = new Comparator<Shard>() {
+      public int compare(Shard a, Shard b) {
+         if (a.rank1 != b.rank1) return a.rank1 < b.rank1 ? -1 : 1;
+         if (a.rank2 != b.rank2) return a.rank2 < b.rank2 ? -1 : 1;
+         if (a.rank3 != b.rank3) return a.rank3 < b.rank3 ? -1 : 1;
+         return 0;
+      }
+   };
+
+   /**
+    * Merge the partial counts into a new model. The words are added to the
+    * model's word indexer in String order.
+    */
+   public static KneserNeyTrigramLm merge(List<File> files,
+         LmBuildOptions options) throws IOException {
+      long start = System.currentTimeMillis();
+      KneserNeyTrigramLm lm = new KneserNeyTrigramLm(options);
+      List<Shard> shards = new ArrayList<Shard>();
+      try {
+         for (File file : files) shards.add(new Shard(file));
+
+         int words[] = mergeVocabularies(lm, shards);
+         mergeBigrams(lm, shards, words);
+         mergeTrigrams(lm, shards, words);
+         for (Shard shard : shards) shard.reader.checkEnd();
+      } finally {
+         for (Shard shard : shards) shard.reader.close();
+      }
+
+      lm.finishModel();
+      System.out.println("Merged " + files.size() + " shards in "
+            + (System.currentTimeMillis() - start) / 1000.0 + "s");
+      return lm;
+   }
+
+   /**
+    * Merge the vocabularies and the unigram counts, and return the word index
+    * of every global rank.
+    */
+   private static int[] mergeVocabularies(KneserNeyTrigramLm lm,
+         List<Shard> shards) throws IOException {
+      PriorityQueue<Shard> queue = new PriorityQueue<Shard>(
+            Math.max(1, shards.size()), BY_WORD);
+      for (Shard shard : shards) {
+         if (shard.reader.nextWord()) queue.add(shard);
+      }
+
+      int words[] = new int[1024];
+      int numWords = 0;
+      while (!queue.isEmpty()) {
+         String word = queue.peek().reader.word;
+         int index = lm.wordIndexer.addAndGetIndex(word);
+         lm.ensureUnigramCapacity(index);
+         words = Utils.ensureCapacity(words, numWords);
+         words[numWords] = index;
+         while (!queue.isEmpty() && queue.peek().reader.word.equals(word)) {
+            Shard shard = queue.poll();
+            shard.setGlobalRank(shard.reader.rank1, numWords);
+            lm.unigramCounter[index] += shard.reader.count;
+            if (shard.reader.nextWord()) queue.add(shard);
+         }
+         numWords++;
+      }
+      return words;
+   }
+
+   private static void mergeBigrams(KneserNeyTrigramLm lm, List<Shard> shards,
+         int words[]) throws IOException {
+      BigramIndexer bigramIndexer = (BigramIndexer) lm.bigramIndexer;
+      PriorityQueue<Shard> queue = new PriorityQueue<Shard>(
+            Math.max(1, shards.size()), BY_RANKS);
+      for (Shard shard : shards) {
+         if (shard.nextBigram()) queue.add(shard);
+      }
+
+      while (!queue.isEmpty()) {
+         Shard first = queue.peek();
+         int rank1 = first.rank1, rank2 = first.rank2;
+         int bigram = bigramIndexer.addAndGetIndex(words[rank1], words[rank2]);
+         lm.ensureBigramCapacity(bigram);
+         while (!queue.isEmpty() && queue.peek().rank1 == rank1
+               && queue.peek().rank2 == rank2) {
+            Shard shard = queue.poll();
+            lm.bigramCounter[bigram] += shard.reader.count;
+            if (shard.nextBigram()) queue.add(shard);
+         }
+      }
+   }
+
+   private static void mergeTrigrams(KneserNeyTrigramLm lm,
+         List<Shard> shards, int words[]) throws IOException {
+      PriorityQueue<Shard> queue = new PriorityQueue<Shard>(
+            Math.max(1, shards.size()), BY_RANKS);
+      for (Shard shard : shards) {
+         if (shard.nextTrigram()) queue.add(shard);
+      }
+
+      while (!queue.isEmpty()) {
+         Shard first = queue.peek();
+         int rank1 = first.rank1, rank2 = first.rank2, rank3 = first.rank3;
+         int count = 0;
+         while (!queue.isEmpty() && queue.peek().rank1 == rank1
+               && queue.peek().rank2 == rank2 && queue.peek().rank3 == rank3) {
+            Shard shard = queue.poll();
+            count += shard.reader.count;
+            if (shard.nextTrigram()) queue.add(shard);
+         }
+
+         int word2 = words[rank2], word3 = words[rank3];
+         int word1word2 = lm.bigramIndexer.get(words[rank1], word2);
+         int word2word3 = lm.bigramIndexer.get(word2, word3);
+         if (word1word2 <= 0 || word2word3 <= 0) {
+            throw new IOException("Trigram without its bigrams in the counts");
+         }
+         lm.trigramCounter.adjustOrPutValue(word1word2, word3, count);
+         lm.n1plus_x_unigram_x[word2]++;
+         lm.n1plus_bigram_x[word1word2]++;
+         lm.n1plus_x_bigram[word2word3]++;
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length >= 3 && args[0].equals("count")) {
+         KneserNeyTrigramLm lm = new KneserNeyTrigramLm(new File(args[1]),
+               new LmBuildOptions());
+         PartialCounts.write(lm, new File(args[2]));
+      } else if (args.length >= 3 && args[0].equals("merge")) {
+         List<File> files = new ArrayList<File>();
+         for (int i = 2; i < args.length; i++) files.add(new File(args[i]));
+         merge(files, new LmBuildOptions()).save(new File(args[1]));
+      } else {
+         System.out.println("Usage: LmMerger count corpus counts");
+         System.out.println("       LmMerger merge model counts...");
+         System.exit(1);
+      }
+   }
+}
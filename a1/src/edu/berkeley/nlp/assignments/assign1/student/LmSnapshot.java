@@ -0,0 +1,422 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Reads and writes a binary snapshot of a KneserNeyTrigramLm so a serving
+ * process doesn't have to rebuild the model from raw text.
+ *
+ * The file is a sequence of sections, all big endian:
+ *
+ * <pre>
+ * header     magic, version, discounts D1 D2 D3+, basic stats, unseen
+ *            log probs
+ * vocabulary byte length, word count, (length, UTF-8 bytes) per word
+ * int arrays unigramCounter, n1plus_x_unigram_x, bigramCounter,
+ *            n1plus_bigram_x, n1plus_x_bigram (length, ints), with the
+ *            true counts, zeros included
+ * tables     bigramIndexer, trigramCounter, each a kind followed by either
+ *            a hash table (size, layout, probing, length, padding to 8
+ *            bytes, longs, then the values spilled out of the table as a
+ *            count and (packed keys, value) pairs in key order) or a
+ *            frozen store (int arrays, bits, length, padding to 8 bytes,
+ *            packed longs)
+ * </pre>
+ *
+ * When loading, the int arrays are copied to the heap (they are small and
+ * read on every query), while the packed tables, which are most of the file,
+ * are memory mapped read only.
+ */
+public class LmSnapshot {
+
+   static final int MAGIC = 0x4B4E4C4D; // "KNLM"
+   static final int VERSION = 6;
+
+   static final int KIND_HASH = 0;
+   static final int KIND_FROZEN = 1;
+
+   static final int HEADER_SIZE = 4 + 4 + 4 * 3 + 4 * 3 + 8 * 2;
+   static final int TABLE_HEADER_SIZE = 4 + 8 + 4 + 4 + 4 + 8;
+   static final int PACKED_HEADER_SIZE = 4 + 8 + 8;
+
+   /**
+    * Write the model to the given file. Only models with an exact trigram
+    * counter, frozen or not, can be saved.
+    */
+   public static void save(KneserNeyTrigramLm lm, File file) throws IOException {
+      if (!(lm.trigramCounter instanceof TrigramCounter)
+            && !(lm.trigramCounter instanceof FrozenTrigramCounter)) {
+         throw new IllegalStateException(
+               "Only models with an exact TrigramCounter can be saved");
+      }
+
+      FileOutputStream stream = new FileOutputStream(file);
+      try {
+         Output out = new Output(stream.getChannel());
+
+         // Header.
+         out.putInt(MAGIC);
+         out.putInt(VERSION);
+         for (float discount : lm.getDiscounts()) out.putFloat(discount);
+         out.putInt(lm.num_unigrams);
+         out.putInt(lm.num_bigrams);
+         out.putInt(lm.num_trigrams);
+         out.putDouble(lm.unseenBigramLogProb);
+         out.putDouble(lm.unseenTrigramLogProb);
+
+         // Vocabulary, in index order.
+         StringIndexer words = lm.wordIndexer;
+         byte encoded[][] = new byte[words.size()][];
+         long vocabularyBytes = 4;
+         for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = words.get(i).getBytes("UTF-8");
+            vocabularyBytes += 4 + encoded[i].length;
+         }
+         out.putLong(vocabularyBytes);
+         out.putInt(encoded.length);
+         for (int i = 0; i < encoded.length; i++) {
+            out.putInt(encoded[i].length);
+            out.putBytes(encoded[i]);
+         }
+
+         // Counters.
+         out.putIntArray(lm.unigramCounter);
+         out.putIntArray(lm.n1plus_x_unigram_x);
+         out.putIntArray(lm.bigramCounter);
+         out.putIntArray(lm.n1plus_bigram_x);
+         out.putIntArray(lm.n1plus_x_bigram);
+
+         // Tables.
+         if (lm.bigramIndexer instanceof FrozenBigramIndexer) {
+            FrozenBigramIndexer frozen = (FrozenBigramIndexer) lm.bigramIndexer;
+            out.putInt(KIND_FROZEN);
+            out.putIntArray(frozen.offsets);
+            out.putPacked(frozen.secondWords);
+         } else {
+            out.putInt(KIND_HASH);
+            out.putTable((BigramIndexer) lm.bigramIndexer);
+         }
+         if (lm.trigramCounter instanceof FrozenTrigramCounter) {
+            FrozenTrigramCounter frozen =
+                  (FrozenTrigramCounter) lm.trigramCounter;
+            out.putInt(KIND_FROZEN);
+            out.putIntArray(frozen.offsets);
+            out.putIntArray(frozen.counts);
+            out.putInt(frozen.countBits);
+            out.putPacked(frozen.entries);
+         } else {
+            out.putInt(KIND_HASH);
+            out.putTable((TrigramCounter) lm.trigramCounter);
+         }
+
+         out.flush();
+      } finally {
+         stream.close();
+      }
+   }
+
+   /**
+    * Load a model written by save(). The words are added to
+    * EnglishWordIndexer, which must either be empty or agree with the
+    * snapshot on the indexes of the words it already has.
+    */
+   public static KneserNeyTrigramLm load(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         Input in = new Input(raf.getChannel());
+         KneserNeyTrigramLm lm = new KneserNeyTrigramLm();
+
+         // Header.
+         ByteBuffer header = in.map(HEADER_SIZE);
+         if (header.getInt() != MAGIC) {
+            throw new IOException(file + " is not a language model snapshot");
+         }
+         int version = header.getInt();
+         if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version
+                  + " (expected " + VERSION + ")");
+         }
+         float discounts[] = new float[3];
+         for (int i = 0; i < 3; i++) discounts[i] = header.getFloat();
+         lm.num_unigrams = header.getInt();
+         lm.num_bigrams = header.getInt();
+         lm.num_trigrams = header.getInt();
+         lm.unseenBigramLogProb = header.getDouble();
+         lm.unseenTrigramLogProb = header.getDouble();
+
+         // Vocabulary.
+         long vocabularyBytes = in.map(8).getLong();
+         ByteBuffer vocabulary = in.map(vocabularyBytes);
+         lm.wordIndexer = EnglishWordIndexer.getIndexer();
+         int numWords = vocabulary.getInt();
+         for (int i = 0; i < numWords; i++) {
+            byte word[] = new byte[vocabulary.getInt()];
+            vocabulary.get(word);
+            int index = lm.wordIndexer.addAndGetIndex(new String(word, "UTF-8"));
+            if (index != i) {
+               throw new IOException("Word #" + i
+                     + " of the snapshot has index " + index
+                     + " in EnglishWordIndexer");
+            }
+         }
+
+         // Counters.
+         lm.unigramCounter = in.getIntArray();
+         lm.n1plus_x_unigram_x = in.getIntArray();
+         lm.bigramCounter = in.getIntArray();
+         lm.n1plus_bigram_x = in.getIntArray();
+         lm.n1plus_x_bigram = in.getIntArray();
+
+         // Tables.
+         if (in.getKind() == KIND_FROZEN) {
+            int offsets[] = in.getIntArray();
+            lm.bigramIndexer = new FrozenBigramIndexer(offsets, in.getPacked());
+         } else {
+            int size = in.getTableHeader();
+            lm.bigramIndexer = new BigramIndexer(in.getTable(), size,
+                  in.tableValueMask, in.tableFirstKeyBits,
+                  in.tableSecondKeyBits, in.tableProbing);
+            in.getSpilled();
+         }
+         if (in.getKind() == KIND_FROZEN) {
+            int offsets[] = in.getIntArray();
+            int counts[] = in.getIntArray();
+            int countBits = in.map(4).getInt();
+            lm.trigramCounter = new FrozenTrigramCounter(offsets, counts,
+                  in.getPacked(), countBits);
+         } else {
+            int size = in.getTableHeader();
+            TrigramCounter counter = new TrigramCounter(in.getTable(), size,
+                  in.tableValueMask, in.tableFirstKeyBits,
+                  in.tableSecondKeyBits, in.tableProbing);
+            counter.spilled = in.getSpilled();
+            lm.trigramCounter = counter;
+         }
+         lm.setDiscounts(discounts[0], discounts[1], discounts[2]);
+
+         return lm;
+      } finally {
+         // The mappings stay valid after the channel is closed.
+         raf.close();
+      }
+   }
+
+   /**
+    * Buffered writer that keeps track of the file position.
+    */
+   static class Output {
+      final FileChannel channel;
+      final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+      long position = 0;
+
+      Output(FileChannel channel) {
+         this.channel = channel;
+      }
+
+      void ensure(int bytes) throws IOException {
+         if (buffer.remaining() < bytes) flush();
+      }
+
+      void flush() throws IOException {
+         buffer.flip();
+         while (buffer.hasRemaining()) channel.write(buffer);
+         buffer.clear();
+      }
+
+      void putInt(int v) throws IOException {
+         ensure(4);
+         buffer.putInt(v);
+         position += 4;
+      }
+
+      void putLong(long v) throws IOException {
+         ensure(8);
+         buffer.putLong(v);
+         position += 8;
+      }
+
+      void putFloat(float v) throws IOException {
+         ensure(4);
+         buffer.putFloat(v);
+         position += 4;
+      }
+
+      void putDouble(double v) throws IOException {
+         ensure(8);
+         buffer.putDouble(v);
+         position += 8;
+      }
+
+      void putBytes(byte bytes[]) throws IOException {
+         for (int offset = 0; offset < bytes.length;) {
+            ensure(1);
+            int n = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, n);
+            offset += n;
+         }
+         position += bytes.length;
+      }
+
+      void putIntArray(int arr[]) throws IOException {
+         putInt(arr.length);
+         for (int i = 0; i < arr.length; i++) putInt(arr[i]);
+      }
+
+      void putTable(CrazilyPackedHashMap map) throws IOException {
+         LongStorage data = map.data;
+         putInt(map.size());
+         putLong(map.valueMask);
+         putInt(map.numFirstKeyBits);
+         putInt(map.numSecondKeyBits);
+         putInt(map.getProbing().ordinal());
+         putLongs(data);
+         // In key order, so the same table always saves to the same bytes.
+         LongIntHashMap spilled = map.spilled;
+         long keys[] = new long[spilled.size()];
+         int numKeys = 0;
+         for (int i = 0; i < spilled.slotCount(); i++) {
+            if (spilled.slotValue(i) != 0) keys[numKeys++] = spilled.slotKey(i);
+         }
+         Arrays.sort(keys);
+         putInt(keys.length);
+         for (long key : keys) {
+            putLong(key);
+            putInt(spilled.get(key));
+         }
+      }
+
+      void putPacked(BitPackedArray array) throws IOException {
+         putInt(array.bits());
+         putLong(array.length());
+         putLongs(array.data);
+      }
+
+      /**
+       * Write the length, pad to 8 bytes so the longs can be mapped, and
+       * write the longs.
+       */
+      void putLongs(LongStorage data) throws IOException {
+         putLong(data.length());
+         while (position % 8 != 0) {
+            ensure(1);
+            buffer.put((byte) 0);
+            position++;
+         }
+         for (long i = 0; i < data.length(); i++) putLong(data.get(i));
+      }
+   }
+
+   /**
+    * Maps consecutive regions of the file.
+    */
+   static class Input {
+      final FileChannel channel;
+      long position = 0;
+      long tableLength;
+      long tableValueMask;
+      int tableFirstKeyBits;
+      int tableSecondKeyBits;
+      CrazilyPackedHashMap.Probing tableProbing;
+
+      Input(FileChannel channel) {
+         this.channel = channel;
+      }
+
+      ByteBuffer map(long bytes) throws IOException {
+         if (position + bytes > channel.size()) {
+            throw new IOException("Snapshot is truncated");
+         }
+         ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+               position, bytes);
+         position += bytes;
+         return buffer;
+      }
+
+      int getKind() throws IOException {
+         int kind = map(4).getInt();
+         if (kind != KIND_HASH && kind != KIND_FROZEN) {
+            throw new IOException("Unknown table kind " + kind);
+         }
+         return kind;
+      }
+
+      int[] getIntArray() throws IOException {
+         int arr[] = new int[map(4).getInt()];
+         map(4L * arr.length).asIntBuffer().get(arr);
+         return arr;
+      }
+
+      /**
+       * Read a table header, check its layout and return its size.
+       */
+      int getTableHeader() throws IOException {
+         ByteBuffer header = map(TABLE_HEADER_SIZE);
+         int size = header.getInt();
+         tableValueMask = header.getLong();
+         tableFirstKeyBits = header.getInt();
+         tableSecondKeyBits = header.getInt();
+         int keyBits = tableFirstKeyBits + tableSecondKeyBits;
+         if (tableFirstKeyBits < 1 || tableFirstKeyBits > 32
+               || tableSecondKeyBits < 1 || tableSecondKeyBits > 32
+               || keyBits > 63 || tableValueMask != -1L >>> keyBits) {
+            throw new IOException("Unexpected hash table layout");
+         }
+         CrazilyPackedHashMap.Probing probings[] =
+               CrazilyPackedHashMap.Probing.values();
+         int probing = header.getInt();
+         if (probing < 0 || probing >= probings.length) {
+            throw new IOException("Unknown probing scheme " + probing);
+         }
+         tableProbing = probings[probing];
+         tableLength = header.getLong();
+         position = (position + 7) & ~7L;
+         return size;
+      }
+
+      BitPackedArray getPacked() throws IOException {
+         ByteBuffer header = map(PACKED_HEADER_SIZE);
+         int bits = header.getInt();
+         long length = header.getLong();
+         tableLength = header.getLong();
+         if (bits < 1 || bits > 64
+               || BitPackedArray.numLongs(length, bits) != tableLength) {
+            throw new IOException("Unexpected packed array layout");
+         }
+         position = (position + 7) & ~7L;
+         return new BitPackedArray(getTable(), length, bits);
+      }
+
+      /**
+       * Read the values spilled out of a hash table.
+       */
+      LongIntHashMap getSpilled() throws IOException {
+         int numSpilled = map(4).getInt();
+         ByteBuffer entries = map(12L * numSpilled);
+         LongIntHashMap spilled = new LongIntHashMap(numSpilled);
+         for (int i = 0; i < numSpilled; i++) {
+            long key = entries.getLong();
+            spilled.put(key, entries.getInt());
+         }
+         return spilled;
+      }
+
+      LongStorage getTable() throws IOException {
+         if (position + 8L * tableLength > channel.size()) {
+            throw new IOException("Snapshot is truncated");
+         }
+         LongStorage table = new MappedLongStorage(channel, position,
+               tableLength);
+         position += 8L * tableLength;
+         return table;
+      }
+   }
+}
@@ -0,0 +1,150 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The ComponentStats of every structure of a KneserNeyTrigramLm, for
+ * monitoring the memory and the health of the hash tables of a model in
+ * production. Unlike Utils.reportMemoryUsage() this doesn't force garbage
+ * collections or depend on whatever else is on the heap: every structure
+ * accounts for its own bytes.
+ *
+ * The stats are a snapshot, taken when this is created and again on
+ * refresh(). They can be printed as a table (toString()), written as JSON
+ * (toJson()), or registered as MBeans with register(): one for the model,
+ * whose refresh operation takes the stats again, and one per structure,
+ * under
+ *
+ * <pre>
+ * edu.berkeley.nlp.assign1:type=LanguageModel,name=...[,component=...]
+ * </pre>
+ */
+public class LmStats implements LmStatsMBean {
+
+   static final String DOMAIN = "edu.berkeley.nlp.assign1";
+
+   final KneserNeyTrigramLm lm;
+   volatile List<ComponentStats> components;
+   volatile long time;
+
+   /**
+    * Name the MBeans are registered under, or null if they aren't.
+    */
+   String name;
+   final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+   public LmStats(KneserNeyTrigramLm lm) {
+      this.lm = lm;
+      refresh();
+   }
+
+   public synchronized void refresh() {
+      components = lm.componentStats();
+      time = System.currentTimeMillis();
+      if (name != null) {
+         try {
+            unregisterComponents();
+            registerComponents();
+         } catch (JMException e) {
+            throw new RuntimeException("Registering the stats of " + name
+                  + " failed", e);
+         }
+      }
+   }
+
+   public List<ComponentStats> getComponents() {
+      return components;
+   }
+
+   /**
+    * Return the stats of the structure with the given name, or null.
+    */
+   public ComponentStats get(String component) {
+      for (ComponentStats stats : components) {
+         if (stats.name.equals(component)) return stats;
+      }
+      return null;
+   }
+
+   public long getRetainedBytes() {
+      long bytes = 0;
+      for (ComponentStats stats : components) bytes += stats.retainedBytes;
+      return bytes;
+   }
+
+   public long getTime() {
+      return time;
+   }
+
+   public String getJson() {
+      return toJson();
+   }
+
+   public String toJson() {
+      StringBuilder json = new StringBuilder();
+      json.append("{\"time\": ").append(time).append(", \"retainedBytes\": ")
+            .append(getRetainedBytes()).append(", \"components\": [");
+      List<ComponentStats> snapshot = components;
+      for (int i = 0; i < snapshot.size(); i++) {
+         if (i > 0) json.append(", ");
+         json.append(snapshot.get(i).toJson());
+      }
+      return json.append("]}").toString();
+   }
+
+   /**
+    * Register the MBeans of the model under the given name with the platform
+    * MBean server.
+    */
+   public synchronized void register(String name) throws JMException {
+      if (this.name != null) unregister();
+      this.name = name;
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(DOMAIN
+            + ":type=LanguageModel,name=" + ObjectName.quote(name));
+      server.registerMBean(this, objectName);
+      registered.add(objectName);
+      registerComponents();
+   }
+
+   private void registerComponents() throws JMException {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      for (ComponentStats stats : components) {
+         ObjectName objectName = new ObjectName(DOMAIN
+               + ":type=LanguageModel,name=" + ObjectName.quote(name)
+               + ",component=" + stats.name);
+         server.registerMBean(stats, objectName);
+         registered.add(objectName);
+      }
+   }
+
+   private void unregisterComponents() throws JMException {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      // The model's own MBean comes first and stays.
+      while (registered.size() > 1) {
+         server.unregisterMBean(registered.remove(registered.size() - 1));
+      }
+   }
+
+   /**
+    * Unregister the MBeans registered by register().
+    */
+   public synchronized void unregister() throws JMException {
+      if (name == null) return;
+      unregisterComponents();
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+            registered.remove(0));
+      name = null;
+   }
+
+   @Override
+   public String toString() {
+      return ComponentStats.table(components);
+   }
+}
@@ -0,0 +1,21 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * JMX view of an LmStats (see LmStats.register()).
+ */
+public interface LmStatsMBean {
+
+   long getRetainedBytes();
+
+   /**
+    * Time the stats were taken, in milliseconds since the epoch.
+    */
+   long getTime();
+
+   String getJson();
+
+   /**
+    * Take the stats again.
+    */
+   void refresh();
+}
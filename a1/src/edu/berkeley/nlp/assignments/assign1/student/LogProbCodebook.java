@@ -0,0 +1,94 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.Arrays;
+
+/**
+ * Maps log probabilities to small integer codes and back. The codebook is a
+ * sorted list of representative values; a value is encoded as the index of
+ * the closest one.
+ * 
+ * The representatives are trained on a sample: they start at the means of
+ * equally sized quantiles of the sample, so common values get more codes, and
+ * are then refined with a few rounds of Lloyd's algorithm (1-D k-means).
+ */
+public class LogProbCodebook {
+
+   static final int LLOYD_ITERATIONS = 3;
+
+   final float centers[];
+
+   LogProbCodebook(float centers[]) {
+      this.centers = centers;
+   }
+
+   /**
+    * Train a codebook with at most 2^bits codes on the first n values of the
+    * sample. The sample is sorted in place.
+    */
+   public static LogProbCodebook train(float sample[], int n, int bits) {
+      if (n == 0) return new LogProbCodebook(new float[] { 0 });
+      Arrays.sort(sample, 0, n);
+
+      int levels = Math.min(1 << bits, n);
+      float centers[] = new float[levels];
+      for (int i = 0; i < levels; i++) {
+         centers[i] = (float) mean(sample, (int) ((long) i * n / levels),
+               (int) ((long) (i + 1) * n / levels));
+      }
+
+      // Lloyd's algorithm: move every center to the mean of the values that
+      // are closest to it.
+      double sums[] = new double[levels];
+      int counts[] = new int[levels];
+      for (int iteration = 0; iteration < LLOYD_ITERATIONS; iteration++) {
+         LogProbCodebook codebook = new LogProbCodebook(centers);
+         Arrays.fill(sums, 0);
+         Arrays.fill(counts, 0);
+         for (int i = 0; i < n; i++) {
+            int code = codebook.encode(sample[i]);
+            sums[code] += sample[i];
+            counts[code]++;
+         }
+         for (int i = 0; i < levels; i++) {
+            if (counts[i] > 0) centers[i] = (float) (sums[i] / counts[i]);
+         }
+      }
+      return new LogProbCodebook(centers);
+   }
+
+   private static double mean(float values[], int from, int to) {
+      double sum = 0;
+      for (int i = from; i < to; i++) sum += values[i];
+      return sum / (to - from);
+   }
+
+   /**
+    * Return the code of the closest representative.
+    */
+   public int encode(double value) {
+      int i = Arrays.binarySearch(centers, (float) value);
+      if (i >= 0) return i;
+      i = -i - 1;
+      if (i == 0) return 0;
+      if (i == centers.length) return centers.length - 1;
+      return value - centers[i - 1] <= centers[i] - value ? i - 1 : i;
+   }
+
+   public float decode(int code) {
+      return centers[code];
+   }
+
+   /**
+    * Return the number of codes.
+    */
+   public int size() {
+      return centers.length;
+   }
+
+   /**
+    * Return the number of bits needed to store a code.
+    */
+   public int bits() {
+      return BitPackedArray.bitsFor(centers.length - 1);
+   }
+}
@@ -0,0 +1,155 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.Arrays;
+
+/**
+ * A small open addressing map from long keys to positive int values, in two
+ * primitive arrays, for the values that CrazilyPackedHashMap spills out of
+ * its slots. A value of 0 marks an empty slot, so 0 can't be stored, and
+ * get() returns it for a missing key. Collisions are resolved by linear
+ * probing, and remove() shifts the following entries back instead of leaving
+ * tombstones.
+ */
+public class LongIntHashMap {
+
+   static final float LOAD_FACTOR = 0.5f;
+
+   long keys[];
+   int values[];
+   int size;
+   int threshold;
+
+   public LongIntHashMap() {
+      this(16);
+   }
+
+   public LongIntHashMap(int initialCapacity) {
+      allocate(Math.max(4, (int) (initialCapacity / LOAD_FACTOR)));
+   }
+
+   public LongIntHashMap(LongIntHashMap other) {
+      keys = other.keys.clone();
+      values = other.values.clone();
+      size = other.size;
+      threshold = other.threshold;
+   }
+
+   private void allocate(int length) {
+      keys = new long[length];
+      values = new int[length];
+      threshold = (int) (length * LOAD_FACTOR);
+   }
+
+   private int homePosition(long key) {
+      return HashFunctions.fastRange(HashFunctions.mix(key), keys.length);
+   }
+
+   /**
+    * Return the slot holding the key, or the empty slot where it would go.
+    */
+   private int find(long key) {
+      int index = homePosition(key);
+      while (values[index] != 0 && keys[index] != key) {
+         if (++index == keys.length) index = 0;
+      }
+      return index;
+   }
+
+   /**
+    * Return the value of the key, or 0 if it's not in the map.
+    */
+   public int get(long key) {
+      return values[find(key)];
+   }
+
+   public void put(long key, int value) {
+      if (value <= 0) {
+         throw new IllegalArgumentException("Value of " + key
+               + " not positive: " + value);
+      }
+      int index = find(key);
+      if (values[index] == 0) {
+         if (size >= threshold) {
+            rehash(2 * keys.length);
+            index = find(key);
+         }
+         size++;
+         keys[index] = key;
+      }
+      values[index] = value;
+   }
+
+   /**
+    * Remove the key and return its value, or 0 if it was not there.
+    */
+   public int remove(long key) {
+      int hole = find(key);
+      int value = values[hole];
+      if (value == 0) return 0;
+      size--;
+
+      int index = hole;
+      while (true) {
+         if (++index == keys.length) index = 0;
+         if (values[index] == 0) break;
+         // Move an entry only if the hole is between its home and it.
+         int home = homePosition(keys[index]);
+         if (hole <= index ? (home > hole && home <= index)
+               : (home > hole || home <= index)) {
+            continue;
+         }
+         keys[hole] = keys[index];
+         values[hole] = values[index];
+         hole = index;
+      }
+      keys[hole] = 0;
+      values[hole] = 0;
+      return value;
+   }
+
+   private void rehash(int length) {
+      long oldKeys[] = keys;
+      int oldValues[] = values;
+      allocate(length);
+      for (int i = 0; i < oldKeys.length; i++) {
+         if (oldValues[i] != 0) {
+            int index = find(oldKeys[i]);
+            keys[index] = oldKeys[i];
+            values[index] = oldValues[i];
+         }
+      }
+   }
+
+   public void clear() {
+      Arrays.fill(keys, 0);
+      Arrays.fill(values, 0);
+      size = 0;
+   }
+
+   public int size() {
+      return size;
+   }
+
+   /**
+    * Return the number of slots. Slots can be walked with slotKey() and
+    * slotValue(); empty slots have a value of 0.
+    */
+   public int slotCount() {
+      return keys.length;
+   }
+
+   public long slotKey(int slot) {
+      return keys[slot];
+   }
+
+   public int slotValue(int slot) {
+      return values[slot];
+   }
+
+   /**
+    * Return the number of bytes used by the arrays.
+    */
+   public long bytes() {
+      return 12L * keys.length;
+   }
+}
@@ -0,0 +1,53 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * The slots of a packed hash map. The maps only ever need random access to a
+ * fixed number of longs, so hiding the array behind this class lets a map be
+ * backed by a plain heap array, by direct buffers off the heap, or by a
+ * read-only memory mapped snapshot file (when it is being served).
+ * 
+ * Slots are addressed with longs so that storage split into chunks can hold
+ * more than 2^31 of them; a single heap array can't.
+ */
+public abstract class LongStorage {
+
+   /**
+    * Largest number of slots a single heap array is allowed to have.
+    */
+   static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+   /**
+    * Return the long stored at the given slot.
+    */
+   public abstract long get(long index);
+
+   /**
+    * Store a long at the given slot.
+    */
+   public abstract void set(long index, long value);
+
+   /**
+    * Return the number of slots.
+    */
+   public abstract long length();
+
+   /**
+    * Return new zeroed storage of the same kind, e.g. for a table that grows.
+    * Kinds that can't be allocated this way (memory mapped files) return
+    * heap storage.
+    */
+   public LongStorage newStorage(long length) {
+      return allocate(length, false);
+   }
+
+   /**
+    * Return zeroed storage, on the heap or off the heap. Heap storage with
+    * more slots than an array can have is split into segments.
+    */
+   public static LongStorage allocate(long length, boolean offHeap) {
+      if (offHeap) return new OffHeapLongStorage(length);
+      if (length > MAX_ARRAY_LENGTH) return new SegmentedLongStorage(length);
+      return new HeapLongStorage((int) length);
+   }
+
+}
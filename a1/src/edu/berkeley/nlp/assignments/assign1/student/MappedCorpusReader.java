@@ -0,0 +1,218 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+
+/**
+ * Reads a corpus with one tokenized sentence per line straight from a memory
+ * mapped file and hands every sentence to a Handler as an array of word
+ * indexes, padded with START and STOP.
+ *
+ * The sentences and words come out exactly like SentenceCollection produces
+ * them (split on whitespace, lower cased, UTF-8), but the only objects
+ * created per token are the Strings for tokens the TokenIndexer hasn't seen
+ * before. The index array is reused from one sentence to the next, so a
+ * Handler must not keep it.
+ *
+ * Files larger than CHUNK_SIZE are mapped one chunk at a time. A chunk ends
+ * at the last line break in it, so no line may be longer than a chunk.
+ * Compressed files are not supported.
+ */
+public class MappedCorpusReader {
+
+   /**
+    * Called once per sentence with words[0] = START and
+    * words[length - 1] = STOP.
+    */
+   public interface Handler {
+      void sentence(int words[], int length);
+   }
+
+   /**
+    * Number of bytes mapped at a time.
+    */
+   static final int CHUNK_SIZE = 1 << 30;
+
+   final File file;
+   final TokenIndexer tokenIndexer;
+   final int chunkSize;
+
+   /**
+    * Word indexes of the current sentence.
+    */
+   int words[] = new int[64];
+   int length;
+
+   /**
+    * Bytes of the current token.
+    */
+   byte token[] = new byte[64];
+   int tokenLength;
+
+   /**
+    * Set when the line starts with whitespace: String.split() then returns an
+    * empty first word, but only if some word follows.
+    */
+   boolean leadingEmptyWord;
+
+   int startIndex = -1;
+   int stopIndex = -1;
+
+   long numSentences;
+   long numTokens;
+
+   public MappedCorpusReader(File file, TokenIndexer tokenIndexer) {
+      this(file, tokenIndexer, CHUNK_SIZE);
+   }
+
+   MappedCorpusReader(File file, TokenIndexer tokenIndexer, int chunkSize) {
+      if (file.getName().endsWith(".gz")) {
+         throw new IllegalArgumentException("Can't map compressed file "
+               + file);
+      }
+      this.file = file;
+      this.tokenIndexer = tokenIndexer;
+      this.chunkSize = chunkSize;
+   }
+
+   /**
+    * Read the whole file.
+    */
+   public void read(Handler handler) throws IOException {
+      RandomAccessFile input = new RandomAccessFile(file, "r");
+      beginSentence();
+      try {
+         FileChannel channel = input.getChannel();
+         long size = channel.size();
+         long position = 0;
+         while (position < size) {
+            int length = (int) Math.min(chunkSize, size - position);
+            boolean last = position + length == size;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                  position, length);
+            int end = last ? length : linesEnd(buffer, length);
+            if (end == 0) {
+               throw new IOException("Line at byte " + position + " of "
+                     + file + " is longer than " + chunkSize + " bytes");
+            }
+            readLines(buffer, end, last, handler);
+            position += end;
+         }
+      } finally {
+         input.close();
+      }
+   }
+
+   /**
+    * Return the end of the last complete line in the buffer, or 0 if there's
+    * none. A '\r' at the very end may be the first half of "\r\n", so it
+    * doesn't count.
+    */
+   private static int linesEnd(MappedByteBuffer buffer, int length) {
+      for (int i = length - 1; i >= 0; i--) {
+         byte b = buffer.get(i);
+         if (b == '\n' || (b == '\r' && i < length - 1)) return i + 1;
+      }
+      return 0;
+   }
+
+   /**
+    * Read the lines in buffer[0, end). Unless this is the last chunk, the
+    * range ends with a line break.
+    */
+   private void readLines(MappedByteBuffer buffer, int end, boolean last,
+         Handler handler) {
+      boolean lineStarted = false;
+      for (int i = 0; i < end; i++) {
+         byte b = buffer.get(i);
+         if (b == '\n' || b == '\r') {
+            if (b == '\r' && i + 1 < end && buffer.get(i + 1) == '\n') i++;
+            endSentence(lineStarted, handler);
+            lineStarted = false;
+         } else if (b == ' ' || b == '\t' || b == '\f' || b == 0x0B) {
+            if (tokenLength > 0) {
+               endToken();
+            } else if (!lineStarted) {
+               leadingEmptyWord = true;
+            }
+            lineStarted = true;
+         } else {
+            if (tokenLength == token.length) {
+               byte grown[] = new byte[token.length * 2];
+               System.arraycopy(token, 0, grown, 0, tokenLength);
+               token = grown;
+            }
+            token[tokenLength++] = b;
+            lineStarted = true;
+         }
+      }
+      // The last line of the file may have no line break.
+      if (last && lineStarted) endSentence(true, handler);
+   }
+
+   private void endToken() {
+      if (leadingEmptyWord) {
+         leadingEmptyWord = false;
+         addWord(tokenIndexer.addAndGetIndex(token, 0, 0));
+      }
+      addWord(tokenIndexer.addAndGetIndex(token, 0, tokenLength));
+      tokenLength = 0;
+   }
+
+   private void endSentence(boolean lineStarted, Handler handler) {
+      if (tokenLength > 0) {
+         endToken();
+      } else if (!lineStarted) {
+         // An empty line is a sentence with one empty word.
+         addWord(tokenIndexer.addAndGetIndex(token, 0, 0));
+      }
+      leadingEmptyWord = false;
+
+      if (stopIndex < 0) {
+         stopIndex = tokenIndexer.wordIndexer
+               .addAndGetIndex(NgramLanguageModel.STOP);
+      }
+      addWord(stopIndex);
+      numSentences++;
+      numTokens += length - 2;
+      handler.sentence(words, length);
+      beginSentence();
+   }
+
+   private void beginSentence() {
+      if (startIndex < 0) {
+         startIndex = tokenIndexer.wordIndexer
+               .addAndGetIndex(NgramLanguageModel.START);
+      }
+      length = 0;
+      addWord(startIndex);
+   }
+
+   private void addWord(int word) {
+      if (length == words.length) {
+         int grown[] = new int[words.length * 2];
+         System.arraycopy(words, 0, grown, 0, length);
+         words = grown;
+      }
+      words[length++] = word;
+   }
+
+   /**
+    * Number of sentences read so far.
+    */
+   public long numSentences() {
+      return numSentences;
+   }
+
+   /**
+    * Number of words read so far, not counting START and STOP.
+    */
+   public long numTokens() {
+      return numTokens;
+   }
+}
@@ -0,0 +1,59 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Slots stored in a read-only memory mapped region of a file. The pages live
+ * in the OS page cache, so they don't count against the Java heap and all the
+ * processes mapping the same file share a single copy.
+ * 
+ * A single mapping is limited to 2GB, so the region is mapped in chunks of
+ * 2^27 longs (1GB).
+ */
+public class MappedLongStorage extends LongStorage {
+
+   static final int CHUNK_BITS = 27;
+   static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+   final LongBuffer chunks[];
+   final long length;
+
+   /**
+    * Map <tt>length</tt> longs of the file starting at byte
+    * <tt>position</tt>.
+    */
+   public MappedLongStorage(FileChannel channel, long position, long length)
+         throws IOException {
+      this.length = length;
+      int numChunks = (int) ((length + CHUNK_MASK) >>> CHUNK_BITS);
+      chunks = new LongBuffer[numChunks];
+      for (int i = 0; i < numChunks; i++) {
+         long first = (long) i << CHUNK_BITS;
+         long chunkLength = Math.min(CHUNK_MASK + 1L, length - first);
+         chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+               position + first * 8, chunkLength * 8).asLongBuffer();
+      }
+   }
+
+   @Override
+   public long get(long index) {
+      return chunks[(int) (index >>> CHUNK_BITS)].get((int) index & CHUNK_MASK);
+   }
+
+   /**
+    * Mapped storage is read only.
+    */
+   @Override
+   public void set(long index, long value) {
+      throw new UnsupportedOperationException(
+            "Memory mapped tables are read only");
+   }
+
+   @Override
+   public long length() {
+      return length;
+   }
+
+}
@@ -0,0 +1,147 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * Assigns dense indexes, starting at 1, to n-grams of one order. An n-gram is
+ * identified by the index of its first n-1 words (its context, from the
+ * indexer one order below) and its last word, so any order can be indexed
+ * without having to know the corpus up front.
+ * 
+ * Unlike BigramIndexer the key takes a whole long (32 bits of context index,
+ * 32 bits of word), so the indexes are kept in a parallel int array instead
+ * of being packed next to the key. A slot is empty when its key is 0; context
+ * indexes start at 1, so no real key is 0.
+ * 
+ * The table uses linear probing and grows like CrazilyPackedHashMap.
+ */
+public class NgramIndexer {
+
+   LongStorage keys;
+   int indexes[];
+   int size;
+   int threshold;
+   final float loadFactor;
+
+   public NgramIndexer(int initialCapacity, float loadFactor) {
+      this.loadFactor = loadFactor;
+      int length = CrazilyPackedHashMap.tableLength(initialCapacity,
+            loadFactor);
+      keys = new HeapLongStorage(length);
+      indexes = new int[length];
+      setThreshold();
+   }
+
+   private void setThreshold() {
+      // Always keep one slot empty so that probing for a missing key stops.
+      threshold = Math.min((int) (keys.length() * (double) loadFactor),
+            (int) keys.length() - 1);
+   }
+
+   static long key(int context, int word) {
+      return ((long) context << 32) | (word & 0xFFFFFFFFL);
+   }
+
+   /**
+    * Return the index of the n-gram, or 0 if it hasn't been seen.
+    */
+   public int get(int context, int word) {
+      if (context <= 0) return 0;
+      long key = key(context, word);
+      int length = (int) keys.length();
+      int index = HashFunctions.fastRange(HashFunctions.mix(key), length);
+      while (true) {
+         long slot = keys.get(index);
+         if (slot == key) return indexes[index];
+         if (slot == 0) return 0;
+         if (++index == length) index = 0;
+      }
+   }
+
+   /**
+    * Return the index of the n-gram, adding it if it's new. New n-grams get
+    * size() + 1, so a caller can tell them apart by checking size().
+    */
+   public int addAndGetIndex(int context, int word) {
+      if (context <= 0) {
+         throw new IllegalArgumentException("Bad context index " + context);
+      }
+      long key = key(context, word);
+      int length = (int) keys.length();
+      int index = HashFunctions.fastRange(HashFunctions.mix(key), length);
+      while (true) {
+         long slot = keys.get(index);
+         if (slot == key) return indexes[index];
+         if (slot == 0) break;
+         if (++index == length) index = 0;
+      }
+
+      if (size >= threshold) {
+         grow();
+         return addAndGetIndex(context, word);
+      }
+      keys.set(index, key);
+      indexes[index] = ++size;
+      return size;
+   }
+
+   /**
+    * Rehash all entries into a table at least twice as large.
+    */
+   private void grow() {
+      int length = (int) keys.length();
+      if (length == PrimeFinder.largestPrime) {
+         throw new IllegalStateException("N-gram table can't grow beyond "
+               + length + " slots");
+      }
+      int newLength = PrimeFinder.nextPrime((int) Math.min(2L * length,
+            PrimeFinder.largestPrime));
+      System.out.println("Growing n-gram table from " + length + " to "
+            + newLength + " slots");
+
+      LongStorage oldKeys = keys;
+      int oldIndexes[] = indexes;
+      keys = new HeapLongStorage(newLength);
+      indexes = new int[newLength];
+      for (int i = 0; i < length; i++) {
+         long key = oldKeys.get(i);
+         if (key == 0) continue;
+         int index = HashFunctions.fastRange(HashFunctions.mix(key), newLength);
+         while (keys.get(index) != 0) {
+            if (++index == newLength) index = 0;
+         }
+         keys.set(index, key);
+         indexes[index] = oldIndexes[i];
+      }
+      setThreshold();
+   }
+
+   public int size() {
+      return size;
+   }
+
+   /**
+    * Return the number of slots. Slots can be walked with slotIndex(),
+    * slotContext() and slotWord(); empty slots have an index of zero.
+    */
+   public int slotCount() {
+      return (int) keys.length();
+   }
+
+   public int slotIndex(int slot) {
+      return indexes[slot];
+   }
+
+   public int slotContext(int slot) {
+      return (int) (keys.get(slot) >>> 32);
+   }
+
+   public int slotWord(int slot) {
+      return (int) keys.get(slot);
+   }
+
+   /**
+    * Return the number of bytes used by the table.
+    */
+   public long bytes() {
+      return 12L * keys.length();
+   }
+}
@@ -0,0 +1,59 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Slots stored in direct buffers outside the Java heap. The garbage collector
+ * never scans or copies them, so a large table neither needs a large -Xmx nor
+ * makes full collections slower. The memory is returned when the storage
+ * object itself is collected.
+ *
+ * Like MappedLongStorage, the slots are split into chunks of 2^27 longs
+ * (1GB), since a single buffer is limited to 2GB. Note that the JVM caps the
+ * total size of direct buffers with -XX:MaxDirectMemorySize, which defaults
+ * to the maximum heap size.
+ */
+public class OffHeapLongStorage extends LongStorage {
+
+   static final int CHUNK_BITS = 27;
+   static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+   final LongBuffer chunks[];
+   final long length;
+
+   public OffHeapLongStorage(long length) {
+      this.length = length;
+      int numChunks = (int) ((length + CHUNK_MASK) >>> CHUNK_BITS);
+      chunks = new LongBuffer[numChunks];
+      for (int i = 0; i < numChunks; i++) {
+         long first = (long) i << CHUNK_BITS;
+         int chunkLength = (int) Math.min(CHUNK_MASK + 1L, length - first);
+         // Direct buffers come zeroed.
+         chunks[i] = ByteBuffer.allocateDirect(chunkLength * 8)
+               .order(ByteOrder.nativeOrder()).asLongBuffer();
+      }
+   }
+
+   @Override
+   public long get(long index) {
+      return chunks[(int) (index >>> CHUNK_BITS)].get((int) index & CHUNK_MASK);
+   }
+
+   @Override
+   public void set(long index, long value) {
+      chunks[(int) (index >>> CHUNK_BITS)].put((int) index & CHUNK_MASK, value);
+   }
+
+   @Override
+   public long length() {
+      return length;
+   }
+
+   @Override
+   public LongStorage newStorage(long length) {
+      return new OffHeapLongStorage(length);
+   }
+
+}
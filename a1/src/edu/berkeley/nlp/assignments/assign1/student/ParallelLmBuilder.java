@@ -0,0 +1,652 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Builds a KneserNeyTrigramLm with several threads. The model comes out bit
+ * for bit the same as a sequential build: the same indexes, counts and
+ * arrays, and the same entries in the same slots of its hash tables, so its
+ * snapshot saves to the same bytes.
+ *
+ * The work goes through three stages:
+ * <ul>
+ * <li>The calling thread reads the sentences, indexes their words and counts
+ * the unigrams, exactly like buildModel() does, and packs the word indexes
+ * into chunks of about CHUNK_SIZE tokens. This stays on one thread: the word
+ * indexer is shared, and the words have to be indexed in the order they
+ * first occur.
+ * <li>numThreads indexers take the chunks in any order, index and count
+ * their bigrams in a shared ConcurrentBigramIndexer, and keep the first
+ * position of every bigram in the stream. Every trigram is routed to the
+ * counter that owns its context bigram (its index modulo numThreads).
+ * <li>numThreads counters count the trigrams routed to them into their own
+ * shards, again with the first position of every trigram. A counter only
+ * ever sees its own trigrams.
+ * </ul>
+ * The bigram indexes handed out by the indexers depend on the timing of the
+ * threads. When the stream ends the bigrams are inserted into the model's
+ * indexer in the order they first occur, which is the order a sequential
+ * build indexes them in, and so get the same indexes. Then the trigrams of
+ * all shards are inserted into the model's counter in the order they first
+ * occur, with their final counts, and the N1+ counts are added up on the
+ * way. Both tables see the same keys in the same order as in a sequential
+ * build, so they grow, widen and place every entry the same way.
+ *
+ * The concurrent indexer is resized when the chunks in flight might not fit
+ * in it, under the write side of a lock whose read side the indexers hold
+ * while they work on a chunk. It stays on the heap, whatever
+ * LmBuildOptions.offHeap says. Until the merge is done the trigrams take
+ * about four times the memory of a sequential build: the shards also keep
+ * the first position and the w2w3 index of every trigram, and the merge
+ * sorts them by first position.
+ */
+public class ParallelLmBuilder {
+
+   /**
+    * Number of tokens per chunk handed to the indexers. A longer sentence
+    * gets a chunk of its own.
+    */
+   static final int CHUNK_SIZE = 1 << 16;
+
+   final KneserNeyTrigramLm lm;
+   final LmBuildOptions options;
+   final int numThreads;
+
+   /**
+    * Chunks that are not being filled, indexed or counted, and chunks
+    * waiting for an indexer.
+    */
+   final BlockingQueue<Chunk> freeChunks;
+   final BlockingQueue<Chunk> fullChunks;
+
+   /**
+    * Bigrams indexed by the indexers, and by those indexes the count and the
+    * first position + 1 (0 until it's seen) of every bigram. The arrays are
+    * replaced when the indexer is resized.
+    */
+   final ConcurrentBigramIndexer bigrams;
+   AtomicIntegerArray bigramCounts;
+   AtomicLongArray bigramFirst;
+   final ReadWriteLock resizeLock = new ReentrantReadWriteLock();
+
+   /**
+    * Longest chunk so far. Every chunk in flight may add this many bigrams.
+    */
+   volatile int maxChunkLength = CHUNK_SIZE;
+
+   Indexer indexers[];
+   Counter counters[];
+
+   /**
+    * Chunk being filled by the calling thread, and the number of tokens
+    * before it.
+    */
+   private Chunk chunk;
+   private long numTokens;
+
+   public ParallelLmBuilder(KneserNeyTrigramLm lm, LmBuildOptions options) {
+      this.lm = lm;
+      this.options = options;
+      this.numThreads = options.numThreads;
+      int numChunks = 2 * numThreads + 2;
+      freeChunks = new ArrayBlockingQueue<Chunk>(numChunks);
+      for (int i = 0; i < numChunks; i++) {
+         freeChunks.add(new Chunk(CHUNK_SIZE, numThreads));
+      }
+      // Room for every chunk plus an END for every indexer.
+      fullChunks = new ArrayBlockingQueue<Chunk>(numChunks + numThreads);
+
+      bigrams = new ConcurrentBigramIndexer(lm.bigramCounter.length,
+            options.loadFactor, lm.wordBits);
+      bigramCounts = new AtomicIntegerArray(bigrams.capacity() + 1);
+      bigramFirst = new AtomicLongArray(bigrams.capacity() + 1);
+   }
+
+   /**
+    * Sentences as word indexes padded with START and STOP, and the trigrams
+    * routed to every counter.
+    */
+   static class Chunk {
+      int words[];
+      int length;
+
+      /**
+       * Offset in words of the end of every sentence.
+       */
+      int ends[] = new int[1024];
+      int numSentences;
+      int maxWord;
+
+      /**
+       * Position of words[0] in the stream.
+       */
+      long start;
+
+      final Trigrams routed[];
+
+      /**
+       * Number of counters that haven't counted their trigrams yet.
+       */
+      final AtomicInteger pending = new AtomicInteger();
+
+      Chunk(int capacity, int numCounters) {
+         words = new int[capacity];
+         routed = new Trigrams[numCounters];
+         for (int i = 0; i < numCounters; i++) {
+            routed[i] = new Trigrams(capacity / numCounters + 16);
+         }
+      }
+
+      void clear(long start) {
+         this.start = start;
+         length = numSentences = maxWord = 0;
+         for (Trigrams trigrams : routed) trigrams.length = 0;
+      }
+   }
+
+   /**
+    * Marks the end of the stream.
+    */
+   static final Chunk END = new Chunk(0, 0);
+
+   /**
+    * Trigrams as their context bigram, last word and last bigram, by the
+    * indexes of the concurrent indexer, with the offset of the last word in
+    * the chunk.
+    */
+   static class Trigrams {
+      int w1w2[], w3[], w2w3[], offset[];
+      int length;
+
+      Trigrams(int capacity) {
+         w1w2 = new int[capacity];
+         w3 = new int[capacity];
+         w2w3 = new int[capacity];
+         offset = new int[capacity];
+      }
+
+      void add(int word1word2, int word3, int word2word3, int wordOffset) {
+         if (length == w1w2.length) {
+            w1w2 = Arrays.copyOf(w1w2, 2 * length);
+            w3 = Arrays.copyOf(w3, 2 * length);
+            w2w3 = Arrays.copyOf(w2w3, 2 * length);
+            offset = Arrays.copyOf(offset, 2 * length);
+         }
+         w1w2[length] = word1word2;
+         w3[length] = word3;
+         w2w3[length] = word2word3;
+         offset[length++] = wordOffset;
+      }
+   }
+
+   class Indexer extends Thread {
+      volatile Throwable error;
+
+      Indexer(int id) {
+         super("lm-indexer-" + id);
+      }
+
+      @Override
+      public void run() {
+         try {
+            while (true) {
+               Chunk chunk = fullChunks.take();
+               if (chunk == END) break;
+               if (error == null) {
+                  try {
+                     index(chunk);
+                  } catch (Throwable t) {
+                     error = t;
+                  }
+               }
+               if (error != null) {
+                  // Keep taking chunks so the reader doesn't block.
+                  freeChunks.put(chunk);
+                  continue;
+               }
+               chunk.pending.set(counters.length);
+               for (Counter counter : counters) {
+                  counter.queue.put(chunk);
+               }
+            }
+         } catch (InterruptedException e) {
+            error = e;
+         }
+      }
+
+      /**
+       * Index the bigrams of the chunk and route its trigrams. This is the
+       * same loop as KneserNeyTrigramLm.countSentence().
+       */
+      void index(Chunk chunk) {
+         resizeLock.readLock().lock();
+         try {
+            makeRoom(chunk.maxWord);
+            int words[] = chunk.words;
+            int from = 0;
+            for (int s = 0; s < chunk.numSentences; s++) {
+               int to = chunk.ends[s];
+               int word1word2 = addBigram(chunk, from + 1);
+               for (int i = from + 2; i < to; i++) {
+                  int word2word3 = addBigram(chunk, i);
+                  chunk.routed[word1word2 % counters.length].add(word1word2,
+                        words[i], word2word3, i);
+                  word1word2 = word2word3;
+               }
+               from = to;
+            }
+         } finally {
+            resizeLock.readLock().unlock();
+         }
+      }
+
+      /**
+       * Index and count the bigram that ends at words[i] and return its
+       * index.
+       */
+      int addBigram(Chunk chunk, int i) {
+         int bigram = bigrams.addAndGetIndex(chunk.words[i - 1],
+               chunk.words[i]);
+         bigramCounts.incrementAndGet(bigram);
+         long position = chunk.start + i + 1;
+         while (true) {
+            long first = bigramFirst.get(bigram);
+            if ((first != 0 && first <= position)
+                  || bigramFirst.compareAndSet(bigram, first, position)) {
+               return bigram;
+            }
+         }
+      }
+   }
+
+   /**
+    * Make sure the chunks in flight fit in the concurrent indexer, resizing
+    * it if they might not. Called with the read lock held, which is given up
+    * while resizing.
+    */
+   private void makeRoom(int maxWord) {
+      int room = numThreads * maxChunkLength;
+      while (!bigrams.hasRoom(room, maxWord, maxWord)) {
+         resizeLock.readLock().unlock();
+         resizeLock.writeLock().lock();
+         try {
+            bigrams.resize(room, maxWord, maxWord);
+            int length = bigrams.capacity() + 1;
+            if (length > bigramCounts.length()) {
+               AtomicIntegerArray counts = new AtomicIntegerArray(length);
+               AtomicLongArray first = new AtomicLongArray(length);
+               for (int i = 0; i < bigramCounts.length(); i++) {
+                  counts.set(i, bigramCounts.get(i));
+                  first.set(i, bigramFirst.get(i));
+               }
+               bigramCounts = counts;
+               bigramFirst = first;
+            }
+         } finally {
+            resizeLock.readLock().lock();
+            resizeLock.writeLock().unlock();
+         }
+      }
+   }
+
+   class Counter extends Thread {
+      final int id;
+      final BlockingQueue<Chunk> queue;
+
+      /**
+       * Numbers the trigrams routed here, by the concurrent indexes of their
+       * context bigram and their last word, in the order they arrive
+       * (starting at 1). By those numbers: the count, the first position and
+       * the last bigram of every trigram.
+       */
+      CrazilyPackedHashMap shard;
+      int counts[] = new int[1024];
+      long first[] = new long[1024];
+      int w2w3[] = new int[1024];
+
+      volatile Throwable error;
+
+      Counter(int id, int shardCapacity) {
+         super("lm-counter-" + id);
+         this.id = id;
+         this.shard = new CrazilyPackedHashMap(shardCapacity,
+               options.loadFactor, -1L >>> (lm.bigramBits + lm.wordBits),
+               lm.bigramBits, lm.wordBits, options.probing, options.offHeap);
+         // Room for every chunk plus END.
+         this.queue = new ArrayBlockingQueue<Chunk>(freeChunks.size() + 1);
+      }
+
+      @Override
+      public void run() {
+         try {
+            while (true) {
+               Chunk chunk = queue.take();
+               if (chunk == END) break;
+               if (error == null) {
+                  try {
+                     count(chunk.routed[id], chunk.start);
+                  } catch (Throwable t) {
+                     // Keep taking chunks so the reader doesn't block.
+                     error = t;
+                  }
+               }
+               if (chunk.pending.decrementAndGet() == 0) {
+                  freeChunks.put(chunk);
+               }
+            }
+         } catch (InterruptedException e) {
+            error = e;
+         }
+      }
+
+      void count(Trigrams trigrams, long start) {
+         for (int i = 0; i < trigrams.length; i++) {
+            int word1word2 = trigrams.w1w2[i];
+            int word3 = trigrams.w3[i];
+            long position = start + trigrams.offset[i];
+            int trigram = shard.get(word1word2, word3);
+            if (trigram == 0) {
+               // Assertion: This is a new trigram.
+               trigram = shard.size() + 1;
+               shard.adjustOrPutValue(word1word2, word3, trigram);
+               if (trigram == counts.length) {
+                  counts = Arrays.copyOf(counts, 2 * trigram);
+                  first = Arrays.copyOf(first, 2 * trigram);
+                  w2w3 = Arrays.copyOf(w2w3, 2 * trigram);
+               }
+               first[trigram] = position;
+               w2w3[trigram] = trigrams.w2w3[i];
+            } else if (position < first[trigram]) {
+               first[trigram] = position;
+            }
+            counts[trigram]++;
+         }
+      }
+   }
+
+   /**
+    * Count all the sentences and finish the model.
+    * @return the number of words read
+    */
+   public long build(Iterable<List<String>> sentenceCollection) {
+      System.out.println("Building the language model with " + numThreads
+            + " threads . . .");
+
+      startWorkers();
+      long start = System.currentTimeMillis();
+      long num_words = 0;
+      try {
+         int num_sentence = 0;
+         for (List<String> sentence : sentenceCollection) {
+            num_sentence++;
+            if (num_sentence % 1000000 == 0) {
+               System.out.println("On sentence " + num_sentence);
+            }
+            addSentence(lm.indexSentence(sentence), sentence.size() + 2);
+            num_words += sentence.size();
+         }
+         dispatch();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(e);
+      } finally {
+         stopWorkers();
+      }
+      finish(start);
+      return num_words;
+   }
+
+   /**
+    * Count a memory mapped corpus and finish the model.
+    */
+   public void build(final MappedCorpusReader reader) throws IOException {
+      System.out.println("Building the language model from " + reader.file
+            + " with " + numThreads + " threads . . .");
+
+      startWorkers();
+      long start = System.currentTimeMillis();
+      try {
+         reader.read(new MappedCorpusReader.Handler() {
+            public void sentence(int words[], int length) {
+               if (reader.numSentences() % 1000000 == 0) {
+                  System.out.println("On sentence " + reader.numSentences());
+               }
+               try {
+                  addSentence(words, length);
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw new RuntimeException(e);
+               }
+            }
+         });
+         dispatch();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(e);
+      } finally {
+         stopWorkers();
+      }
+      finish(start);
+   }
+
+   private void startWorkers() {
+      int shardCapacity = lm.trigramCapacity / numThreads + 1;
+      counters = new Counter[numThreads];
+      for (int i = 0; i < numThreads; i++) {
+         counters[i] = new Counter(i, shardCapacity);
+         counters[i].start();
+      }
+      indexers = new Indexer[numThreads];
+      for (int i = 0; i < numThreads; i++) {
+         indexers[i] = new Indexer(i);
+         indexers[i].start();
+      }
+      chunk = freeChunks.remove();
+      chunk.clear(0);
+   }
+
+   /**
+    * Let the indexers finish, then the counters.
+    */
+   private void stopWorkers() {
+      for (int i = 0; i < indexers.length; i++) {
+         fullChunks.add(END);
+      }
+      joinAll(indexers);
+      for (Counter counter : counters) {
+         counter.queue.add(END);
+      }
+      joinAll(counters);
+   }
+
+   private void finish(long start) {
+      checkWorkers();
+      System.out.println("Counting time: "
+            + (System.currentTimeMillis() - start) / 1000.0 + "s");
+
+      start = System.currentTimeMillis();
+      merge();
+      System.out.println("Merging time: "
+            + (System.currentTimeMillis() - start) / 1000.0 + "s");
+
+      lm.finishModel();
+   }
+
+   /**
+    * Count the unigrams of a sentence given as word indexes padded with
+    * START and STOP, like KneserNeyTrigramLm.countSentence() does, and add
+    * it to the chunk.
+    */
+   private void addSentence(int words[], int length)
+         throws InterruptedException {
+      lm.ensureUnigramCapacity(Math.max(words[0], words[1]));
+      lm.unigramCounter[words[0]]++;
+      lm.unigramCounter[words[1]]++;
+      for (int i = 2; i < length; i++) {
+         lm.ensureUnigramCapacity(words[i]);
+         lm.unigramCounter[words[i]]++;
+      }
+
+      if (chunk.length + length > chunk.words.length) {
+         if (chunk.numSentences > 0) dispatch();
+         if (length > chunk.words.length) {
+            chunk.words = new int[length];
+            maxChunkLength = Math.max(maxChunkLength, length);
+         }
+      }
+      System.arraycopy(words, 0, chunk.words, chunk.length, length);
+      for (int i = 0; i < length; i++) {
+         chunk.maxWord = Math.max(chunk.maxWord, words[i]);
+      }
+      chunk.length += length;
+      if (chunk.numSentences == chunk.ends.length) {
+         chunk.ends = Arrays.copyOf(chunk.ends, 2 * chunk.numSentences);
+      }
+      chunk.ends[chunk.numSentences++] = chunk.length;
+   }
+
+   /**
+    * Hand the chunk being filled to the indexers and start a new one.
+    */
+   private void dispatch() throws InterruptedException {
+      checkWorkers();
+      if (chunk.numSentences == 0) return;
+      numTokens += chunk.length;
+      fullChunks.put(chunk);
+      chunk = freeChunks.take();
+      chunk.clear(numTokens);
+   }
+
+   /**
+    * Insert the bigrams and the trigrams into the model in the order they
+    * first occur, and finish the N1+ counts.
+    */
+   private void merge() {
+      // Number the bigrams in the order they first occur.
+      int numBigrams = bigrams.size();
+      int bigramBits = BitPackedArray.bitsFor(numBigrams);
+      long order[] = new long[numBigrams];
+      for (int bigram = 1; bigram <= numBigrams; bigram++) {
+         order[bigram - 1] = orderKey(bigramFirst.get(bigram) - 1, bigram,
+               bigramBits);
+      }
+      Arrays.sort(order);
+      int firstWords[] = new int[numBigrams + 1];
+      int secondWords[] = new int[numBigrams + 1];
+      for (long slot = 0; slot < bigrams.slotCount(); slot++) {
+         int bigram = bigrams.slotIndex(slot);
+         if (bigram > 0) {
+            firstWords[bigram] = bigrams.slotFirstWord(slot);
+            secondWords[bigram] = bigrams.slotSecondWord(slot);
+         }
+      }
+      int renumbered[] = new int[numBigrams + 1];
+      long mask = (1L << bigramBits) - 1;
+      for (int i = 0; i < numBigrams; i++) {
+         int bigram = (int) (order[i] & mask);
+         int index = lm.bigramIndexer.addAndGetIndex(firstWords[bigram],
+               secondWords[bigram]);
+         lm.ensureBigramCapacity(index);
+         lm.bigramCounter[index] = bigramCounts.get(bigram);
+         renumbered[bigram] = index;
+      }
+      order = null;
+      firstWords = null;
+      bigramCounts = null;
+      bigramFirst = null;
+
+      // Gather the trigrams of all shards, numbered one shard after another.
+      long total = 0;
+      for (Counter counter : counters) total += counter.shard.size();
+      if (total >= Integer.MAX_VALUE) {
+         throw new IllegalStateException("Too many trigrams: " + total);
+      }
+      int numTrigrams = (int) total;
+      int trigramBits = BitPackedArray.bitsFor(numTrigrams);
+      order = new long[numTrigrams];
+      int contexts[] = new int[numTrigrams];
+      int lastWords[] = new int[numTrigrams];
+      int counts[] = new int[numTrigrams];
+      int lastBigrams[] = new int[numTrigrams];
+      int offset = 0;
+      for (int i = 0; i < counters.length; i++) {
+         Counter counter = counters[i];
+         CrazilyPackedHashMap shard = counter.shard;
+         for (long slot = 0; slot < shard.slotCount(); slot++) {
+            int local = shard.slotValue(slot);
+            if (local == 0) continue;
+            int trigram = offset + local - 1;
+            contexts[trigram] = shard.slotFirstKey(slot);
+            lastWords[trigram] = shard.slotSecondKey(slot);
+            counts[trigram] = counter.counts[local];
+            lastBigrams[trigram] = counter.w2w3[local];
+            order[trigram] = orderKey(counter.first[local], trigram,
+                  trigramBits);
+         }
+         offset += shard.size();
+         counters[i] = null;
+      }
+      Arrays.sort(order);
+
+      TrigramCounterInterface trigramCounter = lm.trigramCounter;
+      int n1plus_x_unigram_x[] = lm.n1plus_x_unigram_x;
+      int n1plus_bigram_x[] = lm.n1plus_bigram_x;
+      int n1plus_x_bigram[] = lm.n1plus_x_bigram;
+      mask = (1L << trigramBits) - 1;
+      for (int i = 0; i < numTrigrams; i++) {
+         int trigram = (int) (order[i] & mask);
+         int word1word2 = renumbered[contexts[trigram]];
+         trigramCounter.adjustOrPutValue(word1word2, lastWords[trigram],
+               counts[trigram]);
+         n1plus_x_unigram_x[secondWords[contexts[trigram]]]++;
+         n1plus_bigram_x[word1word2]++;
+         n1plus_x_bigram[renumbered[lastBigrams[trigram]]]++;
+      }
+   }
+
+   /**
+    * Return a key that sorts by position, then by id.
+    */
+   private static long orderKey(long position, int id, int idBits) {
+      if (position < 0 || (position >>> (63 - idBits)) != 0) {
+         throw new IllegalStateException("Position " + position
+               + " doesn't fit in " + (63 - idBits) + " bits");
+      }
+      return position << idBits | id;
+   }
+
+   private void checkWorkers() {
+      for (Indexer indexer : indexers) {
+         if (indexer.error != null) {
+            throw new RuntimeException("Bigram indexing failed",
+                  indexer.error);
+         }
+      }
+      for (Counter counter : counters) {
+         if (counter.error != null) {
+            throw new RuntimeException("Trigram counting failed",
+                  counter.error);
+         }
+      }
+   }
+
+   private void joinAll(Thread workers[]) {
+      for (Thread worker : workers) {
+         try {
+            worker.join();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+         }
+      }
+   }
+}
@@ -0,0 +1,232 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The n-gram counts of a model built from one shard of a corpus, written so
+ * that LmMerger can merge the counts of many shards in one streaming pass.
+ *
+ * Word indexes and bigram indexes only mean something inside the model that
+ * handed them out, so the file doesn't use them. Instead the vocabulary is
+ * written in String order and words are referred to by their rank in it.
+ * Ranks are consistent across shards (a word that comes before another in
+ * one shard does so in every shard), so the n-grams can be sorted by rank
+ * here and merged by global rank later without sorting again.
+ *
+ * <pre>
+ * header     magic, version
+ * vocabulary word count, (UTF word, unigram count) per word, in String order
+ * bigrams    bigram count, (rank1, rank2, count) per bigram, sorted
+ * trigrams   trigram count, (rank1, rank2, rank3, count) per trigram, sorted
+ * </pre>
+ */
+public class PartialCounts {
+
+   static final int MAGIC = 0x4b4e5043; // "KNPC"
+   static final int VERSION = 1;
+
+   static final int BUFFER_SIZE = 1 << 20;
+
+   /**
+    * Write the counts of the model. Only models with exact counts can be
+    * written.
+    */
+   public static void write(KneserNeyTrigramLm lm, File file)
+         throws IOException {
+      if (!(lm.trigramCounter instanceof TrigramCounter)
+            && !(lm.trigramCounter instanceof FrozenTrigramCounter)) {
+         throw new IllegalStateException(
+               "Only models with exact trigram counts can be written");
+      }
+      long start = System.currentTimeMillis();
+
+      // Rank the words.
+      int numWords = lm.wordIndexer.size();
+      String words[] = new String[numWords];
+      for (int i = 0; i < numWords; i++) words[i] = lm.wordIndexer.get(i);
+      Arrays.sort(words);
+      int ranks[] = new int[numWords];
+      int wordsByRank[] = new int[numWords];
+      for (int rank = 0; rank < numWords; rank++) {
+         wordsByRank[rank] = lm.wordIndexer.indexOf(words[rank]);
+         ranks[wordsByRank[rank]] = rank;
+      }
+
+      // Sort the bigrams by the ranks of their words, and rank them too.
+      int numBigrams = lm.bigramIndexer.size();
+      int firstWords[] = new int[numBigrams + 1];
+      int secondWords[] = new int[numBigrams + 1];
+      lm.getBigramWords(firstWords, secondWords);
+      long bigrams[] = new long[numBigrams];
+      for (int i = 1; i <= numBigrams; i++) {
+         bigrams[i - 1] = Utils.pack(ranks[firstWords[i]],
+               ranks[secondWords[i]]);
+      }
+      Arrays.sort(bigrams);
+      int bigramRanks[] = new int[numBigrams + 1];
+      int bigramsByRank[] = new int[numBigrams];
+      for (int rank = 0; rank < numBigrams; rank++) {
+         bigramsByRank[rank] = lm.bigramIndexer.get(
+               wordsByRank[Utils.left(bigrams[rank])],
+               wordsByRank[Utils.right(bigrams[rank])]);
+         bigramRanks[bigramsByRank[rank]] = rank;
+      }
+
+      // Sorting the trigrams by (bigram rank, word rank) sorts them by the
+      // ranks of their three words.
+      long trigrams[] = new long[lm.trigramCounter.size()];
+      int numTrigrams = 0;
+      QuantizedLogProbTables.TrigramWalker walker =
+            new QuantizedLogProbTables.TrigramWalker(lm, secondWords);
+      while (walker.next()) {
+         trigrams[numTrigrams++] = Utils.pack(bigramRanks[walker.context],
+               ranks[walker.word]);
+      }
+      Arrays.sort(trigrams, 0, numTrigrams);
+
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file), BUFFER_SIZE));
+      try {
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+
+         out.writeInt(numWords);
+         for (int rank = 0; rank < numWords; rank++) {
+            out.writeUTF(words[rank]);
+            int word = wordsByRank[rank];
+            out.writeInt(word < lm.unigramCounter.length
+                  ? lm.unigramCounter[word] : 0);
+         }
+
+         out.writeInt(numBigrams);
+         for (int rank = 0; rank < numBigrams; rank++) {
+            out.writeInt(Utils.left(bigrams[rank]));
+            out.writeInt(Utils.right(bigrams[rank]));
+            out.writeInt(lm.bigramCounter[bigramsByRank[rank]]);
+         }
+
+         out.writeInt(numTrigrams);
+         for (int i = 0; i < numTrigrams; i++) {
+            int bigramRank = Utils.left(trigrams[i]);
+            int word3Rank = Utils.right(trigrams[i]);
+            out.writeInt(Utils.left(bigrams[bigramRank]));
+            out.writeInt(Utils.right(bigrams[bigramRank]));
+            out.writeInt(word3Rank);
+            out.writeInt(lm.trigramCounter.get(bigramsByRank[bigramRank],
+                  wordsByRank[word3Rank]));
+         }
+      } finally {
+         out.close();
+      }
+      System.out.println("Wrote " + numWords + " words, " + numBigrams
+            + " bigrams and " + numTrigrams + " trigrams to " + file + " in "
+            + (System.currentTimeMillis() - start) / 1000.0 + "s");
+   }
+
+   /**
+    * Reads a file written by write() one section and one record at a time.
+    * Call nextWord() until it returns false, then nextBigram()
+    * until it returns false, then nextTrigram() until it returns false. The
+    * current record is in the public fields.
+    */
+   public static class Reader {
+      final File file;
+      final DataInputStream in;
+
+      /**
+       * The section being read (1 to 3, 0 before the first) and the number
+       * of its records left.
+       */
+      int section = 0;
+      int remaining = 0;
+
+      public String word;
+      public int rank1, rank2, rank3;
+      public int count;
+
+      public Reader(File file) throws IOException {
+         this.file = file;
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+               file), BUFFER_SIZE));
+         if (in.readInt() != MAGIC) {
+            in.close();
+            throw new IOException(file + " isn't a partial counts file");
+         }
+         int version = in.readInt();
+         if (version != VERSION) {
+            in.close();
+            throw new IOException("Unsupported partial counts version "
+                  + version + " in " + file);
+         }
+      }
+
+      /**
+       * Start the given section if it hasn't been started yet, and return
+       * whether it has another record.
+       */
+      private boolean next(int section) throws IOException {
+         if (this.section != section) {
+            if (this.section != section - 1 || remaining > 0) {
+               throw new IllegalStateException(
+                     "Sections must be read in order");
+            }
+            this.section = section;
+            remaining = in.readInt();
+         }
+         if (remaining == 0) return false;
+         remaining--;
+         return true;
+      }
+
+      /**
+       * Read the next word and its unigram count, in String order. rank1 is
+       * the rank of the word in this file.
+       */
+      public boolean nextWord() throws IOException {
+         if (section == 0) rank1 = -1;
+         if (!next(1)) return false;
+         word = in.readUTF();
+         count = in.readInt();
+         rank1++;
+         return true;
+      }
+
+      public boolean nextBigram() throws IOException {
+         if (!next(2)) return false;
+         rank1 = in.readInt();
+         rank2 = in.readInt();
+         count = in.readInt();
+         return true;
+      }
+
+      public boolean nextTrigram() throws IOException {
+         if (!next(3)) return false;
+         rank1 = in.readInt();
+         rank2 = in.readInt();
+         rank3 = in.readInt();
+         count = in.readInt();
+         return true;
+      }
+
+      public void close() throws IOException {
+         in.close();
+      }
+
+      /**
+       * Check that the whole file was read.
+       */
+      void checkEnd() throws IOException {
+         if (section != 3 || remaining != 0 || in.read() != -1) {
+            throw new IOException("Trailing data in " + file);
+         }
+      }
+   }
+}
@@ -0,0 +1,452 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Scores a test corpus with a language model on several threads.
+ *
+ * <pre>
+ * java PerplexityEvaluator model.bin test.txt [threads]
+ * </pre>
+ *
+ * The calling thread streams the sentences, turns them into word indexes
+ * once (through a MappedCorpusReader for a file) and packs them into batches;
+ * the worker threads score the batches against the model, which they only
+ * read. Every word and STOP is scored with as much history as the order of
+ * the model allows, as LmBenchmark.perplexity() in bench/src does, so a
+ * trigram model scores the first word of a sentence as a bigram. A
+ * KneserNeyTrigramLm is scored word by word through its states (see
+ * KneserNeyTrigramLm.score()), any other model through
+ * getNgramLogProbability().
+ *
+ * Besides the perplexity the Result has the OOV rate (words the model never
+ * saw) and, for every n, the share of the scored words whose longest seen
+ * n-gram ending in the word is an n-gram. As with the test harness, new words
+ * are added to the word indexer, so nothing else may add words to it while a
+ * corpus is evaluated.
+ *
+ * The log probabilities are summed per batch and the batch sums in the order
+ * the batches finish, so the last digits of the perplexity can differ from
+ * run to run.
+ */
+public class PerplexityEvaluator {
+
+   /**
+    * Number of word indexes per batch. A longer sentence gets a batch of its
+    * own.
+    */
+   static final int BATCH_SIZE = 1 << 16;
+
+   final NgramLanguageModel lm;
+   final int numThreads;
+
+   /**
+    * The order of the model, the longest n-gram scored.
+    */
+   final int order;
+
+   /**
+    * Batches that are not being filled or scored, and batches waiting to be
+    * scored.
+    */
+   final BlockingQueue<Batch> freeBatches;
+   final BlockingQueue<Batch> fullBatches;
+
+   public PerplexityEvaluator(NgramLanguageModel lm, int numThreads) {
+      if (numThreads < 1) {
+         throw new IllegalArgumentException("Bad number of threads "
+               + numThreads);
+      }
+      this.lm = lm;
+      this.numThreads = numThreads;
+      this.order = lm.getOrder();
+      int numBatches = 2 * numThreads + 2;
+      freeBatches = new ArrayBlockingQueue<Batch>(numBatches);
+      fullBatches = new ArrayBlockingQueue<Batch>(numBatches + numThreads);
+      for (int i = 0; i < numBatches; i++) {
+         freeBatches.add(new Batch());
+      }
+   }
+
+   /**
+    * Sentences as word indexes padded with START and STOP, one after the
+    * other; sentence i ends before ends[i].
+    */
+   static class Batch {
+      int words[] = new int[BATCH_SIZE];
+      int ends[] = new int[BATCH_SIZE / 4];
+      int length;
+      int numSentences;
+   }
+
+   /**
+    * Marks the end of the stream.
+    */
+   static final Batch END = new Batch();
+
+   /**
+    * The totals of an evaluation, or of the batches one worker scored.
+    */
+   public static class Result {
+      public long numSentences;
+
+      /**
+       * Scored tokens: the words and STOP of every sentence.
+       */
+      public long numTokens;
+      public long numOovWords;
+      public double logProb;
+
+      /**
+       * hits[n] is the number of scored tokens whose longest seen n-gram
+       * ending in the token is an n-gram; hits[0] counts the OOV words.
+       */
+      public final long hits[];
+      public double seconds;
+
+      Result(int order) {
+         hits = new long[order + 1];
+      }
+
+      void add(Result other) {
+         numSentences += other.numSentences;
+         numTokens += other.numTokens;
+         numOovWords += other.numOovWords;
+         logProb += other.logProb;
+         for (int n = 0; n < hits.length; n++) {
+            hits[n] += other.hits[n];
+         }
+      }
+
+      public double perplexity() {
+         return Math.exp(-logProb / numTokens);
+      }
+
+      /**
+       * Return the share of the words, not counting STOP, that the model
+       * never saw.
+       */
+      public double oovRate() {
+         return (double) numOovWords / (numTokens - numSentences);
+      }
+
+      /**
+       * Return the share of the scored tokens whose longest seen n-gram is an
+       * n-gram.
+       */
+      public double hitRate(int n) {
+         return (double) hits[n] / numTokens;
+      }
+
+      public double tokensPerSecond() {
+         return numTokens / seconds;
+      }
+
+      @Override
+      public String toString() {
+         StringBuilder hitRates = new StringBuilder();
+         for (int n = hits.length - 1; n >= 1; n--) {
+            hitRates.append(String.format(", %d-gram %.2f%%", n,
+                  100 * hitRate(n)));
+         }
+         return String.format("%d sentences, %d tokens: perplexity %.4f, "
+               + "OOV %.2f%%%s, %.1fs (%.0f tokens/s)", numSentences,
+               numTokens, perplexity(), 100 * oovRate(), hitRates, seconds,
+               tokensPerSecond());
+      }
+   }
+
+   class Worker extends Thread {
+      final Result result = new Result(order);
+
+      /**
+       * Reusable n-grams for getCount(), by length.
+       */
+      final int ngrams[][] = new int[order + 1][];
+      final long state[] = new long[1];
+
+      volatile Throwable error;
+
+      Worker(int id) {
+         super("lm-evaluator-" + id);
+         for (int n = 1; n <= order; n++) ngrams[n] = new int[n];
+      }
+
+      @Override
+      public void run() {
+         try {
+            while (true) {
+               Batch batch = fullBatches.take();
+               if (batch == END) break;
+               if (error == null) {
+                  try {
+                     score(batch);
+                  } catch (Throwable t) {
+                     // Keep taking batches so the reader doesn't block.
+                     error = t;
+                  }
+               }
+               freeBatches.put(batch);
+            }
+         } catch (InterruptedException e) {
+            error = e;
+         }
+      }
+
+      void score(Batch batch) {
+         double logProb = 0;
+         int start = 0;
+         for (int s = 0; s < batch.numSentences; s++) {
+            int end = batch.ends[s];
+            if (lm instanceof KneserNeyTrigramLm) {
+               logProb += scoreStates((KneserNeyTrigramLm) lm, batch.words,
+                     start, end);
+            } else {
+               logProb += scoreNgrams(batch.words, start, end);
+            }
+            result.numTokens += end - start - 1;
+            start = end;
+         }
+         result.numSentences += batch.numSentences;
+         result.logProb += logProb;
+      }
+
+      /**
+       * Score a sentence through the states of the model. The bigram of the
+       * new state tells whether the bigram was seen, so only a trigram
+       * lookup is added for the hit rates.
+       */
+      double scoreStates(KneserNeyTrigramLm lm, int words[], int start,
+            int end) {
+         double logProb = 0;
+         // The state of getStartState(), without asking the word indexer,
+         // which the reading thread may be adding words to.
+         long current = Utils.pack(words[start],
+               KneserNeyTrigramLm.START_CONTEXT);
+         for (int i = start + 1; i < end; i++) {
+            int word = words[i];
+            int context = Utils.right(current);
+            logProb += lm.score(current, word, state);
+            current = state[0];
+
+            int n;
+            if (Utils.right(current) > 0) {
+               n = context > 0 && lm.trigramCounter.get(context, word) > 0 ? 3
+                     : 2;
+            } else {
+               n = isSeen(word) ? 1 : 0;
+            }
+            countHit(n, i == end - 1);
+         }
+         return logProb;
+      }
+
+      /**
+       * Score a sentence n-gram by n-gram.
+       */
+      double scoreNgrams(int words[], int start, int end) {
+         double logProb = 0;
+         for (int i = start + 1; i < end; i++) {
+            int from = Math.max(start, i + 1 - order);
+            logProb += lm.getNgramLogProbability(words, from, i + 1);
+
+            int n = i + 1 - from;
+            for (; n >= 1; n--) {
+               System.arraycopy(words, i + 1 - n, ngrams[n], 0, n);
+               if (lm.getCount(ngrams[n]) > 0) break;
+            }
+            countHit(n, i == end - 1);
+         }
+         return logProb;
+      }
+
+      boolean isSeen(int word) {
+         ngrams[1][0] = word;
+         return lm.getCount(ngrams[1]) > 0;
+      }
+
+      void countHit(int n, boolean stop) {
+         result.hits[n]++;
+         if (n == 0 && !stop) result.numOovWords++;
+      }
+   }
+
+   /**
+    * Batch being filled by the calling thread.
+    */
+   private Batch batch;
+
+   /**
+    * Score the sentences of a file with one tokenized sentence per line.
+    */
+   public Result evaluate(File file) throws IOException {
+      final Worker workers[] = startWorkers();
+      long start = System.currentTimeMillis();
+      MappedCorpusReader reader = new MappedCorpusReader(file,
+            new TokenIndexer(EnglishWordIndexer.getIndexer(), 1 << 16,
+                  KneserNeyTrigramLm.loadFactor));
+      try {
+         reader.read(new MappedCorpusReader.Handler() {
+            public void sentence(int words[], int length) {
+               try {
+                  addSentence(words, length, workers);
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw new RuntimeException(e);
+               }
+            }
+         });
+         flush();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(e);
+      } finally {
+         stopWorkers(workers);
+      }
+      return finish(workers, start);
+   }
+
+   /**
+    * Score the sentences.
+    */
+   public Result evaluate(Iterable<List<String>> sentences) {
+      Worker workers[] = startWorkers();
+      long start = System.currentTimeMillis();
+      StringIndexer wordIndexer = EnglishWordIndexer.getIndexer();
+      int words[] = new int[64];
+      try {
+         for (List<String> sentence : sentences) {
+            int length = sentence.size() + 2;
+            words = Utils.ensureCapacity(words, length - 1);
+            words[0] = wordIndexer.addAndGetIndex(NgramLanguageModel.START);
+            for (int i = 0; i < sentence.size(); i++) {
+               words[i + 1] = wordIndexer.addAndGetIndex(sentence.get(i));
+            }
+            words[length - 1] = wordIndexer
+                  .addAndGetIndex(NgramLanguageModel.STOP);
+            addSentence(words, length, workers);
+         }
+         flush();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(e);
+      } finally {
+         stopWorkers(workers);
+      }
+      return finish(workers, start);
+   }
+
+   /**
+    * Score sentences that are already word indexes padded with START and
+    * STOP, e.g. a held-out set that is scored many times.
+    */
+   public Result evaluate(int sentences[][]) {
+      Worker workers[] = startWorkers();
+      long start = System.currentTimeMillis();
+      try {
+         for (int words[] : sentences) {
+            addSentence(words, words.length, workers);
+         }
+         flush();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(e);
+      } finally {
+         stopWorkers(workers);
+      }
+      return finish(workers, start);
+   }
+
+   private Worker[] startWorkers() {
+      Worker workers[] = new Worker[numThreads];
+      for (int i = 0; i < numThreads; i++) {
+         workers[i] = new Worker(i);
+         workers[i].start();
+      }
+      batch = freeBatches.remove();
+      batch.length = 0;
+      batch.numSentences = 0;
+      return workers;
+   }
+
+   private void stopWorkers(Worker workers[]) {
+      for (int i = 0; i < workers.length; i++) {
+         fullBatches.add(END);
+      }
+   }
+
+   /**
+    * Copy a sentence into the current batch, handing the batch to the
+    * workers first if the sentence doesn't fit.
+    */
+   private void addSentence(int words[], int length, Worker workers[])
+         throws InterruptedException {
+      if (batch.length + length > batch.words.length && batch.numSentences > 0) {
+         flush();
+         checkWorkers(workers);
+         batch = freeBatches.take();
+         batch.length = 0;
+         batch.numSentences = 0;
+      }
+      batch.words = Utils.ensureCapacity(batch.words, batch.length + length
+            - 1);
+      batch.ends = Utils.ensureCapacity(batch.ends, batch.numSentences);
+      System.arraycopy(words, 0, batch.words, batch.length, length);
+      batch.length += length;
+      batch.ends[batch.numSentences++] = batch.length;
+   }
+
+   private void flush() throws InterruptedException {
+      if (batch.numSentences > 0) {
+         fullBatches.put(batch);
+      } else {
+         freeBatches.put(batch);
+      }
+   }
+
+   private Result finish(Worker workers[], long start) {
+      Result result = new Result(order);
+      for (Worker worker : workers) {
+         try {
+            worker.join();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+         }
+      }
+      checkWorkers(workers);
+      for (Worker worker : workers) {
+         result.add(worker.result);
+      }
+      result.seconds = (System.currentTimeMillis() - start) / 1000.0;
+      return result;
+   }
+
+   private void checkWorkers(Worker workers[]) {
+      for (Worker worker : workers) {
+         if (worker.error != null) {
+            throw new RuntimeException("Scoring failed", worker.error);
+         }
+      }
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 2) {
+         System.out.println("Usage: PerplexityEvaluator model test [threads]");
+         System.exit(1);
+      }
+      KneserNeyTrigramLm lm = KneserNeyTrigramLm.load(new File(args[0]));
+      int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime
+            .getRuntime().availableProcessors();
+      System.out.println(new PerplexityEvaluator(lm, numThreads)
+            .evaluate(new File(args[1])));
+   }
+}
@@ -0,0 +1,259 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * Precomputed, quantized log probabilities for a finished KneserNeyTrigramLm,
+ * so that a query is a few lookups instead of the whole Kneser-Ney
+ * interpolation.
+ * 
+ * When both bigrams of a trigram w1 w2 w3 have been seen, the interpolated
+ * probability is
+ * 
+ * <pre>
+ * P(w3 | w1 w2) = (c(w1 w2 w3) - D) / c(w1 w2) + alpha(w1 w2) * P(w3 | w2)
+ * alpha(w1 w2) = D * N1+(w1 w2 .) / c(w1 w2)
+ * P(w3 | w2)   = N1+(. w2 w3) / N1+(. w2 .)
+ * </pre>
+ * 
+ * so three tables are enough:
+ * <ul>
+ * <li>log P(w3 | w1 w2) for every seen trigram, by trigram position,
+ * <li>log alpha(w1 w2), by bigram index,
+ * <li>log P(w3 | w2), by bigram index. This is also the probability of a
+ * bigram at the beginning of a sentence.
+ * </ul>
+ * An unseen trigram is scored as log alpha(w1 w2) + log P(w3 | w2). Queries
+ * involving an unseen bigram are computed exactly, which is cheap since there
+ * is no trigram to look up.
+ * 
+ * Each table has its own codebook and stores bit packed codes. With 8 bit
+ * codes the tables take a byte per trigram slot and two bytes per bigram.
+ */
+public class QuantizedLogProbTables {
+
+   /**
+    * Number of values the codebooks are trained on.
+    */
+   static final int SAMPLE_SIZE = 1 << 20;
+
+   final KneserNeyTrigramLm lm;
+
+   final LogProbCodebook trigramCodebook;
+   final BitPackedArray trigramCodes;
+
+   final LogProbCodebook alphaCodebook;
+   final BitPackedArray alphaCodes;
+
+   final LogProbCodebook continuationCodebook;
+   final BitPackedArray continuationCodes;
+
+   /**
+    * Precompute the tables for the given model with codes of at most the
+    * given number of bits (8 or 16 are the usual choices).
+    */
+   public QuantizedLogProbTables(KneserNeyTrigramLm lm, int bits) {
+      if (bits < 1 || bits > 16) {
+         throw new IllegalArgumentException("Codes must have 1 to 16 bits");
+      }
+      if (!(lm.trigramCounter instanceof TrigramCounter)
+            && !(lm.trigramCounter instanceof FrozenTrigramCounter)) {
+         throw new IllegalStateException(
+               "Only models with exact trigram counts can be quantized");
+      }
+      this.lm = lm;
+
+      int numBigrams = lm.bigramIndexer.size();
+      int firstWords[] = new int[numBigrams + 1];
+      int secondWords[] = new int[numBigrams + 1];
+      lm.getBigramWords(firstWords, secondWords);
+
+      // Per bigram tables.
+      double alphas[] = new double[numBigrams + 1];
+      double continuations[] = new double[numBigrams + 1];
+      for (int i = 1; i <= numBigrams; i++) {
+         alphas[i] = Math.log((float) lm.discountMass(i)
+               / lm.bigramCounter[i]);
+         continuations[i] = lm.bigramLogProbability(firstWords[i], i);
+      }
+      alphaCodebook = train(alphas, bits);
+      alphaCodes = encode(alphas, alphaCodebook);
+      continuationCodebook = train(continuations, bits);
+      continuationCodes = encode(continuations, continuationCodebook);
+      alphas = null;
+      continuations = null;
+
+      // Per trigram table. The trigrams are walked twice, once to sample the
+      // log probabilities and once to encode them, instead of holding a
+      // double for every one of them.
+      TrigramWalker walker = new TrigramWalker(lm, secondWords);
+      int numTrigrams = lm.trigramCounter.size();
+      int stride = Math.max(1, (numTrigrams + SAMPLE_SIZE - 1) / SAMPLE_SIZE);
+      float sample[] = new float[(numTrigrams + stride - 1) / stride];
+      int sampleSize = 0;
+      for (int i = 0; walker.next(); i++) {
+         if (i % stride == 0 && sampleSize < sample.length) {
+            sample[sampleSize++] = (float) walker.logProbability();
+         }
+      }
+      trigramCodebook = LogProbCodebook.train(sample, sampleSize, bits);
+      sample = null;
+
+      trigramCodes = new BitPackedArray(walker.numPositions(),
+            trigramCodebook.bits());
+      walker = new TrigramWalker(lm, secondWords);
+      while (walker.next()) {
+         trigramCodes.set(walker.position,
+               trigramCodebook.encode(walker.logProbability()));
+      }
+   }
+
+   /**
+    * Walks over the seen trigrams of an exact or a frozen counter.
+    */
+   static class TrigramWalker {
+      final KneserNeyTrigramLm lm;
+      final int secondWords[];
+      final TrigramCounter hashCounter;
+      final FrozenTrigramCounter frozenCounter;
+
+      long position = -1;
+      int context = 0;
+      int word;
+      int count;
+
+      TrigramWalker(KneserNeyTrigramLm lm, int secondWords[]) {
+         this.lm = lm;
+         this.secondWords = secondWords;
+         if (lm.trigramCounter instanceof TrigramCounter) {
+            hashCounter = (TrigramCounter) lm.trigramCounter;
+            frozenCounter = null;
+         } else {
+            hashCounter = null;
+            frozenCounter = (FrozenTrigramCounter) lm.trigramCounter;
+         }
+      }
+
+      long numPositions() {
+         return hashCounter != null ? hashCounter.slotCount() : frozenCounter
+               .size();
+      }
+
+      /**
+       * Move to the next trigram; return false at the end.
+       */
+      boolean next() {
+         if (hashCounter != null) {
+            long slots = hashCounter.slotCount();
+            while (++position < slots) {
+               count = hashCounter.slotValue(position);
+               if (count > 0) {
+                  context = hashCounter.slotFirstKey(position);
+                  word = hashCounter.slotSecondKey(position);
+                  return true;
+               }
+            }
+            return false;
+         } else {
+            if (++position >= frozenCounter.size()) return false;
+            while (frozenCounter.offsets[context + 1] <= position) context++;
+            count = frozenCounter.countAt(position);
+            word = frozenCounter.wordAt(position);
+            return true;
+         }
+      }
+
+      double logProbability() {
+         int word2 = secondWords[context];
+         int word2word3 = lm.bigramIndexer.get(word2, word);
+         return Math.log(lm.trigramProbability(context, word2word3, word2,
+               count));
+      }
+   }
+
+   private static LogProbCodebook train(double values[], int bits) {
+      // Index 0 is the unseen bigram and isn't part of the table.
+      int n = values.length - 1;
+      int stride = Math.max(1, (n + SAMPLE_SIZE - 1) / SAMPLE_SIZE);
+      float sample[] = new float[(n + stride - 1) / stride];
+      int sampleSize = 0;
+      for (int i = 1; i <= n && sampleSize < sample.length; i += stride) {
+         sample[sampleSize++] = (float) values[i];
+      }
+      return LogProbCodebook.train(sample, sampleSize, bits);
+   }
+
+   private static BitPackedArray encode(double values[],
+         LogProbCodebook codebook) {
+      BitPackedArray codes = new BitPackedArray(values.length, codebook.bits());
+      for (int i = 1; i < values.length; i++) {
+         codes.set(i, codebook.encode(values[i]));
+      }
+      return codes;
+   }
+
+   /**
+    * Same contract as NgramLanguageModel.getNgramLogProbability().
+    */
+   public double getLogProbability(int[] ngram, int from, int to) {
+      if (to - from == 3) {
+         int word2 = ngram[from + 1];
+         int word1word2 = lm.bigramIndexer.get(ngram[from], word2);
+         int word2word3 = lm.bigramIndexer.get(word2, ngram[from + 2]);
+         return trigramLogProbability(word1word2, word2word3, word2,
+               ngram[from + 2]);
+      } else {
+         int word1word2 = lm.bigramIndexer.get(ngram[from], ngram[from + 1]);
+         return bigramLogProbability(ngram[from], word1word2);
+      }
+   }
+
+   /**
+    * The log probability of w3 after w1 w2, given the indexes of the bigrams
+    * w1 w2 and w2 w3 (0 if unseen).
+    */
+   double trigramLogProbability(int word1word2, int word2word3, int word2,
+         int word3) {
+      if (word1word2 > 0 && word2word3 > 0) {
+         long position = lm.trigramCounter.indexOf(word1word2, word3);
+         if (position >= 0) {
+            return trigramCodebook.decode((int) trigramCodes.get(position));
+         }
+         return alphaCodebook.decode((int) alphaCodes.get(word1word2))
+               + continuationCodebook.decode((int) continuationCodes
+                     .get(word2word3));
+      }
+      // A trigram with an unseen bigram has a count of 0.
+      return Math.log(lm.trigramProbability(word1word2, word2word3, word2, 0));
+   }
+
+   /**
+    * The log probability of the bigram w1 w2 at the beginning of a sentence,
+    * given its index (0 if unseen).
+    */
+   double bigramLogProbability(int word1, int word1word2) {
+      if (word1word2 > 0) {
+         return continuationCodebook.decode((int) continuationCodes
+               .get(word1word2));
+      }
+      return lm.bigramLogProbability(word1, 0);
+   }
+
+   /**
+    * Read the codes of the bigrams w1 w2 (if seen) and w2 w3 and return a
+    * value that depends on them (see KneserNeyTrigramLm.scoreBatch()).
+    */
+   long prefetch(int word1word2, int word2word3) {
+      long touched = continuationCodes.get(word2word3);
+      if (word1word2 > 0) touched += alphaCodes.get(word1word2);
+      return touched;
+   }
+
+   /**
+    * Return the number of bytes used by the tables.
+    */
+   public long bytes() {
+      return trigramCodes.bytes() + alphaCodes.bytes()
+            + continuationCodes.bytes() + 4L
+            * (trigramCodebook.size() + alphaCodebook.size()
+                  + continuationCodebook.size());
+   }
+}
@@ -0,0 +1,43 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * Slots stored on the Java heap in arrays of 2^27 longs (1GB), so the number
+ * of slots isn't limited by the length of a single array.
+ */
+public class SegmentedLongStorage extends LongStorage {
+
+   static final int SEGMENT_BITS = 27;
+   static final int SEGMENT_MASK = (1 << SEGMENT_BITS) - 1;
+
+   final long segments[][];
+   final long length;
+
+   public SegmentedLongStorage(long length) {
+      this.length = length;
+      long numSegments = (length + SEGMENT_MASK) >>> SEGMENT_BITS;
+      segments = new long[(int) numSegments][];
+      for (int i = 0; i < segments.length; i++) {
+         long first = (long) i << SEGMENT_BITS;
+         segments[i] = new long[(int) Math.min(SEGMENT_MASK + 1L,
+               length - first)];
+      }
+   }
+
+   @Override
+   public long get(long index) {
+      return segments[(int) (index >>> SEGMENT_BITS)][(int) index
+            & SEGMENT_MASK];
+   }
+
+   @Override
+   public void set(long index, long value) {
+      segments[(int) (index >>> SEGMENT_BITS)][(int) index & SEGMENT_MASK] =
+            value;
+   }
+
+   @Override
+   public long length() {
+      return length;
+   }
+
+}
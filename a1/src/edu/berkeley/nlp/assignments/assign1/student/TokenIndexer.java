@@ -0,0 +1,76 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.UnsupportedEncodingException;
+
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Maps tokens given as UTF-8 bytes to the indexes a StringIndexer has for
+ * their lower cased words, so a corpus can be indexed straight from a byte
+ * buffer. A String is only created the first time a token is seen; after
+ * that a token is resolved by looking its bytes up in a Vocabulary of the
+ * tokens seen so far.
+ *
+ * The tokens are cached exactly as they appear in the text, so "The" and
+ * "the" are two entries that map to the same word index. The indexes are
+ * the ones of the StringIndexer, which stays the owner of the vocabulary:
+ * words added to it through other paths keep their indexes and are found
+ * the first time their bytes are seen.
+ */
+public class TokenIndexer {
+
+   final StringIndexer wordIndexer;
+
+   /**
+    * The tokens seen, and the word index of every token.
+    */
+   final Vocabulary tokens;
+   int words[];
+
+   public TokenIndexer(StringIndexer wordIndexer, int initialCapacity,
+         float loadFactor) {
+      this.wordIndexer = wordIndexer;
+      tokens = new Vocabulary(initialCapacity, loadFactor);
+      words = new int[Math.max(16, initialCapacity)];
+   }
+
+   /**
+    * Return the word index of the token bytes[start, start + length), adding
+    * the word to the StringIndexer if it's new.
+    */
+   public int addAndGetIndex(byte bytes[], int start, int length) {
+      int numTokens = tokens.size();
+      int token = tokens.addAndGetIndex(bytes, start, length);
+      if (token == numTokens) {
+         words = Utils.ensureCapacity(words, token);
+         words[token] = wordIndexer.addAndGetIndex(toWord(bytes, start,
+               length));
+      }
+      return words[token];
+   }
+
+   /**
+    * Decode and lower case a token the way SentenceCollection does.
+    */
+   static String toWord(byte bytes[], int start, int length) {
+      try {
+         return new String(bytes, start, length, "UTF-8").toLowerCase();
+      } catch (UnsupportedEncodingException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   /**
+    * Number of distinct tokens seen.
+    */
+   public int size() {
+      return tokens.size();
+   }
+
+   /**
+    * Approximate memory used, in bytes.
+    */
+   public long bytes() {
+      return tokens.bytes() + 4L * words.length;
+   }
+}
@@ -15,6 +15,10 @@ package edu.berkeley.nlp.assignments.assign1.student;
  * 
  * In total, we need 19 + 19 + 23 = 61 bits to store!
  * 
+ * Those are only the starting widths. A larger corpus can pass wider ones
+ * (see KneserNeyTrigramLm.init()), keys that outgrow their fields widen the
+ * layout, and counts that outgrow theirs are spilled to a side table.
+ * 
  * @author rxin
  * 
  */
@@ -22,7 +26,43 @@ public class TrigramCounter extends CrazilyPackedHashMap implements
       TrigramCounterInterface {
 
    public TrigramCounter(int initialCapacity, float loadFactor) {
-      super(initialCapacity, loadFactor, 0x3FFFFF, 23, 19);
+      this(initialCapacity, loadFactor, Probing.LINEAR);
+   }
+
+   public TrigramCounter(int initialCapacity, float loadFactor,
+         Probing probing) {
+      this(initialCapacity, loadFactor, probing, false);
+   }
+
+   public TrigramCounter(int initialCapacity, float loadFactor,
+         Probing probing, boolean offHeap) {
+      this(initialCapacity, loadFactor, probing, offHeap, 23, 19);
+   }
+
+   /**
+    * Starts with the given key widths; the counts get the remaining bits.
+    */
+   public TrigramCounter(int initialCapacity, float loadFactor,
+         Probing probing, boolean offHeap, int numBigramBits, int numWordBits) {
+      super(initialCapacity, loadFactor, -1L >>> (numBigramBits + numWordBits),
+            numBigramBits, numWordBits, probing, offHeap);
+      spillValues = true;
+   }
+
+   /**
+    * A copy of another counter (see CrazilyPackedHashMap).
+    */
+   public TrigramCounter(TrigramCounter other, float loadFactor) {
+      super(other, loadFactor);
+   }
+
+   /**
+    * Wraps a table loaded from a snapshot.
+    */
+   TrigramCounter(LongStorage data, int size, long valueMask,
+         int numBigramBits, int numWordBits, Probing probing) {
+      super(data, size, valueMask, numBigramBits, numWordBits, probing);
+      spillValues = true;
    }
 
    /* (non-Javadoc)
@@ -39,9 +79,9 @@ public class TrigramCounter extends CrazilyPackedHashMap implements
    @Override
    public void reportTopTrigram() {
       long maxCount = 0;
-      for (int i = 0; i < data.length; i++) {
-         long value = data[i] & valueMask;
-         //int key = data[i] & keyMask;
+      long slots = slotCount();
+      for (long i = 0; i < slots; i++) {
+         long value = slotValue(i);
          if (value > maxCount) maxCount = value;
       }
       System.out.println("Top trigram count: " + maxCount);
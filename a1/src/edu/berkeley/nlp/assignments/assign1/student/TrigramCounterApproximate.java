@@ -5,7 +5,22 @@ public class TrigramCounterApproximate extends CrazilyPackedHashMapApproximate
       implements TrigramCounterInterface {
 
    public TrigramCounterApproximate(int initialCapacity, float loadFactor) {
-      super(initialCapacity, loadFactor, 0x3FFFFF, 23);
+      this(initialCapacity, loadFactor, false);
+   }
+
+   public TrigramCounterApproximate(int initialCapacity, float loadFactor,
+         boolean offHeap) {
+      this(initialCapacity, loadFactor, offHeap, 9, 23);
+   }
+
+   /**
+    * Counts with numCountBits bits, keyed by numFingerprintBits bits of
+    * fingerprint. Counts above 2^numCountBits - 1 saturate.
+    */
+   public TrigramCounterApproximate(int initialCapacity, float loadFactor,
+         boolean offHeap, int numFingerprintBits, int numCountBits) {
+      super(initialCapacity, loadFactor, numFingerprintBits, numCountBits,
+            offHeap);
    }
 
    /**
@@ -22,12 +37,12 @@ public class TrigramCounterApproximate extends CrazilyPackedHashMapApproximate
    
    public void reportTopTrigram() {
       long maxCount = 0;
-      for (int i = 0; i < data.length; i++) {
-         long value = data[i] & valueMask;
-         //int key = data[i] & keyMask;
+      for (int i = 0; i < length; i++) {
+         long value = slot(i) & valueMask;
          if (value > maxCount) maxCount = value;
       }
-      System.out.println("Top trigram count: " + maxCount);
+      System.out.println("Top trigram count: " + maxCount
+            + (numSaturated > 0 ? " (" + numSaturated + " capped updates)" : ""));
    }
    
 }
@@ -17,6 +17,20 @@ public interface TrigramCounterInterface {
    public abstract int size();
    
    public abstract int get(int key1, int key2);
+
+   /**
+    * Return the position of the trigram in the counter, or -1 if it hasn't
+    * been seen. Positions are below the number of slots (or entries) and stay
+    * the same as long as nothing is added.
+    */
+   public abstract long indexOf(int key1, int key2);
+
+   /**
+    * Read the memory a lookup of the trigram starts with and return a value
+    * that depends on it. Doing this for a batch of keys before looking them
+    * up lets their cache misses overlap.
+    */
+   public abstract long prefetch(int key1, int key2);
    
    public abstract int adjustOrPutValue(int key1, int key2, int adjustAmount);
    
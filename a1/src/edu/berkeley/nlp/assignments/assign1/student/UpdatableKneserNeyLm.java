@@ -0,0 +1,69 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.List;
+
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+
+/**
+ * A KneserNeyTrigramLm that takes new sentences while it's being queried,
+ * e.g. a daily delta of text on top of a model built once.
+ *
+ * Every update copies the current model, adds the sentences to the copy and
+ * then publishes the copy through a volatile field, so a query sees either
+ * the model before the update or the one after it, never a half updated one.
+ * A reader that needs several queries answered by the same model (say, all
+ * the words of a sentence) takes it once with getModel(). The price is
+ * memory for two models while an update runs.
+ *
+ * Updates are serialized. The models share the word indexer, which the
+ * update adds the new words to, so the callers must not add words to it
+ * (e.g. index new test sentences) while an update runs.
+ */
+public class UpdatableKneserNeyLm implements NgramLanguageModel {
+
+   private volatile KneserNeyTrigramLm model;
+
+   /**
+    * Serve the given model. It must have exact counts in hash tables (see
+    * KneserNeyTrigramLm.copy()); a loaded model is fine.
+    */
+   public UpdatableKneserNeyLm(KneserNeyTrigramLm model) {
+      this.model = model;
+   }
+
+   /**
+    * Return the current model. It won't change under the caller, since
+    * updates replace it instead.
+    */
+   public KneserNeyTrigramLm getModel() {
+      return model;
+   }
+
+   /**
+    * Add the sentences to a copy of the current model and make the copy the
+    * current model.
+    *
+    * @return the number of words added
+    */
+   public synchronized long addSentences(Iterable<List<String>> sentences) {
+      KneserNeyTrigramLm next = model.copy();
+      long numWords = next.addSentences(sentences);
+      model = next;
+      return numWords;
+   }
+
+   @Override
+   public int getOrder() {
+      return model.getOrder();
+   }
+
+   @Override
+   public double getNgramLogProbability(int[] ngram, int from, int to) {
+      return model.getNgramLogProbability(ngram, from, to);
+   }
+
+   @Override
+   public long getCount(int[] ngram) {
+      return model.getCount(ngram);
+   }
+}
@@ -1,5 +1,8 @@
 package edu.berkeley.nlp.assignments.assign1.student;
 
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
 public class Utils {
    
    public static final long mask = -1L >>> 32;
@@ -16,7 +19,45 @@ public class Utils {
      return (int)(v & mask);
    }
 
+
+   /**
+    * Return an array that can be indexed with <tt>index</tt>: either arr
+    * itself, or a copy that is at least 1.5 times larger.
+    */
+   public static int[] ensureCapacity(int arr[], int index) {
+      if (index < arr.length) return arr;
+      int length = Math.max(index + 1, arr.length + (arr.length >> 1));
+      int grown[] = new int[length];
+      System.arraycopy(arr, 0, grown, 0, arr.length);
+      return grown;
+   }
    
+   /**
+    * Return arr cut down (or padded with zeros) to the given length.
+    */
+   public static int[] trim(int arr[], int length) {
+      if (arr.length == length) return arr;
+      int trimmed[] = new int[length];
+      System.arraycopy(arr, 0, trimmed, 0, Math.min(length, arr.length));
+      return trimmed;
+   }
+   
+   /**
+    * Return the number of bytes the current thread has allocated so far, or
+    * -1 if the JVM doesn't tell (it's a com.sun.management extension, so it's
+    * looked up by reflection).
+    */
+   public static long allocatedBytes() {
+      try {
+         Method method = Class.forName("com.sun.management.ThreadMXBean")
+               .getMethod("getThreadAllocatedBytes", long.class);
+         return (Long) method.invoke(ManagementFactory.getThreadMXBean(),
+               Thread.currentThread().getId());
+      } catch (Exception e) {
+         return -1;
+      }
+   }
+
    public static void reportMemoryUsage() {
       System.gc(); System.gc(); System.gc(); System.gc();
       long totalMem = Runtime.getRuntime().totalMemory();
@@ -0,0 +1,423 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A compact vocabulary: words are numbered 0, 1, 2, ... in the order they're
+ * added, like a StringIndexer, but without a String or a map entry per word.
+ * The UTF-8 bytes of all words are kept one after the other in a single byte
+ * arena, and an open addressing table (linear probing, prime length, as in
+ * CrazilyPackedHashMap) holds the index of every word packed in a long with
+ * the high half of its hash, so most slots that aren't the word are passed
+ * over without reading its bytes, and the table can grow without hashing
+ * the words again. A word costs its bytes plus 4 + 8 / loadFactor bytes,
+ * instead of 60 or so plus two bytes per character.
+ *
+ * Words can be looked up as Strings or as slices of UTF-8 bytes, e.g. of a
+ * memory mapped corpus (see TokenIndexer), and neither allocates. Both are
+ * keyed by String.hashCode(): a String has it cached, so looking one up
+ * only costs comparing it with the bytes in the arena, and for a slice it's
+ * computed from the characters while decoding the bytes. A String is only
+ * created by get().
+ *
+ * freeze() trims the arrays to the words there are and makes the vocabulary
+ * read only; a frozen vocabulary can be read by many threads at once. The
+ * vocabulary can be written to a stream and read back:
+ *
+ * <pre>
+ * magic, version, frozen, word count, arena length, arena bytes,
+ * end offset in the arena per word
+ * </pre>
+ *
+ * The table is rebuilt when it's read.
+ */
+public class Vocabulary {
+
+   static final int MAGIC = 0x4b4e564f; // "KNVO"
+   static final int VERSION = 1;
+
+   static final long HIGH_BITS = 0xFFFFFFFF00000000L;
+
+   /**
+    * UTF-8 bytes of the words, one after the other.
+    */
+   byte arena[];
+
+   /**
+    * Word i is arena[offsets[i], offsets[i + 1]).
+    */
+   int offsets[];
+
+   int size;
+
+   /**
+    * Open addressing table of (high 32 bits of the hash, word + 1), 0 for an
+    * empty slot.
+    */
+   long table[];
+   int threshold;
+   final float loadFactor;
+   boolean frozen;
+
+   public Vocabulary(int initialCapacity, float loadFactor) {
+      this.loadFactor = loadFactor;
+      arena = new byte[Math.max(16, initialCapacity * 8)];
+      offsets = new int[Math.max(16, initialCapacity) + 1];
+      table = new long[CrazilyPackedHashMap.tableLength(Math.max(1,
+            initialCapacity), loadFactor)];
+      setThreshold();
+   }
+
+   private void setThreshold() {
+      // Always keep one slot empty so that probing for a missing word stops.
+      threshold = Math.min((int) (table.length * (double) loadFactor),
+            table.length - 1);
+   }
+
+   /**
+    * Hash the word: String.hashCode(), which a String caches, mixed so that
+    * the high bits used by fastRange depend on every character.
+    */
+   static long hash(String word) {
+      return HashFunctions.mix(word.hashCode());
+   }
+
+   /**
+    * Hash the word whose UTF-8 bytes are bytes[start, start + length): the
+    * same as hash(String), computed from the characters as they're decoded.
+    * Bytes that aren't valid UTF-8 are hashed as they are.
+    */
+   static long hash(byte bytes[], int start, int length) {
+      int hash = 0;
+      for (int i = start, end = start + length; i < end;) {
+         int b = bytes[i++] & 0xFF;
+         int extra = b < 0xC0 ? 0 : b < 0xE0 ? 1 : b < 0xF0 ? 2 : 3;
+         if (extra == 0 || i + extra > end) {
+            hash = 31 * hash + b;
+            continue;
+         }
+         int c = b & (0x3F >> extra);
+         for (int k = 0; k < extra; k++) c = c << 6 | bytes[i++] & 0x3F;
+         if (c < 0x10000) {
+            hash = 31 * hash + c;
+         } else {
+            // A surrogate pair.
+            hash = 31 * hash + (0xD800 + ((c - 0x10000) >> 10));
+            hash = 31 * hash + (0xDC00 + (c & 0x3FF));
+         }
+      }
+      return HashFunctions.mix(hash);
+   }
+
+   /**
+    * Return the UTF-8 bytes of the character at i of the word (and the one
+    * after it, for a surrogate pair), first byte lowest. A lone surrogate is
+    * encoded as '?', as String.getBytes() does.
+    */
+   private static int encode(String word, int i) {
+      int c = word.codePointAt(i);
+      if (c < 0x80) return c;
+      if (c < 0x800) return (0xC0 | c >> 6) | (0x80 | c & 0x3F) << 8;
+      if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+         return '?';
+      }
+      if (c < 0x10000) {
+         return (0xE0 | c >> 12) | (0x80 | c >> 6 & 0x3F) << 8
+               | (0x80 | c & 0x3F) << 16;
+      }
+      return (0xF0 | c >> 18) | (0x80 | c >> 12 & 0x3F) << 8
+            | (0x80 | c >> 6 & 0x3F) << 16 | (0x80 | c & 0x3F) << 24;
+   }
+
+   /**
+    * Return the number of bytes of a character encoded by encode().
+    */
+   private static int encodedLength(int encoded) {
+      int first = encoded & 0xFF;
+      if (first < 0x80) return 1;
+      if (first < 0xE0) return 2;
+      if (first < 0xF0) return 3;
+      return 4;
+   }
+
+   /**
+    * Return the slot of the table that holds the word with the given hash
+    * and bytes, or the empty slot where it would go.
+    */
+   private int find(long hash, byte bytes[], int start, int length) {
+      long high = hash & HIGH_BITS;
+      int index = HashFunctions.fastRange(hash, table.length);
+      while (true) {
+         long entry = table[index];
+         if (entry == 0 || (entry & HIGH_BITS) == high
+               && equals(word(entry), bytes, start, length)) {
+            return index;
+         }
+         if (++index == table.length) index = 0;
+      }
+   }
+
+   private int find(long hash, String word) {
+      long high = hash & HIGH_BITS;
+      int index = HashFunctions.fastRange(hash, table.length);
+      while (true) {
+         long entry = table[index];
+         if (entry == 0 || (entry & HIGH_BITS) == high
+               && equals(word(entry), word)) {
+            return index;
+         }
+         if (++index == table.length) index = 0;
+      }
+   }
+
+   /**
+    * Return the word of a table entry, -1 for an empty slot.
+    */
+   private static int word(long entry) {
+      return (int) entry - 1;
+   }
+
+   private boolean equals(int word, byte bytes[], int start, int length) {
+      int offset = offsets[word];
+      if (offsets[word + 1] - offset != length) return false;
+      for (int i = 0; i < length; i++) {
+         if (arena[offset + i] != bytes[start + i]) return false;
+      }
+      return true;
+   }
+
+   private boolean equals(int entry, String word) {
+      int position = offsets[entry], end = offsets[entry + 1];
+      for (int i = 0, n = word.length(); i < n; i++) {
+         int c = word.charAt(i);
+         if (c < 0x80) {
+            if (position == end || arena[position++] != c) return false;
+            continue;
+         }
+         int encoded = encode(word, i);
+         if (Character.isSupplementaryCodePoint(word.codePointAt(i))) i++;
+         for (int k = 0, length = encodedLength(encoded); k < length; k++) {
+            if (position == end
+                  || arena[position++] != (byte) (encoded >>> (8 * k))) {
+               return false;
+            }
+         }
+      }
+      return position == end;
+   }
+
+   /**
+    * Return the index of the word, or -1 if it isn't in the vocabulary.
+    */
+   public int indexOf(String word) {
+      int index = word(table[find(hash(word), word)]);
+      if (index < 0 && isLossy(word)) {
+         byte bytes[] = toBytes(word);
+         return indexOf(bytes, 0, bytes.length);
+      }
+      return index;
+   }
+
+   /**
+    * Return the index of the word whose UTF-8 bytes are bytes[start, start +
+    * length), or -1 if it isn't in the vocabulary.
+    */
+   public int indexOf(byte bytes[], int start, int length) {
+      return word(table[find(hash(bytes, start, length), bytes, start,
+            length)]);
+   }
+
+   /**
+    * Return the index of the word, adding it if it's new.
+    */
+   public int addAndGetIndex(String word) {
+      long hash = hash(word);
+      int index = find(hash, word);
+      if (table[index] != 0) return word(table[index]);
+      byte bytes[] = toBytes(word);
+      if (isLossy(word)) return addAndGetIndex(bytes, 0, bytes.length);
+      return add(index, hash, bytes, 0, bytes.length);
+   }
+
+   /**
+    * Return the index of the word whose UTF-8 bytes are bytes[start, start +
+    * length), adding it if it's new.
+    */
+   public int addAndGetIndex(byte bytes[], int start, int length) {
+      long hash = hash(bytes, start, length);
+      int index = find(hash, bytes, start, length);
+      if (table[index] != 0) return word(table[index]);
+      return add(index, hash, bytes, start, length);
+   }
+
+   private int add(int index, long hash, byte bytes[], int start, int length) {
+      if (frozen) {
+         throw new IllegalStateException("Can't add a word to a frozen "
+               + "vocabulary");
+      }
+      if (size + 1 == offsets.length) {
+         int capacity = offsets.length + (offsets.length >> 1);
+         offsets = Utils.trim(offsets, capacity);
+      }
+      int end = offsets[size];
+      if (end + length > arena.length) {
+         byte grown[] = new byte[Math.max(end + length, arena.length
+               + (arena.length >> 1))];
+         System.arraycopy(arena, 0, grown, 0, end);
+         arena = grown;
+      }
+      System.arraycopy(bytes, start, arena, end, length);
+      offsets[size + 1] = end + length;
+      table[index] = (hash & HIGH_BITS) | ++size;
+      if (size > threshold) rehash(PrimeFinder.nextPrime(2 * table.length));
+      return size - 1;
+   }
+
+   /**
+    * Return whether the word has a lone surrogate, which UTF-8 encodes as
+    * '?'. The word is then stored as it's encoded, and its hash is that of
+    * its bytes rather than hash(word), so it's only found through them.
+    */
+   private static boolean isLossy(String word) {
+      for (int i = 0, n = word.length(); i < n; i++) {
+         char c = word.charAt(i);
+         if (Character.isHighSurrogate(c) && i + 1 < n
+               && Character.isLowSurrogate(word.charAt(i + 1))) {
+            i++;
+         } else if (c >= Character.MIN_SURROGATE
+               && c <= Character.MAX_SURROGATE) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   static byte[] toBytes(String word) {
+      try {
+         return word.getBytes("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   /**
+    * Move the entries to a table of the given length. The high half of the
+    * hash is all fastRange() looks at, so they needn't be hashed again.
+    */
+   private void rehash(int length) {
+      long newTable[] = new long[length];
+      for (long entry : table) {
+         if (entry != 0) place(newTable, entry);
+      }
+      table = newTable;
+      setThreshold();
+   }
+
+   /**
+    * Put an entry in the first free slot from its hash.
+    */
+   private static void place(long table[], long entry) {
+      int index = HashFunctions.fastRange(entry & HIGH_BITS, table.length);
+      while (table[index] != 0) {
+         if (++index == table.length) index = 0;
+      }
+      table[index] = entry;
+   }
+
+   /**
+    * Return the word with the given index.
+    */
+   public String get(int index) {
+      if (index < 0 || index >= size) {
+         throw new IndexOutOfBoundsException("No word " + index);
+      }
+      try {
+         return new String(arena, offsets[index], offsets[index + 1]
+               - offsets[index], "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   /**
+    * Number of words.
+    */
+   public int size() {
+      return size;
+   }
+
+   /**
+    * Trim the arrays to the words there are and refuse new words from now
+    * on. Lookups of a frozen vocabulary are safe from any number of threads.
+    */
+   public void freeze() {
+      if (frozen) return;
+      byte trimmed[] = new byte[offsets[size]];
+      System.arraycopy(arena, 0, trimmed, 0, trimmed.length);
+      arena = trimmed;
+      offsets = Utils.trim(offsets, size + 1);
+      rehash(CrazilyPackedHashMap.tableLength(Math.max(1, size), loadFactor));
+      frozen = true;
+   }
+
+   public boolean isFrozen() {
+      return frozen;
+   }
+
+   public void write(DataOutputStream out) throws IOException {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeBoolean(frozen);
+      out.writeInt(size);
+      out.writeInt(offsets[size]);
+      out.write(arena, 0, offsets[size]);
+      for (int i = 1; i <= size; i++) out.writeInt(offsets[i]);
+   }
+
+   /**
+    * Read a vocabulary written by write(), with the given load factor.
+    */
+   public static Vocabulary read(DataInputStream in, float loadFactor)
+         throws IOException {
+      if (in.readInt() != MAGIC) {
+         throw new IOException("Not a vocabulary");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+         throw new IOException("Unsupported vocabulary version " + version);
+      }
+      boolean frozen = in.readBoolean();
+      int size = in.readInt();
+      int arenaLength = in.readInt();
+      if (size < 0 || arenaLength < 0) {
+         throw new IOException("Bad vocabulary size");
+      }
+
+      Vocabulary vocabulary = new Vocabulary(size, loadFactor);
+      vocabulary.arena = new byte[Math.max(16, arenaLength)];
+      in.readFully(vocabulary.arena, 0, arenaLength);
+      for (int i = 1; i <= size; i++) {
+         int start = vocabulary.offsets[i - 1];
+         int end = in.readInt();
+         if (end < start || end > arenaLength) {
+            throw new IOException("Bad offset of word " + (i - 1));
+         }
+         vocabulary.offsets[i] = end;
+         long hash = hash(vocabulary.arena, start, end - start);
+         place(vocabulary.table, (hash & HIGH_BITS) | i);
+      }
+      vocabulary.size = size;
+      if (frozen) vocabulary.freeze();
+      return vocabulary;
+   }
+
+   /**
+    * Memory used, in bytes.
+    */
+   public long bytes() {
+      return arena.length + 4L * offsets.length + 8L * table.length;
+   }
+}